@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+package com.neatier.commons.data.caching;
+
+import java.util.List;
+
+/**
+ * Interface of the {@link OnDeviceKeyedStorage} implementations keeping their contents in
+ * memory, so they can be read synchronously on any thread without I/O.
+ *
+ * @param <K> the type of the key
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public interface InMemoryKeyedStorage<K> {
+
+    /**
+     * Returns a snapshot of the stored keys.
+     */
+    List<K> keySnapshot();
+}
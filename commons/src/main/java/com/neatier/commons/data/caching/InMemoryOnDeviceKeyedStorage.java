@@ -16,34 +16,66 @@ package com.neatier.commons.data.caching;
 
 import android.util.SparseArray;
 import com.neatier.commons.helpers.KeyValuePairs;
+import com.neatier.commons.helpers.MemoryTrimmable;
+import com.neatier.commons.helpers.TrimResult;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import rx.Observable;
+import rx.functions.Func1;
 
 /**
  * Implementation of  an in memory {@link OnDeviceKeyedStorage} via {@link
- * SparseArray<Object>}
+ * SparseArray<Object>}. The order of the accesses through it is tracked, so {@link
+ * #trim(float)} drops the least recently used entries.
  *
  * @author László Gálosi
  * @since 24/07/15
  */
 @Singleton
-public class InMemoryOnDeviceKeyedStorage<K, V> implements OnDeviceKeyedStorage<K, V> {
+public class InMemoryOnDeviceKeyedStorage<K, V>
+      implements OnDeviceKeyedStorage<K, V>, InMemoryKeyedStorage<K>, MemoryTrimmable {
+
+    /**
+     * The estimated size of a value in bytes, if it is neither a {@link CharSequence} nor a byte
+     * array.
+     */
+    public static final int DEFAULT_VALUE_SIZE_ESTIMATE = 64;
 
     private final KeyValuePairs<K, V> inMemoryMap;
+    /**
+     * The keys in their access order, the least recently used first.
+     */
+    private final LinkedHashMap<K, Boolean> accessOrder = new LinkedHashMap<>(16, 0.75f, true);
+    private Func1<V, Integer> sizeEstimator = InMemoryOnDeviceKeyedStorage::estimateSize;
 
     @Inject
     public InMemoryOnDeviceKeyedStorage(final KeyValuePairs<K, V> inMemoryMap) {
         this.inMemoryMap = inMemoryMap;
     }
 
+    /**
+     * Sets the function estimating the size of a value in bytes, reported by {@link
+     * #trim(float)}. By default the strings count two bytes per character, the byte arrays
+     * their length, and the other values {@link #DEFAULT_VALUE_SIZE_ESTIMATE} bytes.
+     */
+    public synchronized InMemoryOnDeviceKeyedStorage<K, V> setSizeEstimator(
+          final Func1<V, Integer> sizeEstimator) {
+        this.sizeEstimator = sizeEstimator;
+        return this;
+    }
+
     @Override
-    public void writeKeyedContent(final K key, final V content) {
+    public synchronized void writeKeyedContent(final K key, final V content) {
         inMemoryMap.put(key, content);
+        accessOrder.put(key, Boolean.TRUE);
     }
 
     @Override
-    public V readOneByKey(final K key) {
+    public synchronized V readOneByKey(final K key) {
+        accessOrder.get(key);
         return inMemoryMap.get(key);
     }
 
@@ -53,8 +85,9 @@ public class InMemoryOnDeviceKeyedStorage<K, V> implements OnDeviceKeyedStorage<
     }
 
     @Override
-    public void removeOneByKey(final K key) {
+    public synchronized void removeOneByKey(final K key) {
         this.inMemoryMap.remove(key);
+        accessOrder.remove(key);
     }
 
     @Override
@@ -63,12 +96,56 @@ public class InMemoryOnDeviceKeyedStorage<K, V> implements OnDeviceKeyedStorage<
     }
 
     @Override
-    public void clear() {
+    public synchronized void clear() {
         inMemoryMap.clear();
+        accessOrder.clear();
     }
 
     @Override
     public Observable keys() {
         return inMemoryMap.keysAsStream();
     }
+
+    @Override
+    public List<K> keySnapshot() {
+        return new ArrayList<>(inMemoryMap.keySet());
+    }
+
+    /**
+     * Removes the given fraction of the entries, the least recently used ones first. The entries
+     * put into the map directly, not through this storage, are removed before the others. The
+     * reclaimed bytes are estimated by the {@link #setSizeEstimator(Func1) size estimator}.
+     */
+    @Override
+    public synchronized TrimResult trim(final float fraction) {
+        final int count = TrimResult.entriesToDrop(inMemoryMap.size(), fraction);
+        final List<K> leastRecentlyUsed = new ArrayList<>(inMemoryMap.size());
+        for (K key : inMemoryMap.keySet()) {
+            if (!accessOrder.containsKey(key)) {
+                leastRecentlyUsed.add(key);
+            }
+        }
+        for (K key : accessOrder.keySet()) {
+            if (inMemoryMap.containsKey(key)) {
+                leastRecentlyUsed.add(key);
+            }
+        }
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            final K key = leastRecentlyUsed.get(i);
+            bytes += sizeEstimator.call(inMemoryMap.get(key));
+            inMemoryMap.remove(key);
+            accessOrder.remove(key);
+        }
+        return new TrimResult(count, bytes);
+    }
+
+    private static int estimateSize(final Object value) {
+        if (value instanceof CharSequence) {
+            return 2 * ((CharSequence) value).length();
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        }
+        return DEFAULT_VALUE_SIZE_ESTIMATE;
+    }
 }
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+package com.neatier.commons.exception;
+
+/**
+ * A {@link NetworkConnectionException} subclass signalling that a data source was not called,
+ * because its circuit breaker is open after too many recent failures.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class CircuitOpenException extends NetworkConnectionException {
+
+    /**
+     * Constructor with the given error message.
+     *
+     * @see Exception#Exception(String)
+     */
+    public CircuitOpenException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+package com.neatier.commons.helpers;
+
+/**
+ * Interface designating that the implementation class holds a cache which can be shrunk on
+ * memory pressure, driven by a {@link TrimMemoryCoordinator}.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public interface MemoryTrimmable {
+
+    /**
+     * Drops the given fraction of the cached entries, the least valuable ones first.
+     *
+     * @param fraction the fraction of the entries to drop, between 0 and 1, 1 meaning all.
+     * @return the entries and bytes reclaimed.
+     */
+    TrimResult trim(float fraction);
+}
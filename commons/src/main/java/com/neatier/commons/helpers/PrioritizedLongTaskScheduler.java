@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+package com.neatier.commons.helpers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import rx.Scheduler;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.schedulers.Schedulers;
+
+/**
+ * {@link LongTaskScheduler} implementation performing the long running operations on bounded
+ * thread pools with named threads, one for each {@link TaskPriority} lane, and returning on the
+ * {@link AndroidSchedulers#mainThread()} by default. The threads of the lower lanes run with
+ * lower thread priority, and the {@link TaskPriority#BACKGROUND} tasks are held back by the
+ * dispatcher until no {@link TaskPriority#USER_BLOCKING} task is queued. Each lane queues at
+ * most {@link #DEFAULT_QUEUE_CAPACITY} tasks by default, the tasks beyond are rejected with a
+ * {@link RejectedExecutionException} delivered to the subscriber. The queue length, the waiting
+ * time and the rejections of the tasks are tracked per lane.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class PrioritizedLongTaskScheduler implements LongTaskScheduler {
+
+    /**
+     * The default maximum number of the tasks waiting in a lane.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private final Lane[] mLanes = new Lane[TaskPriority.values().length];
+    private final Scheduler mNotifyScheduler;
+
+    public PrioritizedLongTaskScheduler() {
+        this(AndroidSchedulers.mainThread(), Math.max(2, CPU_COUNT), Math.max(2, CPU_COUNT / 2),
+             1);
+    }
+
+    /**
+     * @param notifyScheduler the scheduler to be notified by the tasks on.
+     * @param userBlockingThreads the maximum number of the threads of the user blocking lane.
+     * @param normalThreads the maximum number of the threads of the normal lane.
+     * @param backgroundThreads the maximum number of the threads of the background lane.
+     */
+    public PrioritizedLongTaskScheduler(final Scheduler notifyScheduler,
+          final int userBlockingThreads, final int normalThreads, final int backgroundThreads) {
+        this(notifyScheduler, userBlockingThreads, normalThreads, backgroundThreads,
+             DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param notifyScheduler the scheduler to be notified by the tasks on.
+     * @param userBlockingThreads the maximum number of the threads of the user blocking lane.
+     * @param normalThreads the maximum number of the threads of the normal lane.
+     * @param backgroundThreads the maximum number of the threads of the background lane.
+     * @param queueCapacity the maximum number of the tasks waiting in a lane.
+     */
+    public PrioritizedLongTaskScheduler(final Scheduler notifyScheduler,
+          final int userBlockingThreads, final int normalThreads, final int backgroundThreads,
+          final int queueCapacity) {
+        mNotifyScheduler = notifyScheduler;
+        mLanes[TaskPriority.USER_BLOCKING.ordinal()] =
+              new Lane(TaskPriority.USER_BLOCKING, userBlockingThreads, Thread.NORM_PRIORITY + 1,
+                       queueCapacity);
+        mLanes[TaskPriority.NORMAL.ordinal()] =
+              new Lane(TaskPriority.NORMAL, normalThreads, Thread.NORM_PRIORITY, queueCapacity);
+        mLanes[TaskPriority.BACKGROUND.ordinal()] =
+              new Lane(TaskPriority.BACKGROUND, backgroundThreads, Thread.MIN_PRIORITY,
+                       queueCapacity);
+    }
+
+    /**
+     * Returns the instance shared by the application, with the default thread counts, used by
+     * the components not configured with their own.
+     */
+    public static PrioritizedLongTaskScheduler getInstance() {
+        return SInstanceHolder.sInstance;
+    }
+
+    /**
+     * Returns the scheduler of the {@link TaskPriority#NORMAL} lane.
+     */
+    @Override
+    public Scheduler performMeOn() {
+        return performMeOn(TaskPriority.NORMAL);
+    }
+
+    /**
+     * Returns the scheduler of the given priority lane to use in {@link
+     * rx.Observable#subscribeOn(Scheduler)} call.
+     */
+    public Scheduler performMeOn(final TaskPriority priority) {
+        return mLanes[priority.ordinal()].scheduler;
+    }
+
+    @Override
+    public Scheduler notifyMeOn() {
+        return mNotifyScheduler;
+    }
+
+    /**
+     * Returns the number of the tasks waiting in the given lane.
+     */
+    public int getQueueLength(final TaskPriority priority) {
+        final Lane lane = mLanes[priority.ordinal()];
+        return lane.executor.getQueue().size() + (lane.held == null ? 0 : lane.held.size());
+    }
+
+    /**
+     * Returns the number of the tasks rejected by the given lane, because its queue was full.
+     */
+    public long getRejectedCount(final TaskPriority priority) {
+        return mLanes[priority.ordinal()].rejected.get();
+    }
+
+    /**
+     * Returns the number of the tasks started in the given lane.
+     */
+    public long getStartedCount(final TaskPriority priority) {
+        return mLanes[priority.ordinal()].started.get();
+    }
+
+    /**
+     * Returns the average time the started tasks of the given lane waited in milliseconds.
+     */
+    public long getAverageWaitMillis(final TaskPriority priority) {
+        final Lane lane = mLanes[priority.ordinal()];
+        final long started = lane.started.get();
+        return started == 0 ? 0 : lane.totalWaitMillis.get() / started;
+    }
+
+    /**
+     * Returns the longest time a started task of the given lane waited in milliseconds.
+     */
+    public long getMaxWaitMillis(final TaskPriority priority) {
+        return mLanes[priority.ordinal()].maxWaitMillis.get();
+    }
+
+    /**
+     * Shuts down the thread pools of all the lanes. The running tasks are completed.
+     */
+    public void shutdown() {
+        for (Lane lane : mLanes) {
+            lane.executor.shutdown();
+        }
+    }
+
+    /**
+     * Hands the held background tasks to the free threads of the background lane, as long as no
+     * user blocking task is queued. Called when a background task is submitted or completed and
+     * when the user blocking queue drains.
+     */
+    private void dispatchBackground() {
+        final Lane background = mLanes[TaskPriority.BACKGROUND.ordinal()];
+        final BlockingQueue<Runnable> userBlockingQueue =
+              mLanes[TaskPriority.USER_BLOCKING.ordinal()].executor.getQueue();
+        synchronized (background) {
+            while (background.running < background.threads && userBlockingQueue.isEmpty()) {
+                final Runnable task = background.held.poll();
+                if (task == null) {
+                    return;
+                }
+                try {
+                    background.executor.execute(task);
+                    background.running++;
+                } catch (RejectedExecutionException e) {
+                    // Shut down, the held tasks are dropped.
+                    background.held.clear();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * The thread pool of a priority lane with its statistics. The background lane holds its
+     * tasks in {@link #held} until {@link #dispatchBackground()} hands them to its threads.
+     */
+    private final class Lane {
+        final String name;
+        final int threads;
+        final ThreadPoolExecutor executor;
+        final BlockingQueue<Runnable> held;
+        final Scheduler scheduler;
+        final AtomicLong started = new AtomicLong();
+        final AtomicLong totalWaitMillis = new AtomicLong();
+        final AtomicLong maxWaitMillis = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        /**
+         * The number of the held tasks handed to the executor, guarded by the lane.
+         */
+        int running;
+
+        Lane(final TaskPriority priority, final int threads, final int threadPriority,
+              final int queueCapacity) {
+            this.name = priority.name().toLowerCase();
+            this.threads = threads;
+            final String prefix = "neatier-" + name + "-";
+            final AtomicInteger threadCount = new AtomicInteger();
+            final ThreadFactory threadFactory = runnable -> {
+                Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+                thread.setPriority(threadPriority);
+                thread.setDaemon(true);
+                return thread;
+            };
+            final boolean isHeld = priority == TaskPriority.BACKGROUND;
+            held = isHeld ? new ArrayBlockingQueue<>(queueCapacity) : null;
+            // The held tasks are handed over only to the free threads, they never queue up.
+            final BlockingQueue<Runnable> queue =
+                  isHeld ? new LinkedBlockingQueue<>() : new ArrayBlockingQueue<>(queueCapacity);
+            executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+                                              TimeUnit.SECONDS, queue, threadFactory,
+                                              (runnable, pool) -> {
+                                                  throw reject();
+                                              }) {
+                @Override protected void beforeExecute(final Thread thread, final Runnable r) {
+                    if (priority == TaskPriority.USER_BLOCKING && getQueue().isEmpty()) {
+                        dispatchBackground();
+                    }
+                }
+
+                @Override protected void afterExecute(final Runnable r, final Throwable error) {
+                    if (isHeld) {
+                        synchronized (Lane.this) {
+                            running--;
+                        }
+                        dispatchBackground();
+                    }
+                }
+            };
+            executor.allowCoreThreadTimeOut(true);
+            scheduler = Schedulers.from(isHeld ? this::hold : this::submit);
+        }
+
+        void submit(final Runnable command) {
+            executor.execute(measured(command));
+        }
+
+        void hold(final Runnable command) {
+            if (executor.isShutdown() || !held.offer(measured(command))) {
+                throw reject();
+            }
+            dispatchBackground();
+        }
+
+        Runnable measured(final Runnable command) {
+            final long queuedAt = System.currentTimeMillis();
+            return () -> {
+                onStarted(System.currentTimeMillis() - queuedAt);
+                command.run();
+            };
+        }
+
+        RejectedExecutionException reject() {
+            rejected.incrementAndGet();
+            return new RejectedExecutionException(
+                  "The " + name + (executor.isShutdown() ? " lane is shut down" : " lane is full"));
+        }
+
+        void onStarted(final long waitMillis) {
+            started.incrementAndGet();
+            totalWaitMillis.addAndGet(waitMillis);
+            long max = maxWaitMillis.get();
+            while (waitMillis > max && !maxWaitMillis.compareAndSet(max, waitMillis)) {
+                max = maxWaitMillis.get();
+            }
+        }
+    }
+
+    private static class SInstanceHolder {
+        private static final PrioritizedLongTaskScheduler sInstance =
+              new PrioritizedLongTaskScheduler();
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+package com.neatier.commons.helpers;
+
+/**
+ * The priority lanes of the tasks performed by a {@link PrioritizedLongTaskScheduler}.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public enum TaskPriority {
+    /**
+     * Work the user is waiting for, like the reads of the visible screen.
+     */
+    USER_BLOCKING,
+
+    /**
+     * The default priority.
+     */
+    NORMAL,
+
+    /**
+     * Speculative work, like prefetching and cache warm-up, which yields under load.
+     */
+    BACKGROUND
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+package com.neatier.commons.helpers;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import trikita.log.Log;
+
+/**
+ * Central coordinator shrinking the registered {@link MemoryTrimmable} caches on memory
+ * pressure. Registered with {@link android.content.Context#registerComponentCallbacks}, it
+ * trims each cache by the fraction configured for the reported {@link #onTrimMemory(int)
+ * level}, and clears the {@link HeapHog}s and the framework text line cache when the fraction
+ * reaches 1. The caches and the heap hogs are held strongly, so the lambdas and the anonymous
+ * classes can be registered too, until they are {@link #unregister(Object) unregistered}.
+ * Register the caches of a repository explicitly, like {@code
+ * register("repository", repository)}, and unregister them when the repository is released.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class TrimMemoryCoordinator implements ComponentCallbacks2 {
+
+    /**
+     * Listener notified of the memory reclaimed by each trim.
+     */
+    public interface OnTrimListener {
+        /**
+         * Called after a trim with the results of the caches by their names.
+         */
+        void onTrimmed(int level, Map<String, TrimResult> results);
+    }
+
+    /**
+     * The level reported by {@link #onLowMemory()}.
+     */
+    public static final int LEVEL_LOW_MEMORY = TRIM_MEMORY_COMPLETE;
+
+    private final TreeMap<Integer, Float> mFractions = new TreeMap<>();
+    private final List<Registration> mRegistrations = new ArrayList<>();
+    private final List<HeapHog> mHeapHogs = new ArrayList<>();
+    private OnTrimListener mOnTrimListener;
+    private long mTrimmedEntries;
+    private long mTrimmedBytes;
+
+    public TrimMemoryCoordinator() {
+        mFractions.put(TRIM_MEMORY_RUNNING_MODERATE, 0.25f);
+        mFractions.put(TRIM_MEMORY_RUNNING_LOW, 0.5f);
+        mFractions.put(TRIM_MEMORY_RUNNING_CRITICAL, 0.75f);
+        mFractions.put(TRIM_MEMORY_UI_HIDDEN, 0.25f);
+        mFractions.put(TRIM_MEMORY_BACKGROUND, 0.5f);
+        mFractions.put(TRIM_MEMORY_MODERATE, 0.75f);
+        mFractions.put(TRIM_MEMORY_COMPLETE, 1f);
+    }
+
+    public static TrimMemoryCoordinator getInstance() {
+        return SInstanceHolder.sInstance;
+    }
+
+    /**
+     * Sets the fraction of the entries dropped on the given trim level and on the unconfigured
+     * levels above it.
+     */
+    public synchronized TrimMemoryCoordinator setTrimFraction(final int level,
+          final float fraction) {
+        mFractions.put(level, Math.max(0f, Math.min(1f, fraction)));
+        return this;
+    }
+
+    /**
+     * Returns the fraction of the entries dropped on the given trim level.
+     */
+    public synchronized float getTrimFraction(final int level) {
+        final Map.Entry<Integer, Float> entry = mFractions.floorEntry(level);
+        return entry != null ? entry.getValue() : 0f;
+    }
+
+    public synchronized TrimMemoryCoordinator setOnTrimListener(final OnTrimListener listener) {
+        mOnTrimListener = listener;
+        return this;
+    }
+
+    /**
+     * Registers the given cache with the given name used in the trim reports. The cache is held
+     * until it is {@link #unregister(Object) unregistered}.
+     */
+    public synchronized TrimMemoryCoordinator register(final String name,
+          final MemoryTrimmable trimmable) {
+        mRegistrations.add(new Registration(name, trimmable));
+        return this;
+    }
+
+    /**
+     * Registers the given {@link HeapHog} to be freed up when everything is trimmed. The heap
+     * hog is held until it is {@link #unregister(Object) unregistered}.
+     */
+    public synchronized TrimMemoryCoordinator register(final HeapHog heapHog) {
+        mHeapHogs.add(heapHog);
+        return this;
+    }
+
+    /**
+     * Unregisters the given cache or {@link HeapHog}, releasing it.
+     */
+    public synchronized void unregister(final Object trimmableOrHeapHog) {
+        final Iterator<Registration> registrations = mRegistrations.iterator();
+        while (registrations.hasNext()) {
+            if (registrations.next().trimmable == trimmableOrHeapHog) {
+                registrations.remove();
+            }
+        }
+        final Iterator<HeapHog> heapHogs = mHeapHogs.iterator();
+        while (heapHogs.hasNext()) {
+            if (heapHogs.next() == trimmableOrHeapHog) {
+                heapHogs.remove();
+            }
+        }
+    }
+
+    @Override public void onTrimMemory(final int level) {
+        trim(level);
+    }
+
+    @Override public void onLowMemory() {
+        trim(LEVEL_LOW_MEMORY);
+    }
+
+    @Override public void onConfigurationChanged(final Configuration newConfig) {
+        // no-op.
+    }
+
+    /**
+     * Trims the registered caches by the fraction of the given level.
+     *
+     * @return the results of the caches by their names.
+     */
+    public Map<String, TrimResult> trim(final int level) {
+        final float fraction = getTrimFraction(level);
+        final List<Registration> registrations;
+        final List<HeapHog> heapHogs;
+        final OnTrimListener listener;
+        synchronized (this) {
+            registrations = new ArrayList<>(mRegistrations);
+            heapHogs = new ArrayList<>(mHeapHogs);
+            listener = mOnTrimListener;
+        }
+        final Map<String, TrimResult> results = new LinkedHashMap<>();
+        if (fraction <= 0) {
+            return results;
+        }
+        for (int i = 0, len = registrations.size(); i < len; i++) {
+            final Registration registration = registrations.get(i);
+            final TrimResult result = registration.trimmable.trim(fraction);
+            final TrimResult previous = results.get(registration.name);
+            results.put(registration.name, previous != null ? previous.plus(result) : result);
+        }
+        if (fraction >= 1) {
+            for (int i = 0, len = heapHogs.size(); i < len; i++) {
+                heapHogs.get(i).freeUpHeap();
+            }
+            ClearLeakableHelper.clearTextLineCache();
+        }
+        TrimResult total = TrimResult.NONE;
+        for (TrimResult result : results.values()) {
+            total = total.plus(result);
+        }
+        synchronized (this) {
+            mTrimmedEntries += total.getEntries();
+            mTrimmedBytes += total.getBytes();
+        }
+        Log.d("trim", level, fraction, total, results);
+        if (listener != null) {
+            listener.onTrimmed(level, results);
+        }
+        return results;
+    }
+
+    /**
+     * Returns the number of the entries dropped by all the trims.
+     */
+    public synchronized long getTrimmedEntries() {
+        return mTrimmedEntries;
+    }
+
+    /**
+     * Returns the number of the bytes reclaimed by all the trims, as far as they were measured.
+     */
+    public synchronized long getTrimmedBytes() {
+        return mTrimmedBytes;
+    }
+
+    private static final class Registration {
+        final String name;
+        final MemoryTrimmable trimmable;
+
+        Registration(final String name, final MemoryTrimmable trimmable) {
+            this.name = name;
+            this.trimmable = trimmable;
+        }
+    }
+
+    private static class SInstanceHolder {
+        private static final TrimMemoryCoordinator sInstance = new TrimMemoryCoordinator();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+package com.neatier.commons.helpers;
+
+/**
+ * Immutable report of the memory reclaimed by a {@link MemoryTrimmable#trim(float)}.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public final class TrimResult {
+
+    /**
+     * The result of a trim reclaiming nothing.
+     */
+    public static final TrimResult NONE = new TrimResult(0, 0);
+
+    private final int entries;
+    private final long bytes;
+
+    /**
+     * @param entries the number of the entries dropped.
+     * @param bytes the approximate number of the bytes reclaimed, or 0 if not measured.
+     */
+    public TrimResult(final int entries, final long bytes) {
+        this.entries = entries;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Returns the number of the entries dropped, given the number of the stored entries and the
+     * fraction to drop.
+     */
+    public static int entriesToDrop(final int size, final float fraction) {
+        if (fraction <= 0 || size == 0) {
+            return 0;
+        }
+        return fraction >= 1 ? size : Math.min(size, (int) Math.ceil(size * fraction));
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the sum of this and the given result.
+     */
+    public TrimResult plus(final TrimResult other) {
+        return new TrimResult(entries + other.entries, bytes + other.bytes);
+    }
+
+    @Override public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        TrimResult that = (TrimResult) o;
+        return entries == that.entries && bytes == that.bytes;
+    }
+
+    @Override public int hashCode() {
+        return 31 * entries + (int) (bytes ^ (bytes >>> 32));
+    }
+
+    @Override public String toString() {
+        return "TrimResult{entries=" + entries + ", bytes=" + bytes + "}";
+    }
+}
@@ -15,6 +15,7 @@ package com.neatier.commons.data.caching;
 
 import com.neatier.commons.CommonsTestCase;
 import com.neatier.commons.helpers.KeyValuePairs;
+import com.neatier.commons.helpers.TrimResult;
 import org.junit.After;
 import org.junit.Test;
 import rx.Observable;
@@ -100,4 +101,16 @@ public class InMemoryOnDeviceKeyedStorageTest extends CommonsTestCase {
         Observable<Long> actualKeys = mInMemoryKeyedStorage.keys();
         assertObservableHappyCase(actualKeys, null, null, FAKE_KEY, FAKE_KEY_2);
     }
+
+    @Test
+    public void trim_ShouldRemoveLeastRecentlyUsed_AndEstimateTheirSize() throws Exception {
+        mInMemoryKeyedStorage.writeKeyedContent(FAKE_KEY, "entity1");
+        mInMemoryKeyedStorage.writeKeyedContent(FAKE_KEY_2, "entity2");
+        //Reading the first entry makes the second one the least recently used.
+        mInMemoryKeyedStorage.readOneByKey(FAKE_KEY);
+
+        assertThat(mInMemoryKeyedStorage.trim(0.5f), is(new TrimResult(1, 14)));
+        assertThat(mInMemoryKeyedStorage.containsKey(FAKE_KEY), is(true));
+        assertThat(mInMemoryKeyedStorage.containsKey(FAKE_KEY_2), is(false));
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+package com.neatier.commons.helpers;
+
+import com.neatier.commons.CommonsTestCase;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+import rx.Observable;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class PrioritizedLongTaskSchedulerTest extends CommonsTestCase {
+
+    private PrioritizedLongTaskScheduler mScheduler =
+          new PrioritizedLongTaskScheduler(Schedulers.immediate(), 1, 1, 1);
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdown();
+    }
+
+    @Test
+    public void performMeOn_ShouldRunOnNamedThreadOfLane() throws Exception {
+        String threadName = Observable.defer(() -> Observable.just(
+              Thread.currentThread().getName()))
+                                      .subscribeOn(mScheduler.performMeOn(
+                                            TaskPriority.BACKGROUND))
+                                      .toBlocking().single();
+
+        assertThat(threadName.startsWith("neatier-background-"), is(true));
+        assertThat(mScheduler.getStartedCount(TaskPriority.BACKGROUND), is(1L));
+        assertThat(mScheduler.getStartedCount(TaskPriority.USER_BLOCKING), is(0L));
+    }
+
+    @Test
+    public void getQueueLength_ShouldCountWaitingTasks_WhenLaneBusy() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            Observable.defer(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Observable.just(true);
+            }).subscribeOn(mScheduler.performMeOn(TaskPriority.USER_BLOCKING))
+                      .subscribe(v -> done.countDown());
+        }
+        Thread.sleep(50);
+
+        assertThat(mScheduler.getQueueLength(TaskPriority.USER_BLOCKING), is(1));
+        release.countDown();
+        assertThat(done.await(1, TimeUnit.SECONDS), is(true));
+        assertThat(mScheduler.getQueueLength(TaskPriority.USER_BLOCKING), is(0));
+        assertThat(mScheduler.getMaxWaitMillis(TaskPriority.USER_BLOCKING) >= 40, is(true));
+    }
+
+    @Test
+    public void performMeOn_ShouldHoldBackgroundTask_UntilUserBlockingQueueDrains()
+          throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        for (int i = 0; i < 2; i++) {
+            blockOn(mScheduler.performMeOn(TaskPriority.USER_BLOCKING), release, done);
+        }
+        Thread.sleep(50);
+        Observable.just(true)
+                  .subscribeOn(mScheduler.performMeOn(TaskPriority.BACKGROUND))
+                  .subscribe(v -> done.countDown());
+        Thread.sleep(50);
+
+        assertThat(mScheduler.getStartedCount(TaskPriority.BACKGROUND), is(0L));
+        assertThat(mScheduler.getQueueLength(TaskPriority.BACKGROUND), is(1));
+        release.countDown();
+        assertThat(done.await(1, TimeUnit.SECONDS), is(true));
+        assertThat(mScheduler.getStartedCount(TaskPriority.BACKGROUND), is(1L));
+        assertThat(mScheduler.getQueueLength(TaskPriority.BACKGROUND), is(0));
+    }
+
+    @Test
+    public void performMeOn_ShouldRejectTask_WhenLaneQueueIsFull() throws Exception {
+        mScheduler.shutdown();
+        mScheduler = new PrioritizedLongTaskScheduler(Schedulers.immediate(), 1, 1, 1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            blockOn(mScheduler.performMeOn(TaskPriority.NORMAL), release, done);
+        }
+        Thread.sleep(50);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Observable.just(true)
+                  .subscribeOn(mScheduler.performMeOn(TaskPriority.NORMAL))
+                  .subscribe(v -> { }, error::set);
+
+        assertThat(error.get() instanceof RejectedExecutionException, is(true));
+        assertThat(mScheduler.getRejectedCount(TaskPriority.NORMAL), is(1L));
+        release.countDown();
+        assertThat(done.await(1, TimeUnit.SECONDS), is(true));
+    }
+
+    private void blockOn(final Scheduler scheduler, final CountDownLatch release,
+          final CountDownLatch done) {
+        Observable.defer(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Observable.just(true);
+        }).subscribeOn(scheduler).subscribe(v -> done.countDown());
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+package com.neatier.commons.helpers;
+
+import android.content.ComponentCallbacks2;
+import com.neatier.commons.CommonsTestCase;
+import java.util.Map;
+import org.junit.Test;
+
+import static com.neatier.commons.helpers.TrimMemoryCoordinator.LEVEL_LOW_MEMORY;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class TrimMemoryCoordinatorTest extends CommonsTestCase {
+
+    private final TrimMemoryCoordinator mCoordinator = new TrimMemoryCoordinator();
+    private final FakeCache mCache = new FakeCache(8);
+    private boolean mHeapFreed;
+
+    @Test
+    public void onTrimMemory_ShouldTrimByFractionOfLevel() throws Exception {
+        mCoordinator.register("fake", mCache).register(() -> mHeapFreed = true);
+        mCoordinator.setTrimFraction(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN, 0.5f);
+
+        Map<String, TrimResult> results =
+              mCoordinator.trim(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+
+        assertThat(results.get("fake"), is(new TrimResult(4, 400)));
+        assertThat(mCache.size, is(4));
+        assertThat(mHeapFreed, is(false));
+        assertThat(mCoordinator.getTrimmedBytes(), is(400L));
+    }
+
+    @Test
+    public void onLowMemory_ShouldTrimEverythingAndFreeUpHeapHogs() throws Exception {
+        mCoordinator.register("fake", mCache).register(() -> mHeapFreed = true);
+
+        mCoordinator.onLowMemory();
+
+        assertThat(mCache.size, is(0));
+        assertThat(mHeapFreed, is(true));
+        assertThat(mCoordinator.getTrimmedEntries(), is(8L));
+    }
+
+    @Test
+    public void trim_ShouldKeepRegisteredLambdas_UntilUnregistered() throws Exception {
+        final HeapHog heapHog = () -> mHeapFreed = true;
+        mCoordinator.register("lambda", fraction -> new TrimResult(1, 0)).register(heapHog);
+        System.gc();
+
+        assertThat(mCoordinator.trim(LEVEL_LOW_MEMORY).get("lambda"), is(new TrimResult(1, 0)));
+        assertThat(mHeapFreed, is(true));
+
+        mHeapFreed = false;
+        mCoordinator.unregister(heapHog);
+        mCoordinator.trim(LEVEL_LOW_MEMORY);
+        assertThat(mHeapFreed, is(false));
+    }
+
+    @Test
+    public void getTrimFraction_ShouldUseNearestLowerLevel() throws Exception {
+        assertThat(mCoordinator.getTrimFraction(0), is(0f));
+        assertThat(mCoordinator.getTrimFraction(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND + 5),
+                   is(mCoordinator.getTrimFraction(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)));
+    }
+
+    private static final class FakeCache implements MemoryTrimmable {
+        int size;
+
+        FakeCache(final int size) {
+            this.size = size;
+        }
+
+        @Override public TrimResult trim(final float fraction) {
+            final int count = TrimResult.entriesToDrop(size, fraction);
+            size -= count;
+            return new TrimResult(count, count * 100);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+package com.neatier.data.entity;
+
+import com.google.gson.TypeAdapter;
+import com.neatier.commons.data.caching.InMemoryKeyedStorage;
+import com.neatier.commons.data.caching.OnDeviceKeyedStorage;
+import com.neatier.commons.helpers.MemoryTrimmable;
+import com.neatier.commons.helpers.TrimResult;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import rx.Observable;
+
+/**
+ * In-memory {@link OnDeviceKeyTypedValueStorage} bounded by the number of its entries and
+ * optionally by their total weight, computed by a {@link Weigher}. When a bound is exceeded,
+ * the least recently used entries are evicted and reported to the {@link EvictionListener}. The
+ * reads of the values are counted as hits or misses.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the values.
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class BoundedInMemoryKeyTypedValueStorage<K, V>
+      implements OnDeviceKeyTypedValueStorage<K, V>, InMemoryKeyedStorage<K>, MemoryTrimmable {
+
+    public static final int DEFAULT_MAX_ENTRIES = 500;
+    public static final long NO_MAX_WEIGHT = -1;
+
+    /**
+     * Computes the weight of an entry, typically its approximate size in bytes.
+     */
+    public interface Weigher<K, V> {
+        /**
+         * Returns the non-negative weight of the given entry.
+         */
+        int weigh(K key, V value);
+    }
+
+    /**
+     * Listener notified of the entries evicted to keep the storage within its bounds.
+     */
+    public interface EvictionListener<K, V> {
+        /**
+         * Called with the evicted entry, after it was removed from the storage.
+         */
+        void onEvicted(K key, V value);
+    }
+
+    private final Class<K> keyClass;
+    private final TypeAdapter<V> typeAdapter;
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashMap<K, Integer> weights = new HashMap<>();
+    private final HashMap<K, CacheEntryMetadata> metadata = new HashMap<>();
+
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private long maxWeight = NO_MAX_WEIGHT;
+    private Weigher<K, V> weigher;
+    private EvictionListener<K, V> evictionListener;
+    private final List<EvictionListener<K, V>> evictionListeners = new CopyOnWriteArrayList<>();
+    private long totalWeight;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    public BoundedInMemoryKeyTypedValueStorage(final Class<K> keyClass,
+          final TypeAdapter<V> typeAdapter) {
+        this.keyClass = keyClass;
+        this.typeAdapter = typeAdapter;
+    }
+
+    /**
+     * Returns a {@link Weigher} measuring the entries by the length of their JSON form written
+     * by the given type adapter.
+     */
+    public static <K, V> Weigher<K, V> serializedSizeWeigher(final TypeAdapter<V> typeAdapter) {
+        return (key, value) -> typeAdapter.toJson(value).length();
+    }
+
+    /**
+     * Sets the maximum number of the entries, evicting the least recently used ones above it.
+     */
+    public BoundedInMemoryKeyTypedValueStorage<K, V> setMaxEntries(final int maxEntries) {
+        List<Map.Entry<K, V>> evicted;
+        synchronized (this) {
+            this.maxEntries = maxEntries;
+            evicted = evictIfNeeded();
+        }
+        notifyEvicted(evicted);
+        return this;
+    }
+
+    /**
+     * Sets the maximum total weight of the entries measured by the given weigher, evicting the
+     * least recently used ones above it. An entry heavier than the maximum is not kept.
+     *
+     * @param maxWeight the maximum weight, or {@link #NO_MAX_WEIGHT}.
+     */
+    public BoundedInMemoryKeyTypedValueStorage<K, V> setMaxWeight(final long maxWeight,
+          final Weigher<K, V> weigher) {
+        List<Map.Entry<K, V>> evicted;
+        synchronized (this) {
+            this.maxWeight = maxWeight;
+            this.weigher = weigher;
+            totalWeight = 0;
+            for (Map.Entry<K, V> entry : entries.entrySet()) {
+                final int weight = weigh(entry.getKey(), entry.getValue());
+                weights.put(entry.getKey(), weight);
+                totalWeight += weight;
+            }
+            evicted = evictIfNeeded();
+        }
+        notifyEvicted(evicted);
+        return this;
+    }
+
+    public BoundedInMemoryKeyTypedValueStorage<K, V> setEvictionListener(
+          final EvictionListener<K, V> evictionListener) {
+        this.evictionListener = evictionListener;
+        return this;
+    }
+
+    /**
+     * Adds a listener notified of the evicted entries next to the one set by {@link
+     * #setEvictionListener(EvictionListener)}, for the components built on this storage.
+     */
+    public BoundedInMemoryKeyTypedValueStorage<K, V> addEvictionListener(
+          final EvictionListener<K, V> evictionListener) {
+        evictionListeners.add(evictionListener);
+        return this;
+    }
+
+    public BoundedInMemoryKeyTypedValueStorage<K, V> removeEvictionListener(
+          final EvictionListener<K, V> evictionListener) {
+        evictionListeners.remove(evictionListener);
+        return this;
+    }
+
+    @Override public void writeKeyedContent(final K key, final V content) {
+        writeEntry(key, content, null);
+    }
+
+    /**
+     * Stores the given value and its metadata, if any, under one lock, so a reader never sees
+     * the value without its metadata.
+     */
+    @Override public void writeEntry(final K key, final V content,
+          final CacheEntryMetadata metadata) {
+        List<Map.Entry<K, V>> evicted;
+        synchronized (this) {
+            final int weight = weigh(key, content);
+            entries.put(key, content);
+            final Integer previous = weights.put(key, weight);
+            totalWeight += weight - (previous != null ? previous : 0);
+            if (metadata != null) {
+                this.metadata.put(key, metadata);
+            }
+            evicted = evictIfNeeded();
+        }
+        notifyEvicted(evicted);
+    }
+
+    /**
+     * Returns the value of the given key, or null if it is not stored. The read makes the entry
+     * the most recently used one.
+     */
+    @Override public synchronized V readOneByKey(final K key) {
+        final V value = entries.get(key);
+        if (value != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the value of the given key like {@link #readOneByKey(Object)}, without counting it
+     * as a hit or a miss, for the internal reads of the writes and the index maintenance.
+     */
+    public synchronized V peekOneByKey(final K key) {
+        return entries.get(key);
+    }
+
+    @Override public synchronized Observable readAll() {
+        return Observable.from(new ArrayList<>(entries.values()));
+    }
+
+    @Override public synchronized void removeOneByKey(final K key) {
+        if (entries.remove(key) != null) {
+            totalWeight -= weights.remove(key);
+        }
+        metadata.remove(key);
+    }
+
+    /**
+     * Returns true if the given key is stored. A missing key is counted as a miss, as it is
+     * checked before the reads. Use {@link #peekOneByKey(Object)} to check it uncounted.
+     */
+    @Override public synchronized boolean containsKey(final K key) {
+        final boolean contains = entries.containsKey(key);
+        if (!contains) {
+            missCount++;
+        }
+        return contains;
+    }
+
+    @Override public synchronized void clear() {
+        entries.clear();
+        weights.clear();
+        metadata.clear();
+        totalWeight = 0;
+    }
+
+    @Override public synchronized Observable keys() {
+        return Observable.from(new ArrayList<>(entries.keySet()));
+    }
+
+    @Override public synchronized List<K> keySnapshot() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    @Override public TypeAdapter<V> getTypeAdapter() {
+        return typeAdapter;
+    }
+
+    @Override public Class<K> getKeyClass() {
+        return keyClass;
+    }
+
+    @Override public synchronized void writeEntryMetadata(final K key,
+          final CacheEntryMetadata metadata) {
+        if (entries.containsKey(key)) {
+            this.metadata.put(key, metadata);
+        }
+    }
+
+    @Override public synchronized CacheEntryMetadata readEntryMetadata(final K key) {
+        return metadata.get(key);
+    }
+
+    /**
+     * Evicts the given fraction of the entries, the least recently used ones first. The
+     * reclaimed bytes are measured by the weigher.
+     */
+    @Override public TrimResult trim(final float fraction) {
+        List<Map.Entry<K, V>> evicted;
+        final long weightBefore;
+        final long weightAfter;
+        synchronized (this) {
+            weightBefore = totalWeight;
+            final int count = TrimResult.entriesToDrop(entries.size(), fraction);
+            final int savedMaxEntries = maxEntries;
+            maxEntries = entries.size() - count;
+            evicted = evictIfNeeded();
+            maxEntries = savedMaxEntries;
+            weightAfter = totalWeight;
+        }
+        notifyEvicted(evicted);
+        return new TrimResult(evicted != null ? evicted.size() : 0, weightBefore - weightAfter);
+    }
+
+    /**
+     * Returns the number of the stored entries.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the total weight of the stored entries, or 0 without a weigher.
+     */
+    public synchronized long getWeight() {
+        return totalWeight;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the ratio of the hits among all the counted reads, or 0 if there were none.
+     */
+    public synchronized double getHitRate() {
+        final long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Resets the hit, miss and eviction counters.
+     */
+    public synchronized void resetStats() {
+        hitCount = 0;
+        missCount = 0;
+        evictionCount = 0;
+    }
+
+    private int weigh(final K key, final V value) {
+        return weigher != null ? weigher.weigh(key, value) : 0;
+    }
+
+    /**
+     * Removes the least recently used entries until the storage is within its bounds, and
+     * returns them.
+     */
+    private List<Map.Entry<K, V>> evictIfNeeded() {
+        List<Map.Entry<K, V>> evicted = null;
+        final Iterator<Map.Entry<K, V>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext() && (entries.size() > maxEntries
+              || (maxWeight != NO_MAX_WEIGHT && totalWeight > maxWeight))) {
+            final Map.Entry<K, V> eldest = iterator.next();
+            final K key = eldest.getKey();
+            if (evicted == null) {
+                evicted = new ArrayList<>();
+            }
+            evicted.add(new AbstractMap.SimpleImmutableEntry<>(key, eldest.getValue()));
+            iterator.remove();
+            totalWeight -= weights.remove(key);
+            metadata.remove(key);
+            evictionCount++;
+        }
+        return evicted;
+    }
+
+    private void notifyEvicted(final List<Map.Entry<K, V>> evicted) {
+        if (evicted == null) {
+            return;
+        }
+        final EvictionListener<K, V> listener = evictionListener;
+        for (int i = 0, len = evicted.size(); i < len; i++) {
+            final K key = evicted.get(i).getKey();
+            final V value = evicted.get(i).getValue();
+            if (listener != null) {
+                listener.onEvicted(key, value);
+            }
+            for (EvictionListener<K, V> added : evictionListeners) {
+                added.onEvicted(key, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+
+package com.neatier.data.entity;
+
+/**
+ * Immutable metadata stored next to each cached value in an {@link
+ * OnDeviceKeyTypedValueStorage}: the time the value was written, its time-to-live, and the
+ * 64 bit hash of its serialized content to detect unchanged rewrites.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public final class CacheEntryMetadata {
+
+    /**
+     * Time-to-live value meaning the entry never expires.
+     */
+    public static final long NO_EXPIRY = 0;
+
+    /**
+     * Content hash value meaning the hash of the content is unknown.
+     */
+    public static final long NO_CONTENT_HASH = 0;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final String SEPARATOR = ";";
+
+    private final long writtenAtMillis;
+    private final long ttlMillis;
+    private final long contentHash;
+
+    public CacheEntryMetadata(final long writtenAtMillis, final long ttlMillis) {
+        this(writtenAtMillis, ttlMillis, NO_CONTENT_HASH);
+    }
+
+    public CacheEntryMetadata(final long writtenAtMillis, final long ttlMillis,
+          final long contentHash) {
+        this.writtenAtMillis = writtenAtMillis;
+        this.ttlMillis = ttlMillis;
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Returns the metadata decoded from the given string, created by {@link #encode()}, or null
+     * if it is null or malformed.
+     */
+    public static CacheEntryMetadata decode(final String encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        String[] parts = encoded.split(SEPARATOR);
+        if (parts.length < 2) {
+            return null;
+        }
+        try {
+            return new CacheEntryMetadata(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                                          parts.length > 2 ? Long.parseLong(parts[2])
+                                                           : NO_CONTENT_HASH);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the 64 bit FNV-1a hash of the given serialized content, never {@link
+     * #NO_CONTENT_HASH}. Unlike {@link Object#hashCode()} of the value, it depends only on the
+     * stored form of the content.
+     */
+    public static long hashContent(final String serialized) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0, len = serialized.length(); i < len; i++) {
+            hash = (hash ^ serialized.charAt(i)) * FNV_PRIME;
+        }
+        return hash == NO_CONTENT_HASH ? 1 : hash;
+    }
+
+    /**
+     * Returns the string representation of this metadata to be stored.
+     *
+     * @see #decode(String)
+     */
+    public String encode() {
+        return writtenAtMillis + SEPARATOR + ttlMillis + SEPARATOR + contentHash;
+    }
+
+    /**
+     * Returns the wall clock time in milliseconds when the entry was written.
+     */
+    public long getWrittenAtMillis() {
+        return writtenAtMillis;
+    }
+
+    /**
+     * Returns the time-to-live of the entry in milliseconds, or {@link #NO_EXPIRY}.
+     */
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * Returns the hash of the content of the entry, or {@link #NO_CONTENT_HASH}.
+     */
+    public long getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Returns true if the content hash is known and equals to the given one.
+     */
+    public boolean hasContentHash(final long hash) {
+        return contentHash != NO_CONTENT_HASH && contentHash == hash;
+    }
+
+    /**
+     * Returns true if the entry has a time-to-live and it elapsed at the given time.
+     */
+    public boolean isExpired(final long nowMillis) {
+        return ttlMillis != NO_EXPIRY && nowMillis - writtenAtMillis >= ttlMillis;
+    }
+
+    @Override public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        CacheEntryMetadata that = (CacheEntryMetadata) o;
+        return writtenAtMillis == that.writtenAtMillis && ttlMillis == that.ttlMillis
+              && contentHash == that.contentHash;
+    }
+
+    @Override public int hashCode() {
+        int result = 31 * (int) (writtenAtMillis ^ (writtenAtMillis >>> 32))
+              + (int) (ttlMillis ^ (ttlMillis >>> 32));
+        return 31 * result + (int) (contentHash ^ (contentHash >>> 32));
+    }
+
+    @Override public String toString() {
+        return "CacheEntryMetadata{writtenAt=" + writtenAtMillis + ", ttl=" + ttlMillis
+              + ", contentHash=" + contentHash + "}";
+    }
+}
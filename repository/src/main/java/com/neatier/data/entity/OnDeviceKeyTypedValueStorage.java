@@ -20,4 +20,29 @@ public interface OnDeviceKeyTypedValueStorage<K, V> extends OnDeviceKeyedStorage
      * Returns the class of the key.
      */
     Class<K> getKeyClass();
+
+    /**
+     * Stores the given value and its metadata in one write, so they are never persisted apart.
+     *
+     * @param key the key of the value
+     * @param content the value
+     * @param metadata the metadata of the value
+     */
+    void writeEntry(K key, V content, CacheEntryMetadata metadata);
+
+    /**
+     * Stores the given metadata next to the value identified by the key.
+     *
+     * @param key the key of the value
+     * @param metadata the metadata of the value
+     */
+    void writeEntryMetadata(K key, CacheEntryMetadata metadata);
+
+    /**
+     * Returns the metadata stored next to the value identified by the key, or null if there is
+     * none.
+     *
+     * @param key the key of the value
+     */
+    CacheEntryMetadata readEntryMetadata(K key);
 }
@@ -18,6 +18,14 @@ import rx.Observable;
 public abstract class PreferencesTypedValueKeyStorage<K, V> extends PreferencesOnDeviceStorage<K, V>
       implements OnDeviceKeyTypedValueStorage<K, V> {
 
+    /**
+     * Prefix of the keys of the encoded {@link CacheEntryMetadata} of the entries. The metadata
+     * is kept in the preference file of the values, so a value and its metadata are committed
+     * together in one write. The keys with this prefix are left out of the {@link #keys()} and
+     * {@link #readAll()} of the stored values.
+     */
+    public static final String METADATA_KEY_PREFIX = "#metadata:";
+
     final Gson mGson;
 
     public PreferencesTypedValueKeyStorage(final Context context,
@@ -31,6 +39,14 @@ public abstract class PreferencesTypedValueKeyStorage<K, V> extends PreferencesO
                                  getTypeAdapter().toJson(content)).commit();
     }
 
+    @Override public void writeEntry(final K key, final V content,
+          final CacheEntryMetadata metadata) {
+        final String storeableKey = (String) getStoreableKey(key);
+        mSharedKeyValueStore.put(storeableKey, getTypeAdapter().toJson(content))
+                            .put(getMetadataKey(key), metadata.encode())
+                            .commit();
+    }
+
     @Override public V readOneByKey(final K key) {
         V emptyValue = (V) "{}";
         Object result = mSharedKeyValueStore.getOrDefault(getStoreableKey(key), emptyValue);
@@ -41,8 +57,31 @@ public abstract class PreferencesTypedValueKeyStorage<K, V> extends PreferencesO
         }
     }
 
+    @Override public void writeEntryMetadata(final K key, final CacheEntryMetadata metadata) {
+        mSharedKeyValueStore.put(getMetadataKey(key), metadata.encode()).commit();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public CacheEntryMetadata readEntryMetadata(final K key) {
+        return CacheEntryMetadata.decode(
+              (String) mSharedKeyValueStore.getOrDefault((K) getMetadataKey(key), null));
+    }
+
+    @Override public void removeOneByKey(final K key) {
+        mSharedKeyValueStore.remove((String) getStoreableKey(key))
+                            .remove(getMetadataKey(key))
+                            .commit();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public Observable readAll() {
+        return keys().map(key -> mSharedKeyValueStore.getOrDefault(getStoreableKey((K) key),
+                                                                   null));
+    }
+
     @Override public Observable<Object> keys() {
-        return mSharedKeyValueStore.keysAsStream().map(o -> {
+        return mSharedKeyValueStore.keysAsStream().filter(
+              o -> !((String) o).startsWith(METADATA_KEY_PREFIX)).map(o -> {
             if (getKeyClass() == Long.class) {
                 return Long.parseLong(((String) o).substring(keyPrefix.length()));
             } else if (getKeyClass() == Integer.class) {
@@ -53,6 +92,10 @@ public abstract class PreferencesTypedValueKeyStorage<K, V> extends PreferencesO
         });
     }
 
+    private String getMetadataKey(final K key) {
+        return METADATA_KEY_PREFIX + getStoreableKey(key);
+    }
+
     @Override public abstract TypeAdapter<V> getTypeAdapter();
 
     @Override public abstract Class<K> getKeyClass();
@@ -16,20 +16,51 @@ package com.neatier.repository;
 
 import android.support.annotation.NonNull;
 import com.fernandocejas.frodo.annotation.RxLogObservable;
+import com.neatier.commons.data.caching.InMemoryOnDeviceKeyedStorage;
+import com.neatier.commons.data.caching.OnDeviceKeyedStorage;
+import com.neatier.commons.exception.CircuitOpenException;
 import com.neatier.commons.exception.InternalErrorException;
+import com.neatier.commons.exception.NetworkConnectionException;
 import com.neatier.commons.helpers.KeyValuePairs;
+import com.neatier.commons.helpers.MemoryTrimmable;
 import com.neatier.commons.helpers.Preconditions;
+import com.neatier.commons.helpers.PrioritizedLongTaskScheduler;
+import com.neatier.commons.helpers.TaskPriority;
+import com.neatier.commons.helpers.TrimResult;
 import com.neatier.data.entity.Identifiable;
 import com.neatier.repository.datasource.AsyncCacheDataSource;
+import com.neatier.repository.datasource.AsyncDataSources.BatchReadableAsyncDataSource;
+import com.neatier.repository.datasource.AsyncDataSources.DeltaReadableAsyncDataSource;
+import com.neatier.repository.datasource.AsyncDataSources.PagedReadableAsyncDataSource;
 import com.neatier.repository.datasource.AsyncDataSources.ReadableAsyncDataSource;
 import com.neatier.repository.datasource.AsyncDataSources.WriteableAsyncDataSource;
+import com.neatier.repository.datasource.Delta;
+import com.neatier.repository.datasource.Page;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import rx.Observable;
+import rx.Scheduler;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.observables.AsyncOnSubscribe;
+import rx.schedulers.Schedulers;
+import rx.subjects.PublishSubject;
+import rx.subjects.Subject;
 import trikita.log.Log;
 
 /**
@@ -41,31 +72,121 @@ import trikita.log.Log;
  */
 public class AsyncRepository<K, V extends Identifiable<K>>
       implements ReadableAsyncDataSource<K, V>,
-                 WriteableAsyncDataSource<K, V> {
+                 WriteableAsyncDataSource<K, V>,
+                 MemoryTrimmable {
 
     /**
-     * A {@link LinkedList} of {@link ReadableAsyncDataSource}s to lookup the key or value
+     * An ordered {@link List} of {@link ReadableAsyncDataSource}s to lookup the key or value
      * sequentially.
      */
-    private final Collection<ReadableAsyncDataSource<K, V>> readableDataSources =
-            new LinkedList<>();
+    private final List<ReadableAsyncDataSource<K, V>> readableDataSources = new ArrayList<>();
 
     /**
-     * A {@link LinkedList} of {@link WriteableAsyncDataSource}s to write the entries into each one
-     * sequentially.
+     * The {@link CircuitBreaker}s of the readables, in the order of {@link #readableDataSources}.
+     */
+    private final List<CircuitBreaker> circuitBreakers = new ArrayList<>();
+
+    /**
+     * The {@link LatencyTracker}s of the readables, in the order of {@link #readableDataSources}.
+     */
+    private final List<LatencyTracker> latencyTrackers = new ArrayList<>();
+
+    /**
+     * An ordered {@link List} of {@link WriteableAsyncDataSource}s to write the entries into each
+     * one sequentially.
      */
-    private final Collection<WriteableAsyncDataSource<K, V>> writeableDataSources =
-            new LinkedList<>();
+    private final List<WriteableAsyncDataSource<K, V>> writeableDataSources = new ArrayList<>();
 
     /**
-     * A {@link LinkedList} of {@link AsyncCacheDataSource}s to lookup the key or value
-     * in multiple caches sequentially.
+     * An ordered {@link List} of {@link AsyncCacheDataSource} tiers, L1 being the first
+     * registered (and fastest) one. Keys are looked up tier by tier, stopping at the first hit.
      */
-    private final Collection<AsyncCacheDataSource<K, V>> cacheDataSources = new LinkedList<>();
+    private final List<AsyncCacheDataSource<K, V>> cacheDataSources = new ArrayList<>();
+
+    /**
+     * The default window of coalescing the changes emitted by the change streams.
+     */
+    public static final long DEFAULT_CHANGE_WINDOW_MILLIS = 50;
+
+    /**
+     * The number of the keys read and written together by the cache warm-up.
+     */
+    public static final int WARM_UP_BATCH_SIZE = 50;
+
+    /**
+     * The number of the keys whose last emitted value is remembered by each {@link
+     * #observeAll(Func1)} stream to leave out the unchanged updates.
+     */
+    public static final int MAX_TRACKED_CHANGES = 1000;
+
+    /**
+     * The delay of the hedged lookup until the latency of the readable can be estimated.
+     */
+    public static final long DEFAULT_HEDGE_DELAY_MILLIS = 200;
+
+    private static final String CURSOR_CACHE = "c";
+    private static final String CURSOR_READABLE = "r";
+    private static final String CURSOR_SEPARATOR = ":";
 
     private ReadPolicy mReadPolicy = ReadPolicy.READ_ALL;
     private WritePolicy mWritePolicy = WritePolicy.WRITE_ALL;
     private CachePolicy mCachePolicy = CachePolicy.CACHE_ALL;
+    private ReadableMode mReadableMode = ReadableMode.MERGE;
+    private long mHedgeDelayMillis = DEFAULT_HEDGE_DELAY_MILLIS;
+    private Scheduler mHedgeScheduler = Schedulers.computation();
+    private Scheduler mCacheScheduler = Schedulers.io();
+    private RepositoryMetrics mMetrics = RepositoryMetrics.NONE;
+    private MutationLog<K, V> mMutationLog;
+    private long mChangeWindowMillis = DEFAULT_CHANGE_WINDOW_MILLIS;
+    private Scheduler mChangeScheduler = Schedulers.computation();
+
+    /**
+     * The stream of the changes made through this repository.
+     */
+    private final Subject<RepositoryChange<K, V>, RepositoryChange<K, V>> changes =
+          PublishSubject.<RepositoryChange<K, V>>create().toSerialized();
+
+    /**
+     * The {@link ReadableAsyncDataSource} lookups in progress, shared between concurrent callers.
+     */
+    private final InFlightRequests<K, V> inFlightRequests = new InFlightRequests<>();
+
+    /**
+     * The keys recently reported missing by the {@link ReadableAsyncDataSource}s.
+     */
+    private final NegativeResultCache<K> negativeResultCache = new NegativeResultCache<>();
+
+    /**
+     * The bounded queue of the values to be written into the caches on the cache scheduler.
+     */
+    private final CachePopulator<K, V> cachePopulator =
+          new CachePopulator<K, V>(this::getCacheTargets).setScheduler(mCacheScheduler);
+
+    /**
+     * The ordered key lists of the query results, resolved from the caches.
+     */
+    private final QueryResultCache<K> queryResultCache = new QueryResultCache<>();
+
+    /**
+     * The queue of the pending writes of the {@link WritePolicy#WRITE_BEHIND} policy.
+     */
+    private final WriteBehindQueue<K, V> writeBehindQueue =
+          new WriteBehindQueue<>(this::writeToWriteables);
+
+    /**
+     * The background loader of the values predicted to be accessed soon, on the background lane
+     * of the shared {@link PrioritizedLongTaskScheduler} by default.
+     */
+    private final Prefetcher<K, V> prefetcher =
+          new Prefetcher<K, V>(keys -> getByKeys(keys, ReadPolicy.READ_ALL, null),
+                               this::isPrefetchNeedless).setScheduler(
+                PrioritizedLongTaskScheduler.getInstance().performMeOn(TaskPriority.BACKGROUND));
+
+    /**
+     * The sync tokens of the {@link DeltaReadableAsyncDataSource}s per collection.
+     */
+    private OnDeviceKeyedStorage<String, String> syncTokenStorage =
+          new InMemoryOnDeviceKeyedStorage<>(new KeyValuePairs<>());
 
     public AsyncRepository() {
         super();
@@ -74,7 +195,11 @@ public class AsyncRepository<K, V extends Identifiable<K>>
     @SafeVarargs
     public final <R extends ReadableAsyncDataSource<K, V>> void addReadableDataSources(
           R... readableDataSources) {
-        this.readableDataSources.addAll(Arrays.asList(readableDataSources));
+        for (R readableDataSource : readableDataSources) {
+            this.readableDataSources.add(readableDataSource);
+            circuitBreakers.add(new CircuitBreaker(readableDataSource.getClass().getSimpleName()));
+            latencyTrackers.add(new LatencyTracker());
+        }
     }
 
     @SafeVarargs
@@ -83,6 +208,11 @@ public class AsyncRepository<K, V extends Identifiable<K>>
         this.writeableDataSources.addAll(Arrays.asList(writeableDataSources));
     }
 
+    /**
+     * Registers the given {@link AsyncCacheDataSource}s as the next cache tiers. The order of
+     * the registration defines the tier order, so the fastest (in-memory) caches should be
+     * added first, the persistent ones after them.
+     */
     @SafeVarargs public final <R extends AsyncCacheDataSource<K, V>> void addCacheDataSources(
           R... cacheDataSources) {
         this.cacheDataSources.addAll(Arrays.asList(cacheDataSources));
@@ -103,49 +233,270 @@ public class AsyncRepository<K, V extends Identifiable<K>>
           final KeyValuePairs<String, Object> requestParams) {
         validateKey(key);
         Log.d("getByKeyAsync", key, policy);
+        if (policy == ReadPolicy.READ_ALL || policy == ReadPolicy.CACHE_ONLY) {
+            return Observable.defer(() -> {
+                final V value = getIfPresent(key);
+                return value != null ? Observable.just(value)
+                                     : getByKeyFromSources(key, policy, requestParams, true);
+            });
+        }
+        return getByKeyFromSources(key, policy, requestParams, false);
+    }
+
+    /**
+     * Returns an Observable reading the value of the given key from the caches and the
+     * readables according to the given policy, without the in-memory fast path. The in-memory
+     * tiers are not looked up again if the given flag is set, as the fast path missed them.
+     */
+    private Observable<V> getByKeyFromSources(final K key, final ReadPolicy policy,
+          final KeyValuePairs<String, Object> requestParams, final boolean inMemoryChecked) {
+        if (policy == ReadPolicy.STALE_WHILE_REVALIDATE) {
+            return getValueFromCaches(key).toList().flatMap(cached -> {
+                if (cached.isEmpty()) {
+                    return fetchFromReadables(key, requestParams);
+                }
+                final V stale = cached.get(0);
+                return Observable.just(stale).concatWith(
+                      fetchFromReadables(key, requestParams)
+                            .filter(fresh -> !fresh.equals(stale))
+                            .onErrorResumeNext(throwable -> {
+                                Log.w("getByKeyAsync", "revalidation failed", key, throwable);
+                                return Observable.empty();
+                            }));
+            });
+        }
         return Observable.just(policy).flatMap(p -> {
             if (p.useCache()) {
-                return getValueFromCaches(key)
+                return getValueFromCaches(key, inMemoryChecked)
                       .switchIfEmpty(
                             Observable.just(p).filter(readPolicy -> p.useReadable())
-                                      .flatMap(readPolicy -> getValueFromReadables(key,
-                                                                                   requestParams))
+                                      .flatMap(readPolicy -> fetchFromReadables(key,
+                                                                                requestParams))
                       );
             } else {
-                return getValueFromReadables(key, requestParams);
+                return fetchFromReadables(key, requestParams).onErrorResumeNext(
+                      throwable -> throwable instanceof CircuitOpenException
+                                   ? getValueFromCaches(key).switchIfEmpty(
+                                         Observable.error(throwable))
+                                   : Observable.error(throwable));
             }
-        }).flatMap(value -> {
-            try {
-                populateCaches(value);
-                return Observable.just(value);
-            } catch (Exception e) {
-                return Observable.error(new InternalErrorException(e));
+        });
+    }
+
+    /**
+     * Returns the value of the given key synchronously from the {@link
+     * AsyncCacheDataSource#isInMemory() in-memory} cache tiers, or null if none of them
+     * contains it. The persistent tiers and the readables are not consulted, and nothing is
+     * allocated on a hit, so it suits the hot paths like list binding.
+     */
+    public V getIfPresent(final K key) {
+        validateKey(key);
+        for (int tier = 0, len = cacheDataSources.size(); tier < len; tier++) {
+            final AsyncCacheDataSource<K, V> cacheDataSource = cacheDataSources.get(tier);
+            if (!cacheDataSource.isInMemory()) {
+                continue;
+            }
+            final long start = mMetrics == RepositoryMetrics.NONE ? 0 : System.nanoTime();
+            final V value = cacheDataSource.getIfPresent(key);
+            if (mMetrics != RepositoryMetrics.NONE) {
+                mMetrics.onLookup(RepositoryMetrics.Source.CACHE, tier, value != null,
+                                  System.nanoTime() - start);
+            }
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops the given fraction of the entries of the {@link AsyncCacheDataSource#isInMemory()
+     * in-memory} cache tiers and of the {@link QueryResultCache}, to be registered with a {@link
+     * com.neatier.commons.helpers.TrimMemoryCoordinator}. The persistent tiers are left intact,
+     * so the dropped values are read from them again.
+     */
+    @Override public TrimResult trim(final float fraction) {
+        TrimResult result = new TrimResult(queryResultCache.trim(fraction), 0);
+        for (int tier = 0, len = cacheDataSources.size(); tier < len; tier++) {
+            final AsyncCacheDataSource<K, V> cacheDataSource = cacheDataSources.get(tier);
+            if (cacheDataSource.isInMemory()) {
+                result = result.plus(cacheDataSource.trim(fraction));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns all the values of the {@link AsyncCacheDataSource#isInMemory() in-memory} cache
+     * tiers synchronously. A value stored in multiple tiers is returned once, from the fastest
+     * tier.
+     */
+    public List<V> peekAll() {
+        final Map<K, V> values = new LinkedHashMap<>();
+        for (int tier = cacheDataSources.size() - 1; tier >= 0; tier--) {
+            final AsyncCacheDataSource<K, V> cacheDataSource = cacheDataSources.get(tier);
+            if (cacheDataSource.isInMemory()) {
+                final List<V> tierValues = cacheDataSource.peekAll();
+                for (int i = 0, len = tierValues.size(); i < len; i++) {
+                    V value = tierValues.get(i);
+                    values.put(value.getKey(), value);
+                }
             }
+        }
+        return new ArrayList<>(values.values());
+    }
+
+    /**
+     * Starts loading the values of the given keys into the caches in the background, for the
+     * keys predicted to be accessed soon, like the details of the first visible list rows. The
+     * keys found in the {@link AsyncCacheDataSource#isInMemory() in-memory} cache tiers, being
+     * looked up, or recently reported missing are skipped. The prefetch is limited by the
+     * budget of the {@link #getPrefetcher() prefetcher}.
+     *
+     * @return the subscription of the prefetch, to cancel it.
+     */
+    public Subscription prefetch(final Collection<K> keys) {
+        validateKeys(keys);
+        return prefetcher.prefetch(keys);
+    }
+
+    /**
+     * Returns an Observable emitting the list of values found by the given keys, in the order of
+     * the keys. As many keys as possible are answered from the {@link AsyncCacheDataSource}s,
+     * only the misses are fetched from the readables in one batched call, and the fetched values
+     * are written into the caches with a single bulk write. While the circuit of a readable is
+     * open, the cached values are emitted without the missing ones instead of failing.
+     *
+     * @param keys the keys to lookup
+     * @param policy the read policy
+     * @param requestParams the request parameters passed to the readables
+     * @see BatchReadableAsyncDataSource#getByKeys(Collection, KeyValuePairs)
+     */
+    @RxLogObservable(RxLogObservable.Scope.NOTHING)
+    public Observable<List<V>> getByKeys(final Collection<K> keys, final ReadPolicy policy,
+          final KeyValuePairs<String, Object> requestParams) {
+        validateKeys(keys);
+        Log.d("getByKeys", keys.size(), policy);
+        return Observable.defer(() -> {
+            final Map<K, V> found = new HashMap<>(keys.size());
+            final Observable<Map<K, V>> cached = policy.useCache()
+                  ? getValuesFromCaches(keys, found)
+                  : Observable.just(found);
+            return cached.flatMap(hits -> {
+                final List<K> misses = new ArrayList<>();
+                for (K key : new LinkedHashSet<>(keys)) {
+                    if (!hits.containsKey(key)
+                          && !negativeResultCache.isMissing(key, requestParams)) {
+                        misses.add(key);
+                    }
+                }
+                if (misses.isEmpty() || !policy.useReadable()) {
+                    return Observable.just(hits);
+                }
+                return fetchAllFromReadables(misses, requestParams).toList().map(values -> {
+                    for (int i = 0, len = values.size(); i < len; i++) {
+                        V value = values.get(i);
+                        hits.put(value.getKey(), value);
+                    }
+                    return hits;
+                }).onErrorResumeNext(throwable -> throwable instanceof CircuitOpenException
+                                                  ? Observable.just(hits)
+                                                  : Observable.error(throwable));
+            }).map(values -> {
+                final List<V> result = new ArrayList<>(values.size());
+                for (K key : keys) {
+                    V value = values.get(key);
+                    if (value != null) {
+                        result.add(value);
+                    }
+                }
+                return result;
+            });
         });
     }
 
     @RxLogObservable(RxLogObservable.Scope.NOTHING)
     public Observable<List<V>> getAllAsync(final ReadPolicy policy,
           final KeyValuePairs<String, Object> requestPatams) {
+        if (policy == ReadPolicy.STALE_WHILE_REVALIDATE) {
+            return getSnapshotFromCaches(requestPatams).flatMap(stale -> {
+                Observable<List<V>> fresh = getValuesFromReadables(requestPatams)
+                      .doOnNext(this::populateCaches);
+                if (stale.isEmpty()) {
+                    return fresh;
+                }
+                return Observable.just(stale).concatWith(
+                      fresh.filter(values -> isChanged(stale, values))
+                           .onErrorResumeNext(throwable -> {
+                               Log.w("getAllAsync", "revalidation failed", throwable);
+                               return Observable.empty();
+                           }));
+            });
+        }
         return Observable.just(policy).flatMap(p -> {
             if (p.useCache()) {
-                return getValuesFromCaches()
+                return getValuesFromCaches(requestPatams)
                       .flatMap(list -> list.isEmpty() ? Observable.empty() : Observable.just(list))
                       .switchIfEmpty(
                             Observable.just(p).filter(readPolicy -> p.useReadable())
                                       .flatMap(readPolicy -> getValuesFromReadables(requestPatams))
                       );
             } else {
-                return getValuesFromReadables(requestPatams);
+                return getValuesFromReadables(requestPatams).onErrorResumeNext(
+                      throwable -> throwable instanceof CircuitOpenException
+                                   ? getValuesFromCaches(requestPatams)
+                                         .filter(list -> !list.isEmpty())
+                                         .switchIfEmpty(Observable.error(throwable))
+                                   : Observable.error(throwable));
             }
-        }).flatMap(values -> {
-            try {
-                populateCaches(values);
-                return Observable.just(values);
-            } catch (Exception e) {
-                return Observable.error(new InternalErrorException(e));
-            }
-        });
+        }).doOnNext(this::populateCaches);
+    }
+
+    /**
+     * Returns an Observable emitting the values page by page, starting from the page of the
+     * given cursor, using the read policy of the repository.
+     *
+     * @see #getAllPagedAsync(int, String, ReadPolicy, KeyValuePairs)
+     */
+    public Observable<Page<V>> getAllPaged(final int pageSize, final String cursor,
+          final KeyValuePairs<String, Object> requestParams) {
+        return getAllPagedAsync(pageSize, cursor, mReadPolicy, requestParams);
+    }
+
+    /**
+     * Returns an Observable emitting the values page by page, starting from the page of the
+     * given cursor. The next page is read asynchronously, only when the downstream requests it,
+     * so at most one page is held in memory. The values are paged from the most complete
+     * non-empty cache tier if the policy uses caches, otherwise from the readables one after the
+     * other, populating the caches with each page read. Readables not implementing {@link
+     * PagedReadableAsyncDataSource} are read as one page.
+     *
+     * @param pageSize the maximum number of the values in a page.
+     * @param cursor the {@link Page#getNextCursor()} of a previously emitted page to resume
+     * from, or null to start from the first page.
+     * @param policy the read policy
+     * @param requestParams the request parameters passed to the readables
+     */
+    @RxLogObservable(RxLogObservable.Scope.NOTHING)
+    public Observable<Page<V>> getAllPagedAsync(final int pageSize, final String cursor,
+          final ReadPolicy policy, final KeyValuePairs<String, Object> requestParams) {
+        Preconditions.checkArgument(pageSize > 0, "The page size must be positive.");
+        return Observable.create(AsyncOnSubscribe.<AtomicReference<String>, Page<V>>createStateful(
+              () -> new AtomicReference<>(cursor == null ? "" : cursor),
+              (pageCursor, requested, observer) -> {
+                  observer.onNext(
+                        readPage(pageSize, pageCursor.get(), policy, requestParams)
+                              .single()
+                              .doOnNext(page -> {
+                                  pageCursor.set(page.getNextCursor());
+                                  if (!page.hasNext()) {
+                                      observer.onCompleted();
+                                  }
+                              })
+                              .onErrorResumeNext(throwable -> Observable.error(
+                                    new InternalErrorException(throwable))));
+                  return pageCursor;
+              }));
     }
 
     @RxLogObservable(RxLogObservable.Scope.NOTHING)
@@ -155,6 +506,18 @@ public class AsyncRepository<K, V extends Identifiable<K>>
 
     @RxLogObservable(RxLogObservable.Scope.NOTHING)
     public Observable<V> addOrUpdateAsync(final V value, final WritePolicy policy) {
+        if (policy == WritePolicy.WRITE_BEHIND) {
+            return Observable.defer(() -> {
+                final boolean changed = isChanged(value);
+                return writeCaches(Collections.singletonList(value)).map(written -> {
+                    writeBehindQueue.enqueue(value);
+                    if (changed) {
+                        publishChange(RepositoryChange.updated(value.getKey(), value));
+                    }
+                    return value;
+                });
+            });
+        }
         return Observable.from(writeableDataSources)
                          .toList().switchMap(dataSources -> {
                   int len = dataSources.size();
@@ -163,15 +526,20 @@ public class AsyncRepository<K, V extends Identifiable<K>>
                   } else {
                       return Observable.from(dataSources);
                   }
-              }).flatMap(dataSource -> dataSource.addOrUpdate(value))
+              }).flatMap(dataSource -> measureWrite(dataSource, dataSource.addOrUpdate(value)))
                          .takeLast(1)
+                         .doOnNext(v -> discardMutation(v.getKey()))
+                         .onErrorResumeNext(
+                               throwable -> logMutation(throwable, MutationLog.Mutation.put(value))
+                                     .map(logged -> value))
                          .flatMap(v -> {
-                             try {
-                                 populateCaches(v);
-                                 return Observable.just(v);
-                             } catch (Exception e) {
-                                 return Observable.error(new InternalErrorException(e));
-                             }
+                             final boolean changed = isChanged(v);
+                             return writeCaches(Collections.singletonList(v)).map(written -> {
+                                 if (changed) {
+                                     publishChange(RepositoryChange.updated(v.getKey(), v));
+                                 }
+                                 return v;
+                             });
                          }).takeLast(1);
     }
 
@@ -184,6 +552,36 @@ public class AsyncRepository<K, V extends Identifiable<K>>
     @RxLogObservable(RxLogObservable.Scope.NOTHING)
     public Observable<List<V>> addOrUpdateAllAsync(final Collection<V> values,
           final WritePolicy policy, final KeyValuePairs<String, Object> requestParams) {
+        if (policy == WritePolicy.WRITE_BEHIND) {
+            return Observable.defer(() -> {
+                final List<V> queued = new ArrayList<>(values);
+                final List<V> changed = filterChanged(queued);
+                return writeCaches(queued).map(written -> {
+                    for (int i = 0, len = queued.size(); i < len; i++) {
+                        writeBehindQueue.enqueue(queued.get(i));
+                    }
+                    publishUpdates(changed);
+                    return queued;
+                });
+            });
+        }
+        return addOrUpdateAllThrough(values, policy, requestParams, true);
+    }
+
+    @RxLogObservable(RxLogObservable.Scope.NOTHING)
+    public Observable<Boolean> deleteByKey(K key,
+          final KeyValuePairs<String, Object> requestParams) {
+        return deleteByKeyThrough(key, requestParams, true);
+    }
+
+    /**
+     * Writes the given values into the writeables, then into the caches. With the given flag
+     * set, the values failed to be written for a {@link NetworkConnectionException} are logged
+     * into the {@link MutationLog} and written into the caches optimistically.
+     */
+    private Observable<List<V>> addOrUpdateAllThrough(final Collection<V> values,
+          final WritePolicy policy, final KeyValuePairs<String, Object> requestParams,
+          final boolean logOffline) {
         return Observable.from(writeableDataSources)
                          .toList().switchMap(dataSources -> {
                   int len = dataSources.size();
@@ -192,22 +590,35 @@ public class AsyncRepository<K, V extends Identifiable<K>>
                   } else {
                       return Observable.from(dataSources);
                   }
-              }).flatMap(dataSource -> dataSource.addOrUpdateAll(values, requestParams))
+              }).flatMap(dataSource -> measureWrite(
+                    dataSource, dataSource.addOrUpdateAll(values, requestParams)))
                          .takeLast(1)
-                         .flatMap(v -> {
-                             try {
-                                 populateCaches(v);
-                                 return Observable.just(v);
-                             } catch (Exception e) {
-                                 return Observable.error(new InternalErrorException(e));
+                         .doOnNext(written -> {
+                             if (logOffline) {
+                                 discardMutations(written);
                              }
+                         })
+                         .onErrorResumeNext(throwable -> logOffline
+                                                         ? logPutMutations(throwable, values)
+                                                         : Observable.error(throwable))
+                         .flatMap(v -> {
+                             final List<V> changed = filterChanged(v);
+                             return writeCaches(v).map(written -> {
+                                 publishUpdates(changed);
+                                 return v;
+                             });
                          });
     }
 
-    @RxLogObservable(RxLogObservable.Scope.NOTHING)
-    public Observable<Boolean> deleteByKey(K key,
-          final KeyValuePairs<String, Object> requestParams) {
+    /**
+     * Deletes the given key from the writeables, then from the caches. With the given flag set,
+     * a deletion failed for a {@link NetworkConnectionException} is logged into the {@link
+     * MutationLog} and performed on the caches optimistically.
+     */
+    private Observable<Boolean> deleteByKeyThrough(final K key,
+          final KeyValuePairs<String, Object> requestParams, final boolean logOffline) {
         return Observable.from(writeableDataSources)
+                         .doOnSubscribe(() -> writeBehindQueue.discard(key))
                          .toList().switchMap(dataSources -> {
                   int len = dataSources.size();
                   if (len > 0 && mWritePolicy == WritePolicy.WRITE_ONCE) {
@@ -215,14 +626,26 @@ public class AsyncRepository<K, V extends Identifiable<K>>
                   } else {
                       return Observable.from(dataSources);
                   }
-              }).flatMap(dataSource -> dataSource.deleteByKey(key, requestParams))
+              }).flatMap(dataSource -> measureWrite(
+                    dataSource, dataSource.deleteByKey(key, requestParams)))
                          .takeLast(1)
+                         .doOnNext(v -> {
+                             if (logOffline) {
+                                 discardMutation(key);
+                             }
+                         })
+                         .onErrorResumeNext(throwable -> logOffline
+                                                         ? logMutation(throwable, MutationLog
+                                                               .Mutation.<K, V>delete(key))
+                                                         : Observable.error(throwable))
+                         .doOnNext(v -> publishChange(RepositoryChange.deleted(key)))
                          .flatMap(v -> removeFromCaches(key));
     }
 
     @RxLogObservable(RxLogObservable.Scope.NOTHING)
     public Observable<Boolean> deleteAll(final KeyValuePairs<String, Object> requestParams) {
         return Observable.from(writeableDataSources)
+                         .doOnSubscribe(writeBehindQueue::discardAll)
                          .toList().switchMap(dataSources -> {
                   int len = dataSources.size();
                   if (len > 0 && mWritePolicy == WritePolicy.WRITE_ONCE) {
@@ -230,21 +653,265 @@ public class AsyncRepository<K, V extends Identifiable<K>>
                   } else {
                       return Observable.from(dataSources);
                   }
-              }).flatMap(dataSource -> dataSource.deleteAll(requestParams))
+              }).flatMap(dataSource -> measureWrite(dataSource,
+                                                    dataSource.deleteAll(requestParams)))
                          .takeLast(1)
+                         .doOnNext(v -> {
+                             queryResultCache.clear();
+                             syncTokenStorage.clear();
+                             publishChange(RepositoryChange.cleared());
+                         })
                          .flatMap(v -> clearCaches());
     }
 
+    /**
+     * Returns an Observable syncing the caches with the changes of the collection identified by
+     * the given request parameters since its last sync. Each registered {@link
+     * DeltaReadableAsyncDataSource} is asked for the changes since its stored sync token, and the
+     * {@link Delta} is applied to every {@link AsyncCacheDataSource} in one batched write before
+     * the new token is stored. Without a stored token the whole collection is loaded. The
+     * applied deltas are emitted, and their changes are published to the change streams.
+     *
+     * @see #setSyncTokenStorage(OnDeviceKeyedStorage)
+     */
+    @SuppressWarnings("unchecked")
+    public Observable<Delta<K, V>> getAllSince(final KeyValuePairs<String, Object> requestParams) {
+        return Observable.range(0, readableDataSources.size())
+                         .filter(index -> readableDataSources.get(index)
+                                          instanceof DeltaReadableAsyncDataSource)
+                         .concatMap(index -> syncDelta(
+                               index, (DeltaReadableAsyncDataSource<K, V>) readableDataSources
+                                     .get(index), requestParams));
+    }
+
+    /**
+     * Returns a hot Observable emitting the changes of the value of the given key made through
+     * this repository, including the {@link RepositoryChange.Type#CLEARED} changes. The changes
+     * within each change window are coalesced into the last one, which is emitted at the end of
+     * the window even if the changes keep coming, and repeated equal changes are emitted only
+     * once.
+     *
+     * @see #setChangeWindow(long, TimeUnit, Scheduler)
+     */
+    public Observable<RepositoryChange<K, V>> observeByKey(final K key) {
+        validateKey(key);
+        return changes.filter(change -> change.getType() == RepositoryChange.Type.CLEARED
+                                        || key.equals(change.getKey()))
+                      .throttleLast(mChangeWindowMillis, TimeUnit.MILLISECONDS,
+                                    mChangeScheduler)
+                      .distinctUntilChanged();
+    }
+
+    /**
+     * Returns a hot Observable emitting the list of the changes made through this repository
+     * within each change window, coalesced per key, so each key appears once with its last
+     * change. A {@link RepositoryChange.Type#CLEARED} change drops the changes before it in the
+     * window. Updates to the value already emitted for the key are left out, and empty windows
+     * are not emitted. The last emitted values are remembered for the {@link
+     * #MAX_TRACKED_CHANGES} most recently changed keys only, so a repeated update of a key
+     * changed longer ago may be emitted again.
+     *
+     * @param filter predicate selecting the updated values to observe, the deletions are always
+     * emitted.
+     * @see #setChangeWindow(long, TimeUnit, Scheduler)
+     */
+    public Observable<List<RepositoryChange<K, V>>> observeAll(final Func1<V, Boolean> filter) {
+        return Observable.defer(() -> {
+            final Map<K, V> emitted = new LinkedHashMap<K, V>(16, 0.75f, true) {
+                @Override protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+                    return size() > MAX_TRACKED_CHANGES;
+                }
+            };
+            return changes.filter(change -> change.getType() != RepositoryChange.Type.UPDATED
+                                            || filter.call(change.getValue()))
+                          .buffer(mChangeWindowMillis, TimeUnit.MILLISECONDS, mChangeScheduler)
+                          .map(window -> coalesceChanges(window, emitted))
+                          .filter(window -> !window.isEmpty())
+                          .onBackpressureBuffer();
+        });
+    }
+
+    /**
+     * Sets the window in which the changes are coalesced by {@link #observeByKey(Object)} and
+     * {@link #observeAll(Func1)}, and the {@link Scheduler} on which the windows are timed.
+     * Affects only the streams observed afterwards.
+     */
+    public AsyncRepository setChangeWindow(final long window, final TimeUnit unit,
+          final Scheduler scheduler) {
+        mChangeWindowMillis = unit.toMillis(window);
+        mChangeScheduler = scheduler;
+        return this;
+    }
+
+    /**
+     * Returns an Observable writing all the pending {@link WritePolicy#WRITE_BEHIND} writes into
+     * the writeables immediately, emitting the written values.
+     */
+    public Observable<List<V>> flushWriteBehind() {
+        return writeBehindQueue.flush();
+    }
+
+    /**
+     * Sets the {@link MutationLog} recording the writes and deletions failed for a {@link
+     * NetworkConnectionException}, to replay them later by {@link #replayMutations()}. The
+     * logged writes are applied to the caches optimistically, and reported as succeeded. Without
+     * a log, which is the default, such writes fail.
+     */
+    public AsyncRepository setMutationLog(final MutationLog<K, V> mutationLog) {
+        mMutationLog = mutationLog;
+        return this;
+    }
+
+    public MutationLog<K, V> getMutationLog() {
+        return mMutationLog;
+    }
+
+    /**
+     * Returns an Observable replaying the pending mutations of the {@link MutationLog} through
+     * the writeables, emitting the number of the replayed mutations. It should be subscribed to
+     * when the connectivity returns. The writes are coalesced into batches written by {@link
+     * #addOrUpdateAll(Collection, KeyValuePairs)}, the deletions are performed by {@link
+     * #deleteByKey(Object, KeyValuePairs)}, both without request parameters. A replay failing
+     * again leaves the rest of the mutations in the log. A mutation is replayed to all the
+     * writeables, including those which accepted it before another one failed, so they have to
+     * apply the replayed writes and deletions idempotently.
+     */
+    public Observable<Integer> replayMutations() {
+        final MutationLog<K, V> mutationLog = mMutationLog;
+        if (mutationLog == null) {
+            return Observable.just(0);
+        }
+        return mutationLog.replay(
+              values -> addOrUpdateAllThrough(values, mWritePolicy, null, false),
+              key -> deleteByKeyThrough(key, null, false))
+                          .reduce(0, (total, replayed) -> total + replayed);
+    }
+
+    /**
+     * Returns the {@link WriteBehindQueue} of the {@link WritePolicy#WRITE_BEHIND} policy, to
+     * configure its limits, scheduler and flush failure listener.
+     */
+    public WriteBehindQueue<K, V> getWriteBehindQueue() {
+        return writeBehindQueue;
+    }
+
+    /**
+     * Returns the {@link Prefetcher} of {@link #prefetch(Collection)}, to configure its budget
+     * and scheduler, to cancel the prefetches and to read its counters.
+     */
+    public Prefetcher<K, V> getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Returns the {@link QueryResultCache} of the query results, to configure its size and
+     * time-to-live.
+     */
+    public QueryResultCache<K> getQueryResultCache() {
+        return queryResultCache;
+    }
+
+    /**
+     * Returns the {@link NegativeResultCache} of the keys reported missing by the readables, to
+     * configure its size and time-to-live.
+     */
+    public NegativeResultCache<K> getNegativeResultCache() {
+        return negativeResultCache;
+    }
+
+    /**
+     * Returns the {@link CircuitBreaker} of the given registered readable, to configure its
+     * timeout, failure rate threshold and open duration.
+     *
+     * @throws IllegalArgumentException if the readable is not registered.
+     */
+    public CircuitBreaker getCircuitBreaker(final ReadableAsyncDataSource<K, V> dataSource) {
+        final int index = readableDataSources.indexOf(dataSource);
+        Preconditions.checkArgument(index >= 0, "The readable is not registered.");
+        return circuitBreakers.get(index);
+    }
+
     public AsyncRepository setReadPolicy(final ReadPolicy readPolicy) {
         mReadPolicy = readPolicy;
         return this;
     }
 
+    /**
+     * Sets how the key lookups are distributed among the readables.
+     */
+    public AsyncRepository setReadableMode(final ReadableMode readableMode) {
+        mReadableMode = readableMode;
+        return this;
+    }
+
+    /**
+     * Sets the delay of the {@link ReadableMode#HEDGED} lookups used until the 95th percentile
+     * latency of a readable can be estimated, and the {@link Scheduler} timing the delays.
+     */
+    public AsyncRepository setHedgeDelay(final long defaultDelay, final TimeUnit unit,
+          final Scheduler scheduler) {
+        mHedgeDelayMillis = unit.toMillis(defaultDelay);
+        mHedgeScheduler = scheduler;
+        return this;
+    }
+
+    /**
+     * Returns the {@link LatencyTracker} of the given registered readable, estimating its
+     * latency for the {@link ReadableMode#HEDGED} lookups.
+     *
+     * @throws IllegalArgumentException if the readable is not registered.
+     */
+    public LatencyTracker getLatencyTracker(final ReadableAsyncDataSource<K, V> dataSource) {
+        final int index = readableDataSources.indexOf(dataSource);
+        Preconditions.checkArgument(index >= 0, "The readable is not registered.");
+        return latencyTrackers.get(index);
+    }
+
     public AsyncRepository setWritePolicy(final WritePolicy writePolicy) {
         mWritePolicy = writePolicy;
         return this;
     }
 
+    /**
+     * Sets the {@link RepositoryMetrics} to report the data source calls to.
+     *
+     * @see CounterRepositoryMetrics
+     */
+    public AsyncRepository setMetrics(final RepositoryMetrics metrics) {
+        mMetrics = metrics != null ? metrics : RepositoryMetrics.NONE;
+        cachePopulator.setMetrics(mMetrics);
+        return this;
+    }
+
+    /**
+     * Sets the storage of the sync tokens of {@link #getAllSince(KeyValuePairs)}, to keep them
+     * across restarts together with the persistent caches. By default they are kept in memory.
+     */
+    public AsyncRepository setSyncTokenStorage(
+          final OnDeviceKeyedStorage<String, String> tokenStorage) {
+        syncTokenStorage = Preconditions.checkNotNull(tokenStorage,
+                                                      "The token storage can't be null.");
+        return this;
+    }
+
+    /**
+     * Returns the {@link CachePopulator} writing the values read or written into the caches, to
+     * configure its capacity and overflow policy, and to read its counters.
+     */
+    public CachePopulator<K, V> getCachePopulator() {
+        return cachePopulator;
+    }
+
+    /**
+     * Sets the {@link Scheduler} on which the asynchronous cache writes are performed. The
+     * prefetches are performed on the scheduler of the {@link #getPrefetcher() prefetcher}.
+     */
+    public AsyncRepository setCacheScheduler(final Scheduler cacheScheduler) {
+        mCacheScheduler = cacheScheduler;
+        cachePopulator.setScheduler(cacheScheduler);
+        return this;
+    }
+
     public AsyncRepository setCachePolicy(
           final CachePolicy cachePolicy) {
         mCachePolicy = cachePolicy;
@@ -252,14 +919,136 @@ public class AsyncRepository<K, V extends Identifiable<K>>
     }
 
     /**
-     * Lookup for the given key in any of the registered {@link AsyncCacheDataSource}s
-     * and returns an Observable emitting the value. It can produce multiple values, depending
-     * on whether which cache contains the given key.
+     * Returns an Observable preloading the values of the given keys from a persistent cache tier
+     * into a faster, typically in-memory tier, to spare the one by one disk reads and parsing of
+     * the first lookups after a cold start. The keys are read and written in batches of {@link
+     * #WARM_UP_BATCH_SIZE} in one sequential pass on the cache scheduler, and a {@link
+     * WarmUpProgress} is emitted after each batch. Keys missing from the source are skipped.
+     *
+     * @param source the registered cache tier to load the values from.
+     * @param target the registered cache tier to load the values into.
+     * @param keys the keys to preload.
+     * @throws IllegalArgumentException if any of the tiers is not registered.
+     */
+    public Observable<WarmUpProgress> warmUp(final AsyncCacheDataSource<K, V> source,
+          final AsyncCacheDataSource<K, V> target, final Collection<K> keys) {
+        validateKeys(keys);
+        return warmUp(source, target, () -> new ArrayList<>(keys));
+    }
+
+    /**
+     * Returns an Observable preloading the given number of the most recently written values of a
+     * persistent cache tier into a faster tier, like {@link #warmUp(AsyncCacheDataSource,
+     * AsyncCacheDataSource, Collection)}, the latest ones first.
+     *
+     * @param source the registered cache tier to load the values from.
+     * @param target the registered cache tier to load the values into.
+     * @param count the maximum number of the values to preload.
+     * @throws IllegalArgumentException if any of the tiers is not registered.
+     * @see AsyncCacheDataSource#getMostRecentKeys(int)
+     */
+    public Observable<WarmUpProgress> warmUpMostRecent(final AsyncCacheDataSource<K, V> source,
+          final AsyncCacheDataSource<K, V> target, final int count) {
+        Preconditions.checkArgument(count > 0, "The count must be positive.");
+        return warmUp(source, target, () -> source.getMostRecentKeys(count));
+    }
+
+    private Observable<WarmUpProgress> warmUp(final AsyncCacheDataSource<K, V> source,
+          final AsyncCacheDataSource<K, V> target, final Func0<List<K>> keysToLoad) {
+        Preconditions.checkArgument(cacheDataSources.contains(source),
+                                    "The source tier is not registered.");
+        Preconditions.checkArgument(cacheDataSources.contains(target),
+                                    "The target tier is not registered.");
+        Preconditions.checkArgument(source != target, "The source and target tiers are the same.");
+        return Observable.defer(() -> {
+            final long startNanos = System.nanoTime();
+            final List<K> keys = keysToLoad.call();
+            final int total = keys.size();
+            final int[] processed = new int[1];
+            final int[] loaded = new int[1];
+            Log.d("warmUp", total);
+            return Observable.from(keys)
+                             .buffer(WARM_UP_BATCH_SIZE)
+                             .concatMap(batch -> warmUpBatch(source, target, batch))
+                             .map(values -> {
+                                 processed[0] = Math.min(total,
+                                                         processed[0] + WARM_UP_BATCH_SIZE);
+                                 loaded[0] += values.size();
+                                 return new WarmUpProgress(processed[0], loaded[0], total,
+                                                           TimeUnit.NANOSECONDS.toMillis(
+                                                                 System.nanoTime() - startNanos));
+                             })
+                             .defaultIfEmpty(new WarmUpProgress(0, 0, 0, 0))
+                             .doOnCompleted(() -> Log.d("warmUp completed", loaded[0], total));
+        }).subscribeOn(mCacheScheduler);
+    }
+
+    /**
+     * Reads the values of the given keys from the source tier in one call, and writes the ones
+     * found into the target tier, emitting them.
+     */
+    private Observable<List<V>> warmUpBatch(final AsyncCacheDataSource<K, V> source,
+          final AsyncCacheDataSource<K, V> target, final List<K> batch) {
+        return source.getByKeysAsync(batch).toList().concatMap(
+              values -> values.isEmpty()
+                        ? Observable.just(values)
+                        : target.addOrUpdateAllAsync(values).map(written -> values));
+    }
+
+    /**
+     * Returns true if the value of the given key is in an in-memory cache tier, is being looked
+     * up, or was recently reported missing. Unlike {@link #getIfPresent(Object)}, no lookup is
+     * reported to the metrics.
+     */
+    private boolean isPrefetchNeedless(final K key) {
+        if (inFlightRequests.isInFlight(key) || negativeResultCache.isMissing(key, null)) {
+            return true;
+        }
+        for (int tier = 0, len = cacheDataSources.size(); tier < len; tier++) {
+            final AsyncCacheDataSource<K, V> cacheDataSource = cacheDataSources.get(tier);
+            if (cacheDataSource.isInMemory() && cacheDataSource.getIfPresent(key) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lookup for the given key in the registered {@link AsyncCacheDataSource} tiers in order and
+     * returns an Observable emitting the value of the first tier containing it. The slower tiers
+     * are not touched after a hit, and the value found is copied asynchronously into the faster
+     * tiers above the hit one.
      */
     private Observable<V> getValueFromCaches(final K key) {
-        Log.d("getValueFromCaches", key);
-        return Observable.from(cacheDataSources).flatMap(
-                cacheDataSource -> cacheDataSource.getByKeyAsync(key));
+        return getValueFromCaches(key, false);
+    }
+
+    /**
+     * Lookup for the given key like {@link #getValueFromCaches(Object)}, skipping the in-memory
+     * tiers if the given flag is set, as they were checked already by {@link
+     * #getIfPresent(Object)}.
+     */
+    private Observable<V> getValueFromCaches(final K key, final boolean skipInMemory) {
+        Log.d("getValueFromCaches", key, skipInMemory);
+        return Observable.range(0, cacheDataSources.size()).filter(
+              level -> !skipInMemory || !cacheDataSources.get(level).isInMemory()).concatMap(
+              level -> measureLookup(RepositoryMetrics.Source.CACHE, level, Observable.defer(
+                    () -> cacheDataSources.get(level).getByKeyAsync(key)).take(1))
+                    .doOnNext(value -> promoteToUpperTiers(level, value)))
+                         .take(1);
+    }
+
+    /**
+     * Queues the given value found in the cache tier of the given level to be copied into the
+     * faster cache targets above it. Being queued into the {@link CachePopulator}, the copy is
+     * discarded if the key is written or deleted meanwhile.
+     */
+    private void promoteToUpperTiers(final int level, final V value) {
+        if (level == 0 || mCachePolicy == CachePolicy.CACHE_NEVER) {
+            return;
+        }
+        Log.d("promoteToUpperTiers", level, value.getKey());
+        cachePopulator.enqueue(value, level);
     }
 
     /**
@@ -269,21 +1058,263 @@ public class AsyncRepository<K, V extends Identifiable<K>>
     private Observable<List<V>> getValuesFromCaches() {
         Log.d("getValuesFromCaches");
         final List<V> resultList = new ArrayList<>();
-        return Observable.from(cacheDataSources)
-                .flatMap(cacheDataSource -> cacheDataSource.getAllAsync())
+        return Observable.range(0, cacheDataSources.size())
+                .flatMap(tier -> measureLookup(RepositoryMetrics.Source.CACHE, tier,
+                                               cacheDataSources.get(tier).getAllAsync()))
                 .collect(() -> resultList, (vs, v) -> vs.add(v));
     }
 
+    /**
+     * Returns an Observable emitting the cached values of the given request parameters with one
+     * value per key, the value of a key held by more tiers taken from the fastest one.
+     */
+    private Observable<List<V>> getSnapshotFromCaches(
+          final KeyValuePairs<String, Object> requestParams) {
+        if (QueryResultCache.isQuery(requestParams)) {
+            return getValuesFromCaches(requestParams);
+        }
+        Log.d("getSnapshotFromCaches");
+        return Observable.range(0, cacheDataSources.size())
+                .concatMap(tier -> measureLookup(RepositoryMetrics.Source.CACHE, tier,
+                                                 cacheDataSources.get(tier).getAllAsync()))
+                .collect(() -> new LinkedHashMap<K, V>(), (values, value) -> {
+                    if (!values.containsKey(value.getKey())) {
+                        values.put(value.getKey(), value);
+                    }
+                }).map(values -> new ArrayList<>(values.values()));
+    }
+
+    /**
+     * Returns true if the given fresh values differ from the given stale ones, compared as
+     * key-value maps.
+     */
+    private boolean isChanged(final List<V> stale, final List<V> fresh) {
+        final Map<K, V> freshValues = new HashMap<>(fresh.size());
+        for (int i = 0, len = fresh.size(); i < len; i++) {
+            freshValues.put(fresh.get(i).getKey(), fresh.get(i));
+        }
+        if (freshValues.size() != stale.size()) {
+            return true;
+        }
+        for (int i = 0, len = stale.size(); i < len; i++) {
+            final V value = freshValues.get(stale.get(i).getKey());
+            if (value == null || !value.equals(stale.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns an Observable emitting the cached result of the query identified by the given
+     * request parameters, resolving its keys stored in the {@link QueryResultCache} from the
+     * {@link AsyncCacheDataSource}s. It emits an empty list if the query is not cached, or any of
+     * its values is missing from the caches. Without request parameters it emits all the cached
+     * values.
+     */
+    private Observable<List<V>> getValuesFromCaches(
+          final KeyValuePairs<String, Object> requestParams) {
+        if (!QueryResultCache.isQuery(requestParams)) {
+            return getValuesFromCaches();
+        }
+        return Observable.defer(() -> {
+            final List<K> keys = queryResultCache.get(requestParams);
+            if (keys == null) {
+                return Observable.just(new ArrayList<V>(0));
+            }
+            Log.d("getValuesFromCaches", requestParams, keys.size());
+            return getValuesFromCaches(keys, new HashMap<>(keys.size())).map(found -> {
+                final List<V> result = new ArrayList<>(keys.size());
+                for (int i = 0, len = keys.size(); i < len; i++) {
+                    V value = found.get(keys.get(i));
+                    if (value == null) {
+                        queryResultCache.invalidate(requestParams);
+                        return new ArrayList<V>(0);
+                    }
+                    result.add(value);
+                }
+                return result;
+            });
+        });
+    }
+
+    /**
+     * Lookup for the given keys in the registered {@link AsyncCacheDataSource}s sequentially,
+     * asking each cache only for the keys not found in the previous ones, and returns an
+     * Observable emitting the given map filled with the values found.
+     */
+    private Observable<Map<K, V>> getValuesFromCaches(final Collection<K> keys,
+          final Map<K, V> found) {
+        Log.d("getValuesFromCaches", keys.size());
+        return Observable.range(0, cacheDataSources.size()).concatMap(
+              tier -> Observable.defer(() -> {
+                  final List<K> remaining = new ArrayList<>(keys.size());
+                  for (K key : keys) {
+                      if (!found.containsKey(key)) {
+                          remaining.add(key);
+                      }
+                  }
+                  return remaining.isEmpty()
+                         ? Observable.<V>empty()
+                         : measureLookup(RepositoryMetrics.Source.CACHE, tier,
+                                         cacheDataSources.get(tier).getByKeysAsync(remaining));
+              }))
+                         .collect(() -> found, (map, value) -> map.put(value.getKey(), value));
+    }
+
+    /**
+     * Lookup for the given keys in all the registered {@link ReadableAsyncDataSource}s and
+     * returns an Observable emitting a list of the values found. The {@link
+     * BatchReadableAsyncDataSource}s are asked in one batched call, the others key by key.
+     */
+    @SuppressWarnings("unchecked")
+    private Observable<List<V>> getValuesFromReadables(final List<K> keys,
+          final KeyValuePairs<String, Object> requestParams) {
+        Log.d("getValuesFromReadables", keys.size());
+        return Observable.range(0, readableDataSources.size()).flatMap(index -> {
+            final ReadableAsyncDataSource<K, V> readableDataSource =
+                  readableDataSources.get(index);
+            if (readableDataSource instanceof BatchReadableAsyncDataSource) {
+                return lookupReadable(index,
+                                      ((BatchReadableAsyncDataSource<K, V>) readableDataSource)
+                                            .getByKeys(keys, requestParams));
+            }
+            return Observable.from(keys)
+                             .flatMap(key -> lookupReadable(
+                                   index, readableDataSource.getByKey(key, requestParams)))
+                             .toList();
+        }).collect(() -> new ArrayList<V>(keys.size()), List::addAll);
+    }
+
     /**
      * Lookup for the given key in any of the registered {@link ReadableAsyncDataSource}s
-     * and returns an Observable emitting the value. It can produce multiple values, depending
-     * on whether which cache contains the given key.
+     * and returns an Observable emitting the value. In {@link ReadableMode#MERGE} mode it can
+     * produce multiple values, depending on whether which readable contains the given key, in
+     * {@link ReadableMode#HEDGED} mode it emits at most one.
      */
     private Observable<V> getValueFromReadables(K key,
             final KeyValuePairs<String, Object> requestParams) {
         Log.d("getValueFromReadables", key);
-        return Observable.from(readableDataSources).flatMap(
-                readableDataSource -> readableDataSource.getByKey(key, requestParams));
+        if (mReadableMode == ReadableMode.HEDGED && readableDataSources.size() > 1) {
+            return getValueFromReadablesHedged(key, requestParams, 0);
+        }
+        return Observable.range(0, readableDataSources.size()).flatMap(
+                index -> lookupReadable(index, readableDataSources.get(index)
+                                                                  .getByKey(key, requestParams)));
+    }
+
+    /**
+     * Lookup for the given key in the readable of the given index, and in the next readables if
+     * it has not answered within its 95th percentile latency, or completed without a value, or
+     * failed. Returns an Observable emitting the first value found, cancelling the lookups still
+     * running. The lookup of a readable is shared between the result and the hedging trigger.
+     */
+    private Observable<V> getValueFromReadablesHedged(final K key,
+          final KeyValuePairs<String, Object> requestParams, final int index) {
+        final Observable<V> lookup = trackLatency(
+              index, lookupReadable(index, readableDataSources.get(index)
+                                                              .getByKey(key, requestParams)));
+        if (index + 1 >= readableDataSources.size()) {
+            return lookup.take(1);
+        }
+        return Observable.defer(() -> {
+            final Observable<V> attempt = lookup.replay().refCount();
+            final long estimate = latencyTrackers.get(index).getPercentile(95);
+            final long delay = estimate == LatencyTracker.NO_ESTIMATE ? mHedgeDelayMillis
+                                                                      : estimate;
+            final Observable<V> hedge =
+                  Observable.timer(delay, TimeUnit.MILLISECONDS, mHedgeScheduler)
+                            .cast(Object.class)
+                            .mergeWith(attempt.cast(Object.class)
+                                              .ignoreElements()
+                                              .onErrorResumeNext(Observable.empty())
+                                              .concatWith(Observable.just(null)))
+                            .take(1)
+                            .concatMap(trigger -> {
+                                Log.d("getValueFromReadablesHedged", key, index + 1);
+                                return getValueFromReadablesHedged(key, requestParams,
+                                                                   index + 1);
+                            });
+            return Observable.mergeDelayError(attempt, hedge).take(1);
+        });
+    }
+
+    /**
+     * Returns the given lookup Observable of the readable of the given index recording its
+     * latency into its {@link LatencyTracker} when it succeeds.
+     */
+    private <T> Observable<T> trackLatency(final int index, final Observable<T> lookup) {
+        return Observable.defer(() -> {
+            final long start = System.nanoTime();
+            final AtomicBoolean recorded = new AtomicBoolean();
+            final Action0 record = () -> {
+                if (recorded.compareAndSet(false, true)) {
+                    latencyTrackers.get(index).record(
+                          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+            };
+            return lookup.doOnNext(value -> record.call()).doOnCompleted(record);
+        });
+    }
+
+    /**
+     * Fetches the value of the given key from the registered {@link ReadableAsyncDataSource}s
+     * and populates the caches with it. Concurrent fetches of the same key and request
+     * parameters are coalesced into one upstream lookup. If the readables complete without a
+     * value, the miss is recorded in the {@link NegativeResultCache}, and the later fetches of
+     * the key with the same request parameters complete empty without a lookup until the miss
+     * expires. Without readables nothing was asked, so no miss is recorded.
+     *
+     * @see InFlightRequests#coalesce(Object, KeyValuePairs, Func0)
+     */
+    private Observable<V> fetchFromReadables(final K key,
+          final KeyValuePairs<String, Object> requestParams) {
+        return Observable.defer(() -> {
+            if (negativeResultCache.isMissing(key, requestParams)) {
+                Log.d("fetchFromReadables", "known missing", key);
+                return Observable.empty();
+            }
+            return inFlightRequests.coalesce(
+                  key, requestParams,
+                  () -> getValueFromReadables(key, requestParams)
+                        .doOnNext(this::populateCaches)
+                        .switchIfEmpty(Observable.defer(() -> {
+                            if (!readableDataSources.isEmpty()) {
+                                negativeResultCache.recordMiss(key, requestParams);
+                            }
+                            return Observable.<V>empty();
+                        })));
+        });
+    }
+
+    /**
+     * Fetches the values of the given keys from the registered {@link ReadableAsyncDataSource}s
+     * in one batch and populates the caches with them. The keys being fetched already with the
+     * same request parameters join the fetches in progress, and the single and batched fetches
+     * started meanwhile join this batch. The keys the readables have no value for are recorded
+     * in the {@link NegativeResultCache}, if there was any readable to ask.
+     *
+     * @see InFlightRequests#coalesceAll(Collection, KeyValuePairs, Func1, Func1)
+     */
+    private Observable<V> fetchAllFromReadables(final List<K> keys,
+          final KeyValuePairs<String, Object> requestParams) {
+        return inFlightRequests.coalesceAll(
+              keys, requestParams, V::getKey,
+              batch -> getValuesFromReadables(batch, requestParams).flatMap(values -> {
+                  populateCaches(values);
+                  final Set<K> found = new HashSet<>(values.size());
+                  for (int i = 0, len = values.size(); i < len; i++) {
+                      found.add(values.get(i).getKey());
+                  }
+                  if (!readableDataSources.isEmpty()) {
+                      for (int i = 0, len = batch.size(); i < len; i++) {
+                          if (!found.contains(batch.get(i))) {
+                              negativeResultCache.recordMiss(batch.get(i), requestParams);
+                          }
+                      }
+                  }
+                  return Observable.just(values);
+              }));
     }
 
     /**
@@ -294,28 +1325,429 @@ public class AsyncRepository<K, V extends Identifiable<K>>
             final KeyValuePairs<String, Object> requestPatams) {
         final List<V> resultList = new ArrayList<>();
         Log.d("getValuesFromReadables");
-        return Observable.from(readableDataSources)
-                .flatMap(readableDataSource -> readableDataSource.getAll(requestPatams))
-                .collect(() -> resultList, List::addAll);
+        return Observable.range(0, readableDataSources.size())
+                .flatMap(index -> lookupReadable(index, readableDataSources.get(index)
+                                                                           .getAll(requestPatams)))
+                .collect(() -> resultList, List::addAll)
+                .doOnNext(values -> rememberQuery(requestPatams, values));
+    }
+
+    /**
+     * Writes the given batch of values into all the registered {@link
+     * WriteableAsyncDataSource}s, without populating the caches.
+     */
+    private Observable<List<V>> writeToWriteables(final List<V> values) {
+        Log.d("writeToWriteables", values.size());
+        return Observable.from(writeableDataSources)
+                         .flatMap(dataSource -> measureWrite(
+                               dataSource, dataSource.addOrUpdateAll(values, null)))
+                         .takeLast(1)
+                         .defaultIfEmpty(values);
+    }
+
+    /**
+     * Returns an Observable reading the page of the given repository cursor. The cursor is the
+     * empty string for the first page, otherwise the source of the page ({@code c} and the cache
+     * tier or {@code r} and the readable index) and the cursor of the source separated by a
+     * colon.
+     */
+    private Observable<Page<V>> readPage(final int pageSize, final String cursor,
+          final ReadPolicy policy, final KeyValuePairs<String, Object> requestParams) {
+        return Observable.defer(() -> {
+            Log.d("readPage", pageSize, cursor);
+            if (cursor.isEmpty()) {
+                final Observable<Page<V>> readablePage =
+                      policy.useReadable() && !readableDataSources.isEmpty()
+                      ? readReadablePage(0, pageSize, null, requestParams)
+                      : Observable.just(new Page<>(new ArrayList<>(0), null));
+                if (!policy.useCache()) {
+                    return readablePage;
+                }
+                return Observable.range(0, cacheDataSources.size())
+                                 .map(i -> cacheDataSources.size() - 1 - i)
+                                 .concatMap(tier -> readCachePage(tier, pageSize, null))
+                                 .filter(page -> !page.getItems().isEmpty() || page.hasNext())
+                                 .take(1)
+                                 .switchIfEmpty(readablePage);
+            }
+            final int separator = cursor.indexOf(CURSOR_SEPARATOR);
+            Preconditions.checkArgument(separator > 1, "Invalid cursor: " + cursor);
+            final int index = Integer.parseInt(cursor.substring(1, separator));
+            final String sourceCursor = separator + 1 < cursor.length()
+                                        ? cursor.substring(separator + 1) : null;
+            if (cursor.startsWith(CURSOR_CACHE)) {
+                return readCachePage(index, pageSize, sourceCursor);
+            } else if (cursor.startsWith(CURSOR_READABLE)) {
+                return readReadablePage(index, pageSize, sourceCursor, requestParams);
+            }
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        });
+    }
+
+    private Observable<Page<V>> readCachePage(final int tier, final int pageSize,
+          final String cursor) {
+        return cacheDataSources.get(tier).getPageAsync(pageSize, cursor).map(
+              page -> new Page<>(page.getItems(), page.hasNext()
+                                                  ? CURSOR_CACHE + tier + CURSOR_SEPARATOR
+                                                    + page.getNextCursor()
+                                                  : null));
     }
 
-    private void populateCaches(V value) throws Exception {
+    @SuppressWarnings("unchecked")
+    private Observable<Page<V>> readReadablePage(final int index, final int pageSize,
+          final String cursor, final KeyValuePairs<String, Object> requestParams) {
+        ReadableAsyncDataSource<K, V> dataSource = readableDataSources.get(index);
+        final Observable<Page<V>> page;
+        if (dataSource instanceof PagedReadableAsyncDataSource) {
+            page = lookupReadable(index, ((PagedReadableAsyncDataSource<K, V>) dataSource)
+                  .getPage(pageSize, cursor, requestParams));
+        } else {
+            page = lookupReadable(index, dataSource.getAll(requestParams))
+                  .collect(() -> new ArrayList<V>(), List::addAll)
+                  .map(values -> new Page<V>(values, null));
+        }
+        return page.flatMap(sourcePage -> {
+            populateCaches(sourcePage.getItems());
+            String nextCursor = null;
+            if (sourcePage.hasNext()) {
+                nextCursor = CURSOR_READABLE + index + CURSOR_SEPARATOR
+                      + sourcePage.getNextCursor();
+            } else if (index + 1 < readableDataSources.size()) {
+                nextCursor = CURSOR_READABLE + (index + 1) + CURSOR_SEPARATOR;
+            }
+            return Observable.just(new Page<>(sourcePage.getItems(), nextCursor));
+        });
+    }
+
+    /**
+     * Stores the keys of the given result of the query identified by the given request
+     * parameters in the {@link QueryResultCache}, if the values are cached.
+     */
+    private void rememberQuery(final KeyValuePairs<String, Object> requestParams,
+          final List<V> values) {
+        if (!QueryResultCache.isQuery(requestParams) || getCacheTargets().isEmpty()) {
+            return;
+        }
+        final List<K> keys = new ArrayList<>(values.size());
+        for (int i = 0, len = values.size(); i < len; i++) {
+            keys.add(values.get(i).getKey());
+        }
+        queryResultCache.put(requestParams, keys);
+    }
+
+    /**
+     * Returns an Observable reading the changes of the given delta readable since its stored
+     * sync token, applying them to the caches and storing the new token.
+     */
+    private Observable<Delta<K, V>> syncDelta(final int index,
+          final DeltaReadableAsyncDataSource<K, V> dataSource,
+          final KeyValuePairs<String, Object> requestParams) {
+        final String tokenKey = getSyncTokenKey(index, requestParams);
+        return Observable.defer(() -> lookupReadable(
+              index,
+              dataSource.getChangedSince(syncTokenStorage.readOneByKey(tokenKey), requestParams)))
+                         .concatMap(this::applyDelta)
+                         .doOnNext(delta -> {
+                             if (delta.getToken() != null) {
+                                 syncTokenStorage.writeKeyedContent(tokenKey, delta.getToken());
+                             }
+                         });
+    }
+
+    /**
+     * Applies the given delta to the cache tiers of the cache policy, and publishes its changes.
+     * The queued cache writes of its keys and the pending write-behind of its tombstones are
+     * discarded first, so they do not bring back an older or deleted value afterwards.
+     */
+    private Observable<Delta<K, V>> applyDelta(final Delta<K, V> delta) {
+        if (delta.isEmpty()) {
+            return Observable.just(delta);
+        }
+        Log.d("applyDelta", delta);
+        return Observable.defer(() -> {
+            final List<V> upserts = delta.getUpserts();
+            final List<K> keys = new ArrayList<>(upserts.size() + delta.getTombstones().size());
+            for (int i = 0, len = upserts.size(); i < len; i++) {
+                keys.add(upserts.get(i).getKey());
+            }
+            for (K key : delta.getTombstones()) {
+                keys.add(key);
+                writeBehindQueue.discard(key);
+            }
+            cachePopulator.discard(keys);
+            final List<AsyncCacheDataSource<K, V>> targets = getCacheTargets();
+            return Observable.range(0, targets.size())
+                             .concatMap(tier -> targets.get(tier).applyDeltaAsync(delta)
+                                                       .doOnNext(applied -> onWritesSkipped(
+                                                             tier, delta, applied)));
+        }).toList().map(applied -> {
+            final List<V> upserts = delta.getUpserts();
+            for (int i = 0, len = upserts.size(); i < len; i++) {
+                negativeResultCache.invalidate(upserts.get(i).getKey());
+            }
+            queryResultCache.clear();
+            publishUpdates(applied.isEmpty() ? upserts : getChanged(applied));
+            for (K key : delta.getTombstones()) {
+                publishChange(RepositoryChange.deleted(key));
+            }
+            return delta;
+        });
+    }
+
+    /**
+     * Returns the key of the sync token of the readable of the given index for the collection
+     * identified by the given request parameters, independent of the order of the parameters.
+     */
+    private static String getSyncTokenKey(final int index,
+          final KeyValuePairs<String, Object> requestParams) {
+        final StringBuilder tokenKey = new StringBuilder().append(index);
+        if (requestParams != null) {
+            for (String name : new TreeSet<>(requestParams.keySet())) {
+                tokenKey.append('&').append(name).append('=').append(requestParams.get(name));
+            }
+        }
+        return tokenKey.toString();
+    }
+
+    /**
+     * Reports the upserts of the given delta skipped by the cache tier as unchanged.
+     */
+    private void onWritesSkipped(final int tier, final Delta<K, V> delta,
+          final Delta<K, V> applied) {
+        final int skipped = delta.getUpserts().size() - applied.getUpserts().size();
+        if (skipped > 0) {
+            mMetrics.onWritesSkipped(tier, skipped);
+        }
+    }
+
+    /**
+     * Returns the upserts of the given applied deltas which changed the value in any tier.
+     */
+    private List<V> getChanged(final List<Delta<K, V>> applied) {
+        final Map<K, V> changed = new LinkedHashMap<>();
+        for (int i = 0, len = applied.size(); i < len; i++) {
+            final List<V> upserts = applied.get(i).getUpserts();
+            for (int j = 0, count = upserts.size(); j < count; j++) {
+                changed.put(upserts.get(j).getKey(), upserts.get(j));
+            }
+        }
+        return new ArrayList<>(changed.values());
+    }
+
+    /**
+     * Returns false if the given value equals to the one stored in an {@link
+     * AsyncCacheDataSource#isInMemory() in-memory} cache tier, so writing it changes nothing.
+     */
+    private boolean isChanged(final V value) {
+        for (int tier = 0, len = cacheDataSources.size(); tier < len; tier++) {
+            final AsyncCacheDataSource<K, V> cacheDataSource = cacheDataSources.get(tier);
+            if (cacheDataSource.isInMemory()) {
+                return !value.equals(cacheDataSource.getIfPresent(value.getKey()));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the values of the given list which are changed.
+     *
+     * @see #isChanged(Identifiable)
+     */
+    private List<V> filterChanged(final List<V> values) {
+        final List<V> changed = new ArrayList<>(values.size());
+        for (int i = 0, len = values.size(); i < len; i++) {
+            if (isChanged(values.get(i))) {
+                changed.add(values.get(i));
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns an Observable emitting true if the given error is a {@link
+     * NetworkConnectionException} and the given mutation was logged into the {@link
+     * MutationLog}, or the error otherwise.
+     */
+    private Observable<Boolean> logMutation(final Throwable throwable,
+          final MutationLog.Mutation<K, V> mutation) {
+        final MutationLog<K, V> mutationLog = mMutationLog;
+        if (mutationLog == null || !(throwable instanceof NetworkConnectionException)
+              || !mutationLog.appendAll(Collections.singletonList(mutation))) {
+            return Observable.error(throwable);
+        }
+        Log.w("logMutation", "logged offline", mutation);
+        return Observable.just(Boolean.TRUE);
+    }
+
+    /**
+     * Returns an Observable emitting the given values if the given error is a {@link
+     * NetworkConnectionException} and their writes were logged into the {@link MutationLog}, or
+     * the error otherwise.
+     */
+    private Observable<List<V>> logPutMutations(final Throwable throwable,
+          final Collection<V> values) {
+        final MutationLog<K, V> mutationLog = mMutationLog;
+        if (mutationLog == null || !(throwable instanceof NetworkConnectionException)) {
+            return Observable.error(throwable);
+        }
+        final List<MutationLog.Mutation<K, V>> mutations = new ArrayList<>(values.size());
+        for (V value : values) {
+            mutations.add(MutationLog.Mutation.put(value));
+        }
+        if (!mutationLog.appendAll(mutations)) {
+            return Observable.error(throwable);
+        }
+        Log.w("logPutMutations", "logged offline", mutations.size());
+        return Observable.just(new ArrayList<>(values));
+    }
+
+    private void discardMutation(final K key) {
+        if (mMutationLog != null) {
+            mMutationLog.discard(key);
+        }
+    }
+
+    private void discardMutations(final List<V> values) {
+        if (mMutationLog != null && mMutationLog.size() > 0) {
+            final List<K> keys = new ArrayList<>(values.size());
+            for (int i = 0, len = values.size(); i < len; i++) {
+                keys.add(values.get(i).getKey());
+            }
+            mMutationLog.discardAll(keys);
+        }
+    }
+
+    private void publishChange(final RepositoryChange<K, V> change) {
+        changes.onNext(change);
+    }
+
+    private void publishUpdates(final List<V> values) {
+        for (int i = 0, len = values.size(); i < len; i++) {
+            V value = values.get(i);
+            changes.onNext(RepositoryChange.updated(value.getKey(), value));
+        }
+    }
+
+    /**
+     * Coalesces the given window of changes per key, leaving out the updates to the values
+     * already emitted, which are tracked in the given map.
+     */
+    private List<RepositoryChange<K, V>> coalesceChanges(
+          final List<RepositoryChange<K, V>> window, final Map<K, V> emitted) {
+        final Map<K, RepositoryChange<K, V>> coalesced = new LinkedHashMap<>();
+        RepositoryChange<K, V> cleared = null;
+        for (int i = 0, len = window.size(); i < len; i++) {
+            RepositoryChange<K, V> change = window.get(i);
+            if (change.getType() == RepositoryChange.Type.CLEARED) {
+                coalesced.clear();
+                emitted.clear();
+                cleared = change;
+            } else {
+                coalesced.remove(change.getKey());
+                coalesced.put(change.getKey(), change);
+            }
+        }
+        final List<RepositoryChange<K, V>> result = new ArrayList<>(coalesced.size() + 1);
+        if (cleared != null) {
+            result.add(cleared);
+        }
+        for (RepositoryChange<K, V> change : coalesced.values()) {
+            if (change.getType() == RepositoryChange.Type.DELETED) {
+                emitted.remove(change.getKey());
+                result.add(change);
+            } else if (!change.getValue().equals(emitted.put(change.getKey(),
+                                                              change.getValue()))) {
+                result.add(change);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the given lookup Observable reporting its duration and result to the {@link
+     * RepositoryMetrics}. A null lookup of a data source not supporting it is treated as empty.
+     */
+    private <T> Observable<T> measureLookup(final RepositoryMetrics.Source source,
+          final int index, final Observable<T> lookup) {
+        if (lookup == null) {
+            return Observable.empty();
+        }
+        if (mMetrics == RepositoryMetrics.NONE) {
+            return lookup;
+        }
+        return Observable.defer(() -> {
+            final long start = System.nanoTime();
+            final AtomicBoolean hit = new AtomicBoolean();
+            return lookup.doOnNext(value -> {
+                if (hit.compareAndSet(false, true)) {
+                    mMetrics.onLookup(source, index, true, System.nanoTime() - start);
+                }
+            }).doOnCompleted(() -> {
+                if (!hit.get()) {
+                    mMetrics.onLookup(source, index, false, System.nanoTime() - start);
+                }
+            }).doOnError(throwable -> mMetrics.onError(source, index, throwable));
+        });
+    }
+
+    /**
+     * Returns the given lookup Observable of the readable of the given index guarded by its
+     * {@link CircuitBreaker}, reporting to the {@link RepositoryMetrics}.
+     */
+    private <T> Observable<T> lookupReadable(final int index, final Observable<T> lookup) {
+        return measureLookup(RepositoryMetrics.Source.READABLE, index,
+                             lookup == null ? null : circuitBreakers.get(index).protect(lookup));
+    }
+
+    /**
+     * Returns the given write Observable of the given writeable reporting its duration to the
+     * {@link RepositoryMetrics}.
+     */
+    private <T> Observable<T> measureWrite(final WriteableAsyncDataSource<K, V> dataSource,
+          final Observable<T> write) {
+        if (write == null) {
+            return Observable.empty();
+        }
+        if (mMetrics == RepositoryMetrics.NONE) {
+            return write;
+        }
+        final int index = writeableDataSources.indexOf(dataSource);
+        return Observable.defer(() -> {
+            final long start = System.nanoTime();
+            return write.doOnCompleted(() -> mMetrics.onWrite(index, System.nanoTime() - start))
+                        .doOnError(throwable -> mMetrics.onError(RepositoryMetrics.Source.WRITEABLE,
+                                                                 index, throwable));
+        });
+    }
+
+    /**
+     * Queues the given value read through the readables to be written into the caches.
+     */
+    private void populateCaches(V value) {
         Log.d("populateCaches").v(value);
-        getCacheDataSourceObservable()
-              .flatMap(cacheDataSource -> cacheDataSource.addOrUpdateAsync(value)).subscribe();
+        negativeResultCache.invalidate(value.getKey());
+        if (!getCacheTargets().isEmpty()) {
+            cachePopulator.enqueue(value);
+        }
     }
 
     private Observable<Boolean> removeFromCaches(final K key) {
         Log.d("removeFromCaches", key);
-        return getCacheDataSourceObservable()
-              .flatMap(cacheDataSource -> cacheDataSource.deleteByKeyAsync(key)).takeLast(1);
+        return Observable.defer(() -> {
+            cachePopulator.discard(key);
+            return getCacheDataSourceObservable()
+                  .flatMap(cacheDataSource -> cacheDataSource.deleteByKeyAsync(key)).takeLast(1);
+        });
     }
 
     private Observable<Boolean> clearCaches() {
         Log.d("clearCaches");
-        return getCacheDataSourceObservable()
-                .flatMap(AsyncCacheDataSource::deleteAllAsync)
-                .takeLast(1);
+        return Observable.defer(() -> {
+            cachePopulator.discardAll();
+            return getCacheDataSourceObservable()
+                  .flatMap(AsyncCacheDataSource::deleteAllAsync)
+                  .takeLast(1);
+        });
     }
 
     @NonNull private Observable<AsyncCacheDataSource<K, V>> getCacheDataSourceObservable() {
@@ -337,9 +1769,55 @@ public class AsyncRepository<K, V extends Identifiable<K>>
               });
     }
 
-    protected void populateCaches(Collection<V> values) throws Exception {
-        getCacheDataSourceObservable().flatMap(
-              cacheDataSource -> cacheDataSource.addOrUpdateAllAsync(values)).subscribe();
+    /**
+     * Queues the given values read through the readables to be written into the caches.
+     */
+    protected void populateCaches(Collection<V> values) {
+        invalidateMisses(values);
+        if (!getCacheTargets().isEmpty()) {
+            cachePopulator.enqueueAll(values);
+        }
+    }
+
+    /**
+     * Writes the given results of a mutation into the caches, discarding the queued writes of
+     * their keys. The returned Observable emits the values when the caches hold them, so the
+     * reads following the mutation see them.
+     */
+    private Observable<List<V>> writeCaches(final List<V> values) {
+        return Observable.defer(() -> {
+            invalidateMisses(values);
+            if (getCacheTargets().isEmpty()) {
+                return Observable.just(values);
+            }
+            return cachePopulator.write(values).onErrorResumeNext(
+                  throwable -> Observable.error(new InternalErrorException(throwable)));
+        });
+    }
+
+    private void invalidateMisses(final Collection<V> values) {
+        if (negativeResultCache.size() > 0) {
+            for (V value : values) {
+                negativeResultCache.invalidate(value.getKey());
+            }
+        }
+    }
+
+    /**
+     * Returns the {@link AsyncCacheDataSource}s to populate according to the cache policy.
+     */
+    private List<AsyncCacheDataSource<K, V>> getCacheTargets() {
+        if (cacheDataSources.isEmpty()) {
+            return cacheDataSources;
+        }
+        switch (mCachePolicy) {
+            case CACHE_ONCE:
+                return cacheDataSources.subList(0, 1);
+            case CACHE_NEVER:
+                return Collections.emptyList();
+            default:
+                return cacheDataSources;
+        }
     }
 
     /**
@@ -380,6 +1858,10 @@ public class AsyncRepository<K, V extends Identifiable<K>>
         Preconditions.checkNotNull(key, "The key used can't be null.");
     }
 
+    private void validateKeys(Collection<K> keys) {
+        Preconditions.checkNotNull(keys, "The keys used can't be null.");
+    }
+
     private void validateValue(V value) {
         Preconditions.checkNotNull(value, "The value used can't be null.");
     }
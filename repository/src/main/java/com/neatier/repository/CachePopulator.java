@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+
+package com.neatier.repository;
+
+import com.neatier.data.entity.Identifiable;
+import com.neatier.repository.datasource.AsyncCacheDataSource;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Func0;
+import rx.schedulers.Schedulers;
+import trikita.log.Log;
+
+/**
+ * Writer of the values into the {@link AsyncCacheDataSource}s. The values read through the
+ * readables are queued into a bounded queue drained on its own {@link Scheduler}, the results of
+ * the mutations are written at once by {@link #write(List)}. The writes pending when a drain
+ * starts are coalesced by key and written into each cache data source in one batch. When the
+ * queue is full, the {@link OverflowPolicy} decides whether the oldest pending writes are
+ * dropped, or the caller is blocked until there is room in the queue. The keys of the dropped
+ * writes are deleted from the caches by the next drain, so they are not left stale. The pending
+ * writes of deleted keys are discarded with {@link #discard(Object)} and {@link #discardAll()},
+ * and a write overlapping a discard of its key is undone in its cache data source, so a deleted
+ * value is never resurrected in the caches by a write queued before its deletion.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class CachePopulator<K, V extends Identifiable<K>> {
+
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    /**
+     * Defines what happens when a value is queued into a full queue.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the oldest pending writes to make room for the new one.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Block the caller until the queue is drained. Must not be used if the values are
+         * queued from the scheduler of the populator.
+         */
+        BLOCK
+    }
+
+    private final Func0<List<AsyncCacheDataSource<K, V>>> mCacheDataSources;
+    private final ArrayDeque<PendingWrite<V>> mPending = new ArrayDeque<>();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+    private final HashMap<K, Long> mDiscardedKeys = new HashMap<>();
+    private final Set<K> mDroppedKeys = new HashSet<>();
+
+    private int mCapacity = DEFAULT_CAPACITY;
+    private OverflowPolicy mOverflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private Scheduler mScheduler = Schedulers.io();
+    private volatile RepositoryMetrics mMetrics = RepositoryMetrics.NONE;
+    private int mPendingValueCount;
+    private boolean mDrainScheduled;
+    private boolean mDraining;
+    private long mDiscardGeneration;
+    private long mDiscardedAllGeneration = -1;
+
+    /**
+     * @param cacheDataSources function returning the cache data sources to populate, evaluated
+     * at each drain.
+     */
+    public CachePopulator(final Func0<List<AsyncCacheDataSource<K, V>>> cacheDataSources) {
+        mCacheDataSources = cacheDataSources;
+    }
+
+    /**
+     * Sets the maximum number of the values waiting to be written.
+     */
+    public synchronized CachePopulator<K, V> setCapacity(final int capacity) {
+        mCapacity = capacity;
+        return this;
+    }
+
+    public synchronized CachePopulator<K, V> setOverflowPolicy(
+          final OverflowPolicy overflowPolicy) {
+        mOverflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * Sets the {@link Scheduler} on which the cache writes are performed.
+     */
+    public synchronized CachePopulator<K, V> setScheduler(final Scheduler scheduler) {
+        mScheduler = scheduler;
+        return this;
+    }
+
+    /**
+     * Sets the {@link RepositoryMetrics} to report the skipped writes of unchanged values to.
+     */
+    public CachePopulator<K, V> setMetrics(final RepositoryMetrics metrics) {
+        mMetrics = metrics;
+        return this;
+    }
+
+    /**
+     * Queues the given value to be written into the caches.
+     */
+    public void enqueue(final V value) {
+        enqueue(value, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Queues the given value to be written into the given number of the first caches only, e.g.
+     * to promote a value found in a slower tier into the faster ones above it.
+     */
+    public void enqueue(final V value, final int tierCount) {
+        if (tierCount <= 0) {
+            return;
+        }
+        final List<V> values = new ArrayList<>(1);
+        values.add(value);
+        enqueue(new PendingWrite<>(values, true, tierCount));
+    }
+
+    /**
+     * Queues the given values to be written into the caches in one batch.
+     */
+    public void enqueueAll(final Collection<V> values) {
+        if (!values.isEmpty()) {
+            enqueue(new PendingWrite<>(new ArrayList<>(values), false, Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Writes the given values into the caches, discarding the queued writes of their keys, so an
+     * older value read meanwhile does not overwrite them later. The returned Observable emits the
+     * values when all the cache data sources hold them.
+     */
+    public Observable<List<V>> write(final List<V> values) {
+        return Observable.defer(() -> {
+            if (values.isEmpty()) {
+                return Observable.just(values);
+            }
+            final List<K> keys = new ArrayList<>(values.size());
+            for (int i = 0, len = values.size(); i < len; i++) {
+                keys.add(values.get(i).getKey());
+            }
+            discard(keys);
+            final List<AsyncCacheDataSource<K, V>> dataSources = mCacheDataSources.call();
+            return Observable.range(0, dataSources.size()).concatMap(index -> {
+                final AsyncCacheDataSource<K, V> dataSource = dataSources.get(index);
+                final long skippedBefore = getSkippedWriteCount(dataSource);
+                final Observable<?> written = values.size() == 1
+                                              ? dataSource.addOrUpdateAsync(values.get(0))
+                                              : dataSource.addOrUpdateAllAsync(values);
+                return (written != null ? written.ignoreElements() : Observable.empty())
+                      .cast(Object.class)
+                      .doOnCompleted(() -> reportSkipped(index, dataSource, skippedBefore));
+            }).toList().map(written -> values);
+        });
+    }
+
+    /**
+     * Discards the pending writes of the given key, including the ones of a drain in progress
+     * which are not written yet.
+     */
+    public void discard(final K key) {
+        discard(Collections.singletonList(key));
+    }
+
+    /**
+     * Discards the pending writes of the given keys, including the ones of a drain in progress
+     * which are not written yet.
+     */
+    public synchronized void discard(final Collection<K> keys) {
+        if (!mPending.isEmpty()) {
+            final Set<K> discarded = keys.size() > 1 ? new HashSet<>(keys) : null;
+            final Iterator<PendingWrite<V>> iterator = mPending.iterator();
+            while (iterator.hasNext()) {
+                final List<V> values = iterator.next().values;
+                for (int i = values.size() - 1; i >= 0; i--) {
+                    final K key = values.get(i).getKey();
+                    if (discarded != null ? discarded.contains(key) : keys.contains(key)) {
+                        values.remove(i);
+                        mPendingValueCount--;
+                    }
+                }
+                if (values.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+        if (mDraining) {
+            mDiscardGeneration++;
+            for (K key : keys) {
+                mDiscardedKeys.put(key, mDiscardGeneration);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Discards all the pending writes, including the ones of a drain in progress which are not
+     * written yet.
+     */
+    public synchronized void discardAll() {
+        mPending.clear();
+        mPendingValueCount = 0;
+        mDroppedKeys.clear();
+        if (mDraining) {
+            mDiscardedAllGeneration = ++mDiscardGeneration;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of the values waiting to be written.
+     */
+    public synchronized int getQueueDepth() {
+        return mPendingValueCount;
+    }
+
+    /**
+     * Returns the number of the values dropped because the queue was full.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Returns the number of the batch writes which failed.
+     */
+    public long getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    private void enqueue(final PendingWrite<V> write) {
+        final Scheduler scheduler;
+        synchronized (this) {
+            final int size = write.values.size();
+            while (mPendingValueCount > 0 && mPendingValueCount + size > mCapacity) {
+                if (mOverflowPolicy == OverflowPolicy.BLOCK) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        mDroppedCount.addAndGet(size);
+                        return;
+                    }
+                } else {
+                    PendingWrite<V> dropped = mPending.poll();
+                    mPendingValueCount -= dropped.values.size();
+                    mDroppedCount.addAndGet(dropped.values.size());
+                    for (int i = 0, len = dropped.values.size(); i < len; i++) {
+                        mDroppedKeys.add(dropped.values.get(i).getKey());
+                    }
+                    Log.w("enqueue", "queue full, dropped", dropped.values.size());
+                }
+            }
+            mPending.add(write);
+            mPendingValueCount += size;
+            if (mDrainScheduled) {
+                return;
+            }
+            mDrainScheduled = true;
+            scheduler = mScheduler;
+        }
+        final Scheduler.Worker worker = scheduler.createWorker();
+        worker.schedule(() -> {
+            try {
+                drain();
+            } finally {
+                worker.unsubscribe();
+            }
+        });
+    }
+
+    private void drain() {
+        while (true) {
+            final List<PendingWrite<V>> writes;
+            final List<K> dropped;
+            synchronized (this) {
+                mDiscardedKeys.clear();
+                mDiscardedAllGeneration = -1;
+                if (mPending.isEmpty() && mDroppedKeys.isEmpty()) {
+                    mDrainScheduled = false;
+                    mDraining = false;
+                    return;
+                }
+                writes = new ArrayList<>(mPending);
+                dropped = new ArrayList<>(mDroppedKeys);
+                mPending.clear();
+                mDroppedKeys.clear();
+                mPendingValueCount = 0;
+                mDraining = true;
+                notifyAll();
+            }
+            delete(dropped);
+            if (!writes.isEmpty()) {
+                writeBatch(writes);
+            }
+        }
+    }
+
+    /**
+     * Returns the given batch without the values discarded after the given discard generation,
+     * or null if none of them is left.
+     */
+    private synchronized PendingWrite<V> filterDiscarded(final PendingWrite<V> batch,
+          final long generation) {
+        if (mDiscardedAllGeneration > generation) {
+            return null;
+        }
+        if (mDiscardedKeys.isEmpty()) {
+            return batch;
+        }
+        final List<V> values = new ArrayList<>(batch.values.size());
+        for (int i = 0, len = batch.values.size(); i < len; i++) {
+            final Long discardedAt = mDiscardedKeys.get(batch.values.get(i).getKey());
+            if (discardedAt == null || discardedAt <= generation) {
+                values.add(batch.values.get(i));
+            }
+        }
+        return values.isEmpty() ? null
+                                : new PendingWrite<>(values, batch.single, batch.tierCount);
+    }
+
+    private synchronized long getDiscardGeneration() {
+        return mDiscardGeneration;
+    }
+
+    /**
+     * Deletes the keys of the dropped writes from the caches, so the values they would have
+     * replaced are not served until their time-to-live expires.
+     */
+    private void delete(final List<K> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        final List<AsyncCacheDataSource<K, V>> dataSources = mCacheDataSources.call();
+        for (int i = 0, len = dataSources.size(); i < len; i++) {
+            delete(dataSources.get(i), keys);
+        }
+    }
+
+    private void delete(final AsyncCacheDataSource<K, V> dataSource, final List<K> keys) {
+        for (int i = 0, len = keys.size(); i < len; i++) {
+            try {
+                Observable<Boolean> deleted = dataSource.deleteByKeyAsync(keys.get(i));
+                if (deleted != null) {
+                    deleted.toList().toBlocking().single();
+                }
+            } catch (Exception e) {
+                mFailedCount.incrementAndGet();
+                Log.e("delete", "cache invalidation failed", keys.get(i), e);
+            }
+        }
+    }
+
+    private long getSkippedWriteCount(final AsyncCacheDataSource<K, V> dataSource) {
+        return mMetrics == RepositoryMetrics.NONE ? 0 : dataSource.getSkippedWriteCount();
+    }
+
+    private void reportSkipped(final int index, final AsyncCacheDataSource<K, V> dataSource,
+          final long skippedBefore) {
+        final RepositoryMetrics metrics = mMetrics;
+        if (metrics != RepositoryMetrics.NONE) {
+            final long skipped = dataSource.getSkippedWriteCount() - skippedBefore;
+            if (skipped > 0) {
+                metrics.onWritesSkipped(index, (int) skipped);
+            }
+        }
+    }
+
+    /**
+     * Writes the given pending writes into their cache data sources. A lone write is written in
+     * its original form, multiple writes are coalesced by key into one batch per number of the
+     * tiers they are written to, the widest one winning for a key.
+     */
+    private void writeBatch(final List<PendingWrite<V>> writes) {
+        if (writes.size() == 1) {
+            writeBatch(writes.get(0));
+            return;
+        }
+        final LinkedHashMap<K, V> coalesced = new LinkedHashMap<>();
+        final HashMap<K, Integer> tierCounts = new HashMap<>();
+        for (int i = 0, len = writes.size(); i < len; i++) {
+            final PendingWrite<V> write = writes.get(i);
+            for (int j = 0, count = write.values.size(); j < count; j++) {
+                final K key = write.values.get(j).getKey();
+                final Integer tierCount = tierCounts.get(key);
+                coalesced.put(key, write.values.get(j));
+                tierCounts.put(key, tierCount == null ? write.tierCount
+                                                      : Math.max(tierCount, write.tierCount));
+            }
+        }
+        //the keys are unique across the batches, so their order does not matter.
+        final LinkedHashMap<Integer, List<V>> batches = new LinkedHashMap<>();
+        for (V value : coalesced.values()) {
+            final Integer tierCount = tierCounts.get(value.getKey());
+            List<V> batch = batches.get(tierCount);
+            if (batch == null) {
+                batch = new ArrayList<>();
+                batches.put(tierCount, batch);
+            }
+            batch.add(value);
+        }
+        for (Map.Entry<Integer, List<V>> batch : batches.entrySet()) {
+            writeBatch(new PendingWrite<>(batch.getValue(), false, batch.getKey()));
+        }
+    }
+
+    /**
+     * Writes the given pending write into each of its cache data sources. The keys discarded
+     * while a data source is written are deleted from it afterwards, as the write may have
+     * landed after their deletion.
+     */
+    private void writeBatch(final PendingWrite<V> write) {
+        PendingWrite<V> coalescedBatch = write;
+        final List<AsyncCacheDataSource<K, V>> dataSources = mCacheDataSources.call();
+        for (int i = 0, len = Math.min(dataSources.size(), write.tierCount); i < len; i++) {
+            //re-checked before each data source, since a deletion may happen meanwhile.
+            final long generation = getDiscardGeneration();
+            final PendingWrite<V> batch = filterDiscarded(coalescedBatch, -1);
+            if (batch == null) {
+                return;
+            }
+            coalescedBatch = batch;
+            final AsyncCacheDataSource<K, V> dataSource = dataSources.get(i);
+            final long skippedBefore = getSkippedWriteCount(dataSource);
+            try {
+                Observable<?> written = batch.single
+                                        ? dataSource.addOrUpdateAsync(batch.values.get(0))
+                                        : dataSource.addOrUpdateAllAsync(batch.values);
+                if (written != null) {
+                    written.toList().toBlocking().single();
+                }
+                reportSkipped(i, dataSource, skippedBefore);
+            } catch (Exception e) {
+                mFailedCount.incrementAndGet();
+                Log.e("write", "cache population failed", batch.values.size(), e);
+            }
+            undoDiscarded(dataSource, batch, generation);
+        }
+    }
+
+    /**
+     * Deletes the values of the given batch from the given data source, which were discarded
+     * after the given discard generation, while the batch was being written.
+     */
+    private void undoDiscarded(final AsyncCacheDataSource<K, V> dataSource,
+          final PendingWrite<V> batch, final long generation) {
+        final PendingWrite<V> kept = filterDiscarded(batch, generation);
+        if (kept == batch) {
+            return;
+        }
+        final List<K> discarded = new ArrayList<>(batch.values.size());
+        for (int i = 0, len = batch.values.size(); i < len; i++) {
+            if (kept == null || !kept.values.contains(batch.values.get(i))) {
+                discarded.add(batch.values.get(i).getKey());
+            }
+        }
+        Log.d("undoDiscarded", discarded.size());
+        delete(dataSource, discarded);
+    }
+
+    /**
+     * A queued write of one or more values.
+     */
+    private static final class PendingWrite<V> {
+        final List<V> values;
+        final boolean single;
+        final int tierCount;
+
+        PendingWrite(final List<V> values, final boolean single, final int tierCount) {
+            this.values = values;
+            this.single = single;
+            this.tierCount = tierCount;
+        }
+    }
+}
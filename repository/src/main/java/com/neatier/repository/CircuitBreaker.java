@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+package com.neatier.repository;
+
+import com.neatier.commons.exception.CircuitOpenException;
+import com.neatier.commons.exception.NetworkConnectionException;
+import com.neatier.commons.exception.RestApiResponseException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+import trikita.log.Log;
+
+/**
+ * Circuit breaker guarding the calls of one data source. It counts the outcome of the last
+ * calls in a sliding window, and when the rate of the failures reaches the threshold, it opens
+ * the circuit: the calls fail fast with a {@link CircuitOpenException} without touching the
+ * data source. After the open duration a single probe call is let through in the half-open
+ * state, closing the circuit on success or opening it again on failure. A call succeeds when it
+ * emits its first value or completes, so a call unsubscribed after its first value, as the
+ * losing lookups of a hedged read, still counts. A call fails when its error matches the failure
+ * predicate, by default the transport errors and the server errors, or when it does not
+ * terminate within the timeout. The other errors, like the client errors, count as successes, as
+ * the data source did answer.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class CircuitBreaker {
+
+    /**
+     * The state of the circuit.
+     */
+    public enum State {
+        /**
+         * The calls are let through and their outcomes are counted.
+         */
+        CLOSED,
+
+        /**
+         * The calls fail fast until the open duration elapses.
+         */
+        OPEN,
+
+        /**
+         * One probe call is let through to decide whether to close or open the circuit.
+         */
+        HALF_OPEN
+    }
+
+    public static final int DEFAULT_WINDOW_SIZE = 10;
+    public static final float DEFAULT_FAILURE_RATE_THRESHOLD = 0.5f;
+    public static final long DEFAULT_OPEN_DURATION_MILLIS = 30 * 1000;
+
+    /**
+     * The timeout value disabling the timeout of the calls.
+     */
+    public static final long NO_TIMEOUT = 0;
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10 * 1000;
+
+    /**
+     * The default failure predicate, matching the timeouts, the I/O and network errors, and the
+     * {@link RestApiResponseException}s of the server errors, also as the cause of another
+     * error.
+     */
+    public static final Func1<Throwable, Boolean> TRANSPORT_AND_SERVER_ERRORS = throwable -> {
+        for (Throwable error = throwable; error != null; error = error.getCause()) {
+            if (error instanceof TimeoutException || error instanceof IOException
+                || error instanceof NetworkConnectionException) {
+                return true;
+            }
+            if (error instanceof RestApiResponseException) {
+                final RestApiResponseException responseError = (RestApiResponseException) error;
+                return responseError.getStatusCode() >= 500 || responseError.shouldRetry();
+            }
+        }
+        return false;
+    };
+
+    private final String mName;
+    private boolean[] mOutcomes = new boolean[DEFAULT_WINDOW_SIZE];
+    private int mCalls;
+    private int mFailures;
+    private int mNext;
+    private float mFailureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+    private long mOpenDurationMillis = DEFAULT_OPEN_DURATION_MILLIS;
+    private long mTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private Func1<Throwable, Boolean> mFailurePredicate = TRANSPORT_AND_SERVER_ERRORS;
+    private Scheduler mScheduler = Schedulers.computation();
+    private State mState = State.CLOSED;
+    private long mOpenedAt;
+    private Object mProbe;
+    private long mProbeStartedAt;
+
+    public CircuitBreaker(final String name) {
+        mName = name;
+    }
+
+    /**
+     * Sets the number of the last calls whose failure rate is checked. The circuit does not
+     * open before this many calls are counted.
+     */
+    public synchronized CircuitBreaker setWindowSize(final int windowSize) {
+        mOutcomes = new boolean[windowSize];
+        reset();
+        return this;
+    }
+
+    /**
+     * Sets the rate of the failed calls in the window opening the circuit, between 0 and 1.
+     */
+    public synchronized CircuitBreaker setFailureRateThreshold(final float threshold) {
+        mFailureRateThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Sets how long the circuit stays open before probing the data source.
+     */
+    public synchronized CircuitBreaker setOpenDuration(final long duration, final TimeUnit unit) {
+        mOpenDurationMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * Sets the timeout of the calls, or {@link #NO_TIMEOUT}. The timed out calls count as
+     * failures. Defaults to {@link #DEFAULT_TIMEOUT_MILLIS}.
+     */
+    public synchronized CircuitBreaker setTimeout(final long timeout, final TimeUnit unit) {
+        mTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Sets the predicate returning true for the errors counted as failures. Defaults to {@link
+     * #TRANSPORT_AND_SERVER_ERRORS}. The timeouts of the calls are counted regardless of it.
+     */
+    public synchronized CircuitBreaker setFailurePredicate(
+          final Func1<Throwable, Boolean> failurePredicate) {
+        mFailurePredicate = failurePredicate;
+        return this;
+    }
+
+    /**
+     * Sets the {@link Scheduler} on which the timeouts are timed.
+     */
+    public synchronized CircuitBreaker setScheduler(final Scheduler scheduler) {
+        mScheduler = scheduler;
+        return this;
+    }
+
+    public synchronized State getState() {
+        if (mState == State.OPEN && now() - mOpenedAt >= mOpenDurationMillis) {
+            return State.HALF_OPEN;
+        }
+        return mState;
+    }
+
+    /**
+     * Returns the given call guarded by this circuit breaker: it fails with a {@link
+     * CircuitOpenException} on subscription if the circuit is open, otherwise its outcome is
+     * counted, and it fails with a {@link java.util.concurrent.TimeoutException} if it does not
+     * terminate within the timeout.
+     */
+    public <T> Observable<T> protect(final Observable<T> call) {
+        return Observable.defer(() -> {
+            final Object token = new Object();
+            if (!tryAcquire(token)) {
+                return Observable.error(
+                      new CircuitOpenException("The circuit of " + mName + " is open."));
+            }
+            final long timeoutMillis;
+            final Scheduler scheduler;
+            final Func1<Throwable, Boolean> failurePredicate;
+            synchronized (this) {
+                timeoutMillis = mTimeoutMillis;
+                scheduler = mScheduler;
+                failurePredicate = mFailurePredicate;
+            }
+            final Observable<T> timed = timeoutMillis > NO_TIMEOUT
+                                        ? call.timeout(timeoutMillis, TimeUnit.MILLISECONDS,
+                                                       scheduler)
+                                        : call;
+            final AtomicBoolean counted = new AtomicBoolean();
+            return timed.doOnNext(value -> {
+                if (counted.compareAndSet(false, true)) {
+                    onSuccess(token);
+                }
+            }).doOnCompleted(() -> {
+                if (counted.compareAndSet(false, true)) {
+                    onSuccess(token);
+                }
+            }).doOnError(throwable -> {
+                if (counted.compareAndSet(false, true)) {
+                    if (throwable instanceof TimeoutException || failurePredicate.call(throwable)) {
+                        onFailure(token);
+                    } else {
+                        onSuccess(token);
+                    }
+                }
+            }).doOnUnsubscribe(() -> {
+                if (!counted.get()) {
+                    releaseProbe(token);
+                }
+            });
+        });
+    }
+
+    /**
+     * Closes the circuit and forgets the counted calls.
+     */
+    public synchronized void reset() {
+        mState = State.CLOSED;
+        mProbe = null;
+        mCalls = 0;
+        mFailures = 0;
+        mNext = 0;
+    }
+
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Returns true if the call of the given token may go through. In the half-open state only
+     * one call is let through as the probe, until its outcome is counted, or its timeout elapses
+     * after it was unsubscribed.
+     */
+    private synchronized boolean tryAcquire(final Object token) {
+        switch (mState) {
+            case OPEN:
+                if (now() - mOpenedAt < mOpenDurationMillis) {
+                    return false;
+                }
+                Log.d("CircuitBreaker", mName, "half-open");
+                mState = State.HALF_OPEN;
+                break;
+            case HALF_OPEN:
+                if (mProbe != null && (mTimeoutMillis == NO_TIMEOUT
+                                       || now() - mProbeStartedAt < mTimeoutMillis)) {
+                    return false;
+                }
+                break;
+            default:
+                return true;
+        }
+        mProbe = token;
+        mProbeStartedAt = now();
+        return true;
+    }
+
+    /**
+     * Counts the success of the call of the given token. In the half-open state only the
+     * outcome of the probe is counted, the calls let through before are ignored.
+     */
+    private synchronized void onSuccess(final Object token) {
+        if (mState == State.HALF_OPEN) {
+            if (token == mProbe) {
+                Log.d("CircuitBreaker", mName, "closed");
+                reset();
+            }
+        } else if (mState == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    private synchronized void onFailure(final Object token) {
+        if (mState == State.HALF_OPEN) {
+            if (token == mProbe) {
+                open();
+            }
+        } else if (mState == State.CLOSED) {
+            record(true);
+            if (mCalls == mOutcomes.length
+                && mFailures >= mFailureRateThreshold * mOutcomes.length) {
+                open();
+            }
+        }
+    }
+
+    /**
+     * Lets the next probe through if the probe of the given token was unsubscribed before its
+     * outcome was counted, and it has no timeout. With a timeout, the unsubscribed probe holds
+     * the half-open state until it elapses, as its request may still be in flight.
+     */
+    private synchronized void releaseProbe(final Object token) {
+        if (mState == State.HALF_OPEN && token == mProbe && mTimeoutMillis == NO_TIMEOUT) {
+            mProbe = null;
+        }
+    }
+
+    private void open() {
+        Log.w("CircuitBreaker", mName, "open");
+        mState = State.OPEN;
+        mOpenedAt = now();
+        mProbe = null;
+    }
+
+    private void record(final boolean failure) {
+        if (mCalls == mOutcomes.length) {
+            if (mOutcomes[mNext]) {
+                mFailures--;
+            }
+        } else {
+            mCalls++;
+        }
+        mOutcomes[mNext] = failure;
+        if (failure) {
+            mFailures++;
+        }
+        mNext = (mNext + 1) % mOutcomes.length;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+
+package com.neatier.repository;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link RepositoryMetrics} keeping hit, miss, error counters and latency histograms per data
+ * source in preallocated atomic arrays, so recording does not allocate. Data sources with an
+ * index above the maximum are counted into the last slot of their type.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class CounterRepositoryMetrics implements RepositoryMetrics {
+
+    public static final int DEFAULT_MAX_SOURCES = 8;
+
+    /**
+     * The upper bounds of the latency histogram buckets in microseconds, the last bucket counts
+     * the slower calls.
+     */
+    private static final long[] BUCKET_BOUNDS_MICROS = {
+          100, 500, 1000, 5000, 10000, 50000, 100000, 500000, 1000000
+    };
+    private static final int BUCKET_COUNT = BUCKET_BOUNDS_MICROS.length + 1;
+    private static final int SOURCE_TYPES = Source.values().length;
+
+    private final int mMaxSources;
+    private final AtomicLongArray mHits;
+    private final AtomicLongArray mMisses;
+    private final AtomicLongArray mErrors;
+    private final AtomicLongArray mTotalNanos;
+    private final AtomicLongArray mHistogram;
+    private final AtomicLongArray mSkippedWrites;
+
+    public CounterRepositoryMetrics() {
+        this(DEFAULT_MAX_SOURCES);
+    }
+
+    /**
+     * @param maxSources the maximum number of the data sources of each type counted separately.
+     */
+    public CounterRepositoryMetrics(final int maxSources) {
+        mMaxSources = maxSources;
+        mHits = new AtomicLongArray(SOURCE_TYPES * maxSources);
+        mMisses = new AtomicLongArray(SOURCE_TYPES * maxSources);
+        mErrors = new AtomicLongArray(SOURCE_TYPES * maxSources);
+        mTotalNanos = new AtomicLongArray(SOURCE_TYPES * maxSources);
+        mHistogram = new AtomicLongArray(SOURCE_TYPES * maxSources * BUCKET_COUNT);
+        mSkippedWrites = new AtomicLongArray(maxSources);
+    }
+
+    @Override public void onLookup(final Source source, final int index, final boolean hit,
+          final long elapsedNanos) {
+        final int slot = slot(source, index);
+        if (hit) {
+            mHits.incrementAndGet(slot);
+        } else {
+            mMisses.incrementAndGet(slot);
+        }
+        recordLatency(slot, elapsedNanos);
+    }
+
+    @Override public void onWrite(final int index, final long elapsedNanos) {
+        final int slot = slot(Source.WRITEABLE, index);
+        mHits.incrementAndGet(slot);
+        recordLatency(slot, elapsedNanos);
+    }
+
+    @Override public void onWritesSkipped(final int tier, final int count) {
+        mSkippedWrites.addAndGet(Math.min(tier, mMaxSources - 1), count);
+    }
+
+    @Override public void onError(final Source source, final int index,
+          final Throwable throwable) {
+        mErrors.incrementAndGet(slot(source, index));
+    }
+
+    /**
+     * Returns the number of the lookups of the given data source which found a value, or the
+     * number of the completed writes of a writeable.
+     */
+    public long getHitCount(final Source source, final int index) {
+        return mHits.get(slot(source, index));
+    }
+
+    /**
+     * Returns the number of the lookups of the given data source which found nothing.
+     */
+    public long getMissCount(final Source source, final int index) {
+        return mMisses.get(slot(source, index));
+    }
+
+    public long getErrorCount(final Source source, final int index) {
+        return mErrors.get(slot(source, index));
+    }
+
+    /**
+     * Returns the number of the writes of unchanged values skipped by the given cache tier.
+     */
+    public long getSkippedWriteCount(final int tier) {
+        return mSkippedWrites.get(Math.min(tier, mMaxSources - 1));
+    }
+
+    /**
+     * Returns the ratio of the lookups served by any cache tier to all the lookups reaching
+     * either the caches or the readables, or zero if there was none.
+     */
+    public double getCacheHitRatio() {
+        long cacheHits = 0;
+        long readableLookups = 0;
+        for (int i = 0; i < mMaxSources; i++) {
+            cacheHits += mHits.get(slot(Source.CACHE, i));
+            readableLookups += mHits.get(slot(Source.READABLE, i))
+                               + mMisses.get(slot(Source.READABLE, i));
+        }
+        final long total = cacheHits + readableLookups;
+        return total == 0 ? 0 : (double) cacheHits / total;
+    }
+
+    /**
+     * Returns the counts of the latency histogram buckets of the given data source.
+     */
+    public long[] getLatencyHistogram(final Source source, final int index) {
+        final int offset = slot(source, index) * BUCKET_COUNT;
+        final long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mHistogram.get(offset + i);
+        }
+        return counts;
+    }
+
+    /**
+     * Resets all the counters.
+     */
+    public void reset() {
+        for (int i = 0, len = mHits.length(); i < len; i++) {
+            mHits.set(i, 0);
+            mMisses.set(i, 0);
+            mErrors.set(i, 0);
+            mTotalNanos.set(i, 0);
+        }
+        for (int i = 0, len = mHistogram.length(); i < len; i++) {
+            mHistogram.set(i, 0);
+        }
+        for (int i = 0, len = mSkippedWrites.length(); i < len; i++) {
+            mSkippedWrites.set(i, 0);
+        }
+    }
+
+    /**
+     * Returns the text dump of the counters of the data sources which were called.
+     */
+    public String dump() {
+        final StringBuilder builder = new StringBuilder("RepositoryMetrics{cacheHitRatio=")
+              .append(getCacheHitRatio()).append('}');
+        for (Source source : Source.values()) {
+            for (int index = 0; index < mMaxSources; index++) {
+                final int slot = slot(source, index);
+                final long calls = mHits.get(slot) + mMisses.get(slot);
+                if (calls == 0 && mErrors.get(slot) == 0) {
+                    continue;
+                }
+                builder.append('\n').append(source).append('[').append(index).append("] ")
+                       .append("hits=").append(mHits.get(slot))
+                       .append(" misses=").append(mMisses.get(slot))
+                       .append(" errors=").append(mErrors.get(slot))
+                       .append(" avgMicros=").append(calls == 0 ? 0 : TimeUnit.NANOSECONDS
+                             .toMicros(mTotalNanos.get(slot) / calls))
+                       .append(" histogram=");
+                for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                    builder.append(bucket < BUCKET_BOUNDS_MICROS.length
+                                   ? "<" + BUCKET_BOUNDS_MICROS[bucket] + "us:"
+                                   : ">=" + BUCKET_BOUNDS_MICROS[bucket - 1] + "us:")
+                           .append(mHistogram.get(slot * BUCKET_COUNT + bucket))
+                           .append(bucket + 1 < BUCKET_COUNT ? " " : "");
+                }
+                if (source == Source.CACHE) {
+                    builder.append(" skippedWrites=").append(mSkippedWrites.get(index));
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    @Override public String toString() {
+        return dump();
+    }
+
+    private void recordLatency(final int slot, final long elapsedNanos) {
+        mTotalNanos.addAndGet(slot, elapsedNanos);
+        final long micros = TimeUnit.NANOSECONDS.toMicros(elapsedNanos);
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MICROS.length && micros >= BUCKET_BOUNDS_MICROS[bucket]) {
+            bucket++;
+        }
+        mHistogram.incrementAndGet(slot * BUCKET_COUNT + bucket);
+    }
+
+    private int slot(final Source source, final int index) {
+        return source.ordinal() * mMaxSources + Math.min(index, mMaxSources - 1);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+
+package com.neatier.repository;
+
+import com.neatier.commons.helpers.KeyValuePairs;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import rx.Observable;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import trikita.log.Log;
+
+/**
+ * Registry of the lookups currently in progress, keyed by the key and the request parameters
+ * of the lookup. Concurrent callers asking for the same key and parameters share one upstream
+ * subscription and receive the same value or error. When the last subscriber unsubscribes,
+ * the shared upstream subscription is cancelled.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class InFlightRequests<K, V> {
+
+    private final ConcurrentHashMap<RequestKey<K>, Observable<V>> inFlight =
+          new ConcurrentHashMap<>();
+
+    /**
+     * Returns an Observable which shares the lookup in progress for the given key and request
+     * parameters, or creates a new one with the given factory if there is none.
+     *
+     * @param key the key to lookup
+     * @param requestParams the request parameters of the lookup
+     * @param lookupFactory factory creating the upstream lookup Observable.
+     */
+    public Observable<V> coalesce(final K key, final KeyValuePairs<String, Object> requestParams,
+          final Func0<Observable<V>> lookupFactory) {
+        return Observable.defer(() -> {
+            final RequestKey<K> requestKey = new RequestKey<>(key, requestParams);
+            Observable<V> shared = inFlight.get(requestKey);
+            if (shared != null) {
+                Log.d("coalesce", "joining", key);
+                return shared;
+            }
+            final AtomicReference<Observable<V>> lookup = new AtomicReference<>();
+            lookup.set(lookupFactory.call()
+                                    .doOnTerminate(() -> release(requestKey, lookup.get()))
+                                    .doOnUnsubscribe(() -> release(requestKey, lookup.get()))
+                                    .replay(1)
+                                    .refCount());
+            shared = inFlight.putIfAbsent(requestKey, lookup.get());
+            return shared != null ? shared : lookup.get();
+        });
+    }
+
+    /**
+     * Returns an Observable emitting the values of the given keys, sharing the lookups in
+     * progress for the keys being looked up with the same request parameters, and looking up the
+     * rest in one batch created with the given factory. While the batch is in progress, the
+     * lookups of its keys by {@link #coalesce(Object, KeyValuePairs, Func0)} and by other batches
+     * join it.
+     *
+     * @param keys the keys to lookup
+     * @param requestParams the request parameters of the lookup
+     * @param keyOf function returning the key of a value
+     * @param batchFactory factory creating the upstream lookup Observable of a batch of keys.
+     */
+    public Observable<V> coalesceAll(final Collection<K> keys,
+          final KeyValuePairs<String, Object> requestParams, final Func1<V, K> keyOf,
+          final Func1<List<K>, Observable<List<V>>> batchFactory) {
+        return Observable.defer(() -> {
+            final List<Observable<V>> lookups = new ArrayList<>(keys.size());
+            final List<K> batchKeys = new ArrayList<>();
+            for (K key : new LinkedHashSet<>(keys)) {
+                final Observable<V> shared = inFlight.get(new RequestKey<>(key, requestParams));
+                if (shared != null) {
+                    Log.d("coalesceAll", "joining", key);
+                    lookups.add(shared);
+                } else {
+                    batchKeys.add(key);
+                }
+            }
+            if (batchKeys.isEmpty()) {
+                return Observable.merge(lookups);
+            }
+            final List<RequestKey<K>> requestKeys = new ArrayList<>(batchKeys.size());
+            final List<Observable<V>> keyLookups = new ArrayList<>(batchKeys.size());
+            final Observable<List<V>> batch =
+                  Observable.defer(() -> batchFactory.call(batchKeys))
+                            .doOnTerminate(() -> releaseAll(requestKeys, keyLookups))
+                            .doOnUnsubscribe(() -> releaseAll(requestKeys, keyLookups))
+                            .replay(1)
+                            .refCount();
+            for (int i = 0, len = batchKeys.size(); i < len; i++) {
+                final K key = batchKeys.get(i);
+                final RequestKey<K> requestKey = new RequestKey<>(key, requestParams);
+                final Observable<V> keyLookup =
+                      batch.concatMap(Observable::from)
+                           .filter(value -> key.equals(keyOf.call(value)));
+                //a key registered meanwhile is looked up twice, its lookup is not replaced.
+                if (inFlight.putIfAbsent(requestKey, keyLookup) == null) {
+                    requestKeys.add(requestKey);
+                    keyLookups.add(keyLookup);
+                }
+            }
+            //subscribed once and first, a synchronous batch would be repeated for each key
+            //otherwise, and its keys would stay registered if a joined lookup failed first.
+            lookups.add(0, batch.concatMap(Observable::from));
+            return Observable.merge(lookups);
+        });
+    }
+
+    private void releaseAll(final List<RequestKey<K>> requestKeys,
+          final List<Observable<V>> lookups) {
+        for (int i = 0, len = requestKeys.size(); i < len; i++) {
+            inFlight.remove(requestKeys.get(i), lookups.get(i));
+        }
+    }
+
+    private void release(final RequestKey<K> requestKey, final Observable<V> lookup) {
+        inFlight.remove(requestKey, lookup);
+    }
+
+    /**
+     * Returns true if there is a lookup in progress for the given key, with any request
+     * parameters.
+     */
+    public boolean isInFlight(final K key) {
+        for (RequestKey<K> requestKey : inFlight.keySet()) {
+            if (key.equals(requestKey.key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of lookups currently in progress.
+     */
+    public int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * Composite key of a lookup key and its request parameters.
+     */
+    static final class RequestKey<K> {
+        final K key;
+        final KeyValuePairs<String, Object> requestParams;
+
+        RequestKey(final K key, final KeyValuePairs<String, Object> requestParams) {
+            this.key = key;
+            this.requestParams = requestParams;
+        }
+
+        @Override public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            RequestKey<?> that = (RequestKey<?>) o;
+            return key.equals(that.key)
+                  && (requestParams != null
+                      ? requestParams.equals(that.requestParams)
+                      : that.requestParams == null);
+        }
+
+        @Override public int hashCode() {
+            return 31 * key.hashCode() + (requestParams != null ? requestParams.hashCode() : 0);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+package com.neatier.repository;
+
+import java.util.Arrays;
+
+/**
+ * Tracks the latencies of the last calls of a data source in a fixed size window, to estimate
+ * their percentiles.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class LatencyTracker {
+
+    public static final int DEFAULT_WINDOW_SIZE = 100;
+
+    /**
+     * The minimum number of the samples needed for an estimate.
+     */
+    public static final int MIN_SAMPLES = 5;
+
+    /**
+     * The value returned by {@link #getPercentile(int)} without enough samples.
+     */
+    public static final long NO_ESTIMATE = -1;
+
+    private final long[] mSamples;
+    private int mCount;
+    private int mNext;
+
+    public LatencyTracker() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    public LatencyTracker(final int windowSize) {
+        mSamples = new long[windowSize];
+    }
+
+    /**
+     * Records the latency of a call, replacing the oldest one if the window is full.
+     */
+    public synchronized void record(final long latencyMillis) {
+        mSamples[mNext] = latencyMillis;
+        mNext = (mNext + 1) % mSamples.length;
+        if (mCount < mSamples.length) {
+            mCount++;
+        }
+    }
+
+    /**
+     * Returns the given percentile of the recorded latencies in milliseconds, or {@link
+     * #NO_ESTIMATE} if less than {@link #MIN_SAMPLES} latencies were recorded.
+     *
+     * @param percentile the percentile between 1 and 100.
+     */
+    public synchronized long getPercentile(final int percentile) {
+        if (mCount < MIN_SAMPLES) {
+            return NO_ESTIMATE;
+        }
+        final long[] sorted = Arrays.copyOf(mSamples, mCount);
+        Arrays.sort(sorted);
+        final int rank = (int) Math.ceil(percentile / 100.0 * mCount);
+        return sorted[Math.max(0, Math.min(mCount, rank) - 1)];
+    }
+
+    public synchronized int getSampleCount() {
+        return mCount;
+    }
+
+    public synchronized void reset() {
+        mCount = 0;
+        mNext = 0;
+    }
+}
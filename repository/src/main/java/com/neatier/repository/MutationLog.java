@@ -0,0 +1,525 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+package com.neatier.repository;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.neatier.data.entity.Identifiable;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import rx.Observable;
+import rx.functions.Func1;
+import trikita.log.Log;
+
+/**
+ * Durable, append-only log of the writes which could not reach the writeables for the lack of
+ * network connection. Each {@link Mutation} is appended as one JSON line, and the pending
+ * mutations are kept coalesced in memory, only the latest one of a key is replayed. A replayed
+ * or discarded mutation is dropped by appending a drop line of its key. The file is compacted
+ * when it would grow over its maximum size, or when its dead lines outnumber the pending
+ * mutations, and a mutation is rejected if it does not fit even after the compaction.
+ * <p>
+ * A crash may leave the last line without its line break. When the log is opened, such a line
+ * is completed if it holds a whole mutation, otherwise it is truncated, so the next append
+ * starts on a new line.
+ * <p>
+ * A mutation is logged as a whole, even if some of the writeables accepted it before the
+ * others failed, and it is replayed to all of them. So the writeables have to apply a
+ * replayed put or delete idempotently.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class MutationLog<K, V extends Identifiable<K>> {
+
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    public static final int DEFAULT_BATCH_RETRIES = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String FIELD_OPERATION = "op";
+    private static final String FIELD_KEY = "key";
+    private static final String FIELD_VALUE = "value";
+    private static final String OPERATION_DROP = "DROP";
+    private static final int MIN_DEAD_LINES_TO_COMPACT = 64;
+
+    /**
+     * A logged write of a value or a deletion of a key.
+     */
+    public static final class Mutation<K, V> {
+
+        public enum Type {
+            PUT, DELETE
+        }
+
+        private final Type type;
+        private final K key;
+        private final V value;
+
+        private Mutation(final Type type, final K key, final V value) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+        }
+
+        public static <K, V extends Identifiable<K>> Mutation<K, V> put(final V value) {
+            return new Mutation<>(Type.PUT, value.getKey(), value);
+        }
+
+        public static <K, V> Mutation<K, V> delete(final K key) {
+            return new Mutation<>(Type.DELETE, key, null);
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * Returns the written value, or null for a deletion.
+         */
+        public V getValue() {
+            return value;
+        }
+
+        @Override public String toString() {
+            return "Mutation{" + type + ", key=" + key + "}";
+        }
+    }
+
+    private final File file;
+    private final TypeAdapter<K> keyAdapter;
+    private final TypeAdapter<V> valueAdapter;
+    private final LinkedHashMap<K, Mutation<K, V>> pending = new LinkedHashMap<>();
+
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int batchRetries = DEFAULT_BATCH_RETRIES;
+    private boolean loaded;
+    private long fileLength;
+    private int lineCount;
+
+    /**
+     * @param file the file of the log, created on the first append.
+     * @param keyAdapter the type adapter of the keys.
+     * @param valueAdapter the type adapter of the values.
+     */
+    public MutationLog(final File file, final TypeAdapter<K> keyAdapter,
+          final TypeAdapter<V> valueAdapter) {
+        this.file = file;
+        this.keyAdapter = keyAdapter;
+        this.valueAdapter = valueAdapter;
+    }
+
+    /**
+     * Sets the maximum size of the log file in bytes.
+     */
+    public MutationLog<K, V> setMaxBytes(final long maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of the values written together by a replay.
+     */
+    public MutationLog<K, V> setBatchSize(final int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        return this;
+    }
+
+    /**
+     * Sets how many times a failed batch of a replay is retried before the replay stops.
+     */
+    public MutationLog<K, V> setBatchRetries(final int batchRetries) {
+        this.batchRetries = batchRetries;
+        return this;
+    }
+
+    /**
+     * Appends the given mutations to the log, superseding the pending mutations of their keys.
+     *
+     * @return false if the mutations were not logged, because they do not fit into the maximum
+     * size or the file could not be written.
+     */
+    public synchronized boolean appendAll(final Collection<Mutation<K, V>> mutations) {
+        ensureLoaded();
+        final StringBuilder lines = new StringBuilder();
+        for (Mutation<K, V> mutation : mutations) {
+            lines.append(encode(mutation)).append('\n');
+        }
+        final byte[] bytes = lines.toString().getBytes(UTF_8);
+        final LinkedHashMap<K, Mutation<K, V>> previous = new LinkedHashMap<>(pending);
+        for (Mutation<K, V> mutation : mutations) {
+            pending.remove(mutation.getKey());
+            pending.put(mutation.getKey(), mutation);
+        }
+        try {
+            if (fileLength + bytes.length <= maxBytes) {
+                write(file, bytes, true);
+                fileLength += bytes.length;
+                lineCount += mutations.size();
+                return true;
+            }
+            compact();
+            if (fileLength <= maxBytes) {
+                return true;
+            }
+            Log.w("appendAll", "the mutation log is full", file, fileLength);
+        } catch (IOException e) {
+            Log.e("appendAll", e);
+        }
+        pending.clear();
+        pending.putAll(previous);
+        try {
+            compact();
+        } catch (IOException e) {
+            Log.e("appendAll", e);
+        }
+        return false;
+    }
+
+    /**
+     * Drops the pending mutation of the given key, because a newer write of it succeeded.
+     *
+     * @return true if there was a pending mutation of the key.
+     */
+    public synchronized boolean discard(final K key) {
+        ensureLoaded();
+        if (pending.remove(key) == null) {
+            return false;
+        }
+        drop(Collections.singletonList(key));
+        return true;
+    }
+
+    /**
+     * Drops the pending mutations of the given keys, because newer writes of them succeeded.
+     *
+     * @return the number of the keys which had a pending mutation.
+     */
+    public synchronized int discardAll(final Collection<K> keys) {
+        ensureLoaded();
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        final List<K> dropped = new ArrayList<>();
+        for (K key : keys) {
+            if (pending.remove(key) != null) {
+                dropped.add(key);
+            }
+        }
+        if (!dropped.isEmpty()) {
+            drop(dropped);
+        }
+        return dropped.size();
+    }
+
+    /**
+     * Returns the pending mutations in the order of their last append.
+     */
+    public synchronized List<Mutation<K, V>> getPending() {
+        ensureLoaded();
+        return new ArrayList<>(pending.values());
+    }
+
+    /**
+     * Returns the number of the pending mutations.
+     */
+    public synchronized int size() {
+        ensureLoaded();
+        return pending.size();
+    }
+
+    /**
+     * Returns an Observable replaying the pending mutations in batches, emitting the number of
+     * the mutations of each replayed batch. The consecutive writes are replayed together by the
+     * given put action, up to the batch size, the deletions one by one by the given delete
+     * action. A replayed batch is removed from the log, unless its keys were mutated again
+     * meanwhile. A failed batch is retried, then the replay stops with the error, keeping the
+     * rest of the mutations.
+     *
+     * @param putAction function writing a batch of values.
+     * @param deleteAction function deleting a key.
+     */
+    public Observable<Integer> replay(final Func1<List<V>, Observable<List<V>>> putAction,
+          final Func1<K, Observable<Boolean>> deleteAction) {
+        return Observable.defer(() -> Observable.from(getBatches())).concatMap(batch -> {
+            final Observable<?> replayed;
+            if (batch.get(0).getType() == Mutation.Type.DELETE) {
+                replayed = deleteAction.call(batch.get(0).getKey());
+            } else {
+                final List<V> values = new ArrayList<>(batch.size());
+                for (int i = 0, len = batch.size(); i < len; i++) {
+                    values.add(batch.get(i).getValue());
+                }
+                replayed = putAction.call(values);
+            }
+            return replayed.retry(batchRetries)
+                           .takeLast(1)
+                           .doOnNext(result -> acknowledge(batch))
+                           .map(result -> batch.size());
+        });
+    }
+
+    /**
+     * Drops all the pending mutations and deletes the file.
+     */
+    public synchronized void clear() {
+        pending.clear();
+        loaded = true;
+        fileLength = 0;
+        lineCount = 0;
+        if (file.exists() && !file.delete()) {
+            Log.w("clear", "could not delete", file);
+        }
+    }
+
+    private synchronized List<List<Mutation<K, V>>> getBatches() {
+        ensureLoaded();
+        final List<List<Mutation<K, V>>> batches = new ArrayList<>();
+        List<Mutation<K, V>> puts = null;
+        for (Mutation<K, V> mutation : pending.values()) {
+            if (mutation.getType() == Mutation.Type.DELETE) {
+                puts = null;
+                final List<Mutation<K, V>> delete = new ArrayList<>(1);
+                delete.add(mutation);
+                batches.add(delete);
+            } else {
+                if (puts == null || puts.size() >= batchSize) {
+                    puts = new ArrayList<>(batchSize);
+                    batches.add(puts);
+                }
+                puts.add(mutation);
+            }
+        }
+        return batches;
+    }
+
+    private synchronized void acknowledge(final List<Mutation<K, V>> batch) {
+        final List<K> dropped = new ArrayList<>(batch.size());
+        for (int i = 0, len = batch.size(); i < len; i++) {
+            final Mutation<K, V> mutation = batch.get(i);
+            if (pending.get(mutation.getKey()) == mutation) {
+                pending.remove(mutation.getKey());
+                dropped.add(mutation.getKey());
+            }
+        }
+        if (!dropped.isEmpty()) {
+            drop(dropped);
+        }
+    }
+
+    /**
+     * Records the drop of the pending mutations of the given keys, already removed from the
+     * pending ones. The file is deleted when nothing is pending anymore, and compacted when its
+     * dead lines outnumber the pending mutations, otherwise a drop line of each key is appended,
+     * so the compaction costs amortized constant time per mutation.
+     */
+    private void drop(final List<K> keys) {
+        try {
+            final int deadLines = lineCount + keys.size() - pending.size();
+            if (pending.isEmpty()
+                || (deadLines >= MIN_DEAD_LINES_TO_COMPACT && deadLines > pending.size())) {
+                compact();
+                return;
+            }
+            final StringBuilder lines = new StringBuilder();
+            for (int i = 0, len = keys.size(); i < len; i++) {
+                lines.append(encodeDrop(keys.get(i))).append('\n');
+            }
+            final byte[] bytes = lines.toString().getBytes(UTF_8);
+            write(file, bytes, true);
+            fileLength += bytes.length;
+            lineCount += keys.size();
+        } catch (IOException e) {
+            Log.e("drop", e);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            final BufferedReader reader =
+                  new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            boolean lastLineDecoded = true;
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lineCount++;
+                    final Mutation<K, V> mutation = decode(line);
+                    lastLineDecoded = mutation != null;
+                    if (mutation != null) {
+                        pending.remove(mutation.getKey());
+                        if (mutation.getType() != null) {
+                            pending.put(mutation.getKey(), mutation);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            repairLastLine(lastLineDecoded);
+            fileLength = file.length();
+        } catch (IOException e) {
+            Log.e("ensureLoaded", e);
+        }
+    }
+
+    /**
+     * Ends the file with a line break if a crash interrupted its last append. The last line is
+     * completed if it was decoded, otherwise the fragment is truncated.
+     */
+    private void repairLastLine(final boolean lastLineDecoded) throws IOException {
+        final RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            final long length = out.length();
+            if (length == 0) {
+                return;
+            }
+            out.seek(length - 1);
+            if (out.read() == '\n') {
+                return;
+            }
+            if (lastLineDecoded) {
+                out.write('\n');
+            } else {
+                Log.w("repairLastLine", "truncating the partial last line", file);
+                out.setLength(findLastLineEnd(out, length));
+                lineCount--;
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the position after the last line break of the file, or 0 if there is none.
+     */
+    private static long findLastLineEnd(final RandomAccessFile in, final long length)
+          throws IOException {
+        final byte[] buffer = new byte[1024];
+        long end = length;
+        while (end > 0) {
+            final int count = (int) Math.min(buffer.length, end);
+            in.seek(end - count);
+            in.readFully(buffer, 0, count);
+            for (int i = count - 1; i >= 0; i--) {
+                if (buffer[i] == '\n') {
+                    return end - count + i + 1;
+                }
+            }
+            end -= count;
+        }
+        return 0;
+    }
+
+    /**
+     * Rewrites the file with the pending mutations only, replacing it atomically.
+     */
+    private void compact() throws IOException {
+        if (pending.isEmpty()) {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not delete " + file);
+            }
+            fileLength = 0;
+            lineCount = 0;
+            return;
+        }
+        final StringBuilder lines = new StringBuilder();
+        for (Mutation<K, V> mutation : pending.values()) {
+            lines.append(encode(mutation)).append('\n');
+        }
+        final byte[] bytes = lines.toString().getBytes(UTF_8);
+        final File compacted = new File(file.getPath() + ".tmp");
+        write(compacted, bytes, false);
+        if (!compacted.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+        fileLength = bytes.length;
+        lineCount = pending.size();
+    }
+
+    private static void write(final File file, final byte[] bytes, final boolean append)
+          throws IOException {
+        final FileOutputStream out = new FileOutputStream(file, append);
+        try {
+            out.write(bytes);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private String encode(final Mutation<K, V> mutation) {
+        final JsonObject json = new JsonObject();
+        json.addProperty(FIELD_OPERATION, mutation.getType().name());
+        json.add(FIELD_KEY, keyAdapter.toJsonTree(mutation.getKey()));
+        if (mutation.getValue() != null) {
+            json.add(FIELD_VALUE, valueAdapter.toJsonTree(mutation.getValue()));
+        }
+        return json.toString();
+    }
+
+    private String encodeDrop(final K key) {
+        final JsonObject json = new JsonObject();
+        json.addProperty(FIELD_OPERATION, OPERATION_DROP);
+        json.add(FIELD_KEY, keyAdapter.toJsonTree(key));
+        return json.toString();
+    }
+
+    /**
+     * Returns the mutation of the given line, a mutation without type for a drop line, or null if
+     * the line is malformed, like the last line of an append interrupted by a crash.
+     */
+    private Mutation<K, V> decode(final String line) {
+        try {
+            final JsonObject json = new JsonParser().parse(line).getAsJsonObject();
+            final String operation = json.get(FIELD_OPERATION).getAsString();
+            final K key = keyAdapter.fromJsonTree(json.get(FIELD_KEY));
+            if (OPERATION_DROP.equals(operation)) {
+                return new Mutation<>(null, key, null);
+            }
+            final Mutation.Type type = Mutation.Type.valueOf(operation);
+            return type == Mutation.Type.DELETE
+                   ? Mutation.<K, V>delete(key)
+                   : new Mutation<>(type, key, valueAdapter.fromJsonTree(json.get(FIELD_VALUE)));
+        } catch (JsonParseException | IllegalStateException | IllegalArgumentException
+              | NullPointerException e) {
+            Log.w("decode", "skipping malformed line", line, e);
+            return null;
+        }
+    }
+}
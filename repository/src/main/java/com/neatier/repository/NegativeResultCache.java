@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+
+package com.neatier.repository;
+
+import com.neatier.commons.helpers.KeyValuePairs;
+import com.neatier.repository.InFlightRequests.RequestKey;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of the keys which the readables reported as missing, so the repeated lookups
+ * of a nonexistent key can be answered locally until the time-to-live of the miss elapses.
+ * The misses are keyed by the key and the request parameters of the lookup, as a key missing
+ * with some parameters may exist with others. When the cache is full, the oldest miss is
+ * evicted.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class NegativeResultCache<K> {
+
+    public static final int DEFAULT_MAX_SIZE = 256;
+    public static final long DEFAULT_TIME_TO_LIVE_MILLIS = 30 * 1000;
+
+    private final LinkedHashMap<RequestKey<K>, Long> mMisses =
+          new LinkedHashMap<RequestKey<K>, Long>() {
+              @Override protected boolean removeEldestEntry(
+                    final Map.Entry<RequestKey<K>, Long> eldest) {
+                  return size() > mMaxSize;
+              }
+          };
+
+    private int mMaxSize = DEFAULT_MAX_SIZE;
+    private long mTimeToLiveMillis = DEFAULT_TIME_TO_LIVE_MILLIS;
+
+    /**
+     * Sets the maximum number of the misses kept.
+     */
+    public synchronized NegativeResultCache<K> setMaxSize(final int maxSize) {
+        mMaxSize = maxSize;
+        while (mMisses.size() > maxSize) {
+            mMisses.remove(mMisses.keySet().iterator().next());
+        }
+        return this;
+    }
+
+    /**
+     * Sets the time-to-live of the misses. Zero disables the negative caching.
+     */
+    public synchronized NegativeResultCache<K> setTimeToLive(final long timeToLive,
+          final TimeUnit unit) {
+        mTimeToLiveMillis = unit.toMillis(timeToLive);
+        return this;
+    }
+
+    /**
+     * Records that the given key is missing from the readables when looked up with the given
+     * request parameters.
+     */
+    public synchronized void recordMiss(final K key,
+          final KeyValuePairs<String, Object> requestParams) {
+        if (mTimeToLiveMillis > 0) {
+            final RequestKey<K> requestKey = new RequestKey<>(key, requestParams);
+            mMisses.remove(requestKey);
+            mMisses.put(requestKey, now() + mTimeToLiveMillis);
+        }
+    }
+
+    /**
+     * Returns true if the given key was recently reported missing when looked up with the given
+     * request parameters, and the miss is not expired.
+     */
+    public synchronized boolean isMissing(final K key,
+          final KeyValuePairs<String, Object> requestParams) {
+        if (mMisses.isEmpty()) {
+            return false;
+        }
+        final RequestKey<K> requestKey = new RequestKey<>(key, requestParams);
+        Long expiresAt = mMisses.get(requestKey);
+        if (expiresAt == null) {
+            return false;
+        }
+        if (expiresAt <= now()) {
+            mMisses.remove(requestKey);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the recorded misses of the given key, with any request parameters.
+     */
+    public synchronized void invalidate(final K key) {
+        for (Iterator<RequestKey<K>> it = mMisses.keySet().iterator(); it.hasNext(); ) {
+            if (key.equals(it.next().key)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets all the recorded misses.
+     */
+    public synchronized void clear() {
+        mMisses.clear();
+    }
+
+    public synchronized int size() {
+        return mMisses.size();
+    }
+
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+}
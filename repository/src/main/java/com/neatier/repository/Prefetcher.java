@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+package com.neatier.repository;
+
+import com.neatier.commons.helpers.PrioritizedLongTaskScheduler;
+import com.neatier.commons.helpers.RxUtils;
+import com.neatier.data.entity.Identifiable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscription;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+import rx.subscriptions.CompositeSubscription;
+import rx.subscriptions.Subscriptions;
+import trikita.log.Log;
+
+/**
+ * Loads the values of the keys predicted to be accessed soon into the caches, in the
+ * background. The keys already available are skipped, the rest are fetched in batches, each
+ * one counting as one request. A prefetch stops when its request budget or byte budget is
+ * used up, so it never competes for long with the interactive reads.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class Prefetcher<K, V extends Identifiable<K>> {
+
+    public static final int DEFAULT_BATCH_SIZE = 20;
+    public static final int DEFAULT_MAX_REQUESTS = 5;
+    public static final long NO_BYTE_BUDGET = -1;
+
+    private final Func1<List<K>, Observable<List<V>>> mFetchAction;
+    private final Func1<K, Boolean> mAvailableCheck;
+    private final CompositeSubscription mSubscriptions = new CompositeSubscription();
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mPrefetchedCount = new AtomicLong();
+    private final AtomicLong mSkippedCount = new AtomicLong();
+    private final AtomicLong mByteCount = new AtomicLong();
+
+    private volatile int mBatchSize = DEFAULT_BATCH_SIZE;
+    private volatile int mMaxRequests = DEFAULT_MAX_REQUESTS;
+    private volatile ByteBudget<V> mByteBudget = new ByteBudget<>(NO_BYTE_BUDGET, null);
+    private volatile Scheduler mScheduler = Schedulers.io();
+
+    /**
+     * @param fetchAction function loading the values of a batch of keys into the caches,
+     * returning an Observable emitting the loaded values.
+     * @param availableCheck function returning true if the value of a key needs no prefetch,
+     * because it is cached, being fetched, or known to be missing.
+     */
+    public Prefetcher(final Func1<List<K>, Observable<List<V>>> fetchAction,
+          final Func1<K, Boolean> availableCheck) {
+        mFetchAction = fetchAction;
+        mAvailableCheck = availableCheck;
+    }
+
+    /**
+     * Sets the maximum number of the keys fetched in one request.
+     */
+    public Prefetcher<K, V> setBatchSize(final int batchSize) {
+        mBatchSize = Math.max(1, batchSize);
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of the requests of one prefetch.
+     */
+    public Prefetcher<K, V> setMaxRequests(final int maxRequests) {
+        mMaxRequests = maxRequests;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of the bytes loaded by one prefetch, measured by the given
+     * weigher. The request in progress when the budget is used up is completed, the further
+     * ones are skipped.
+     *
+     * @param maxBytes the byte budget, or {@link #NO_BYTE_BUDGET}.
+     * @param weigher function returning the approximate size of a value in bytes.
+     */
+    public Prefetcher<K, V> setByteBudget(final long maxBytes, final Func1<V, Integer> weigher) {
+        mByteBudget = new ByteBudget<>(maxBytes, weigher);
+        return this;
+    }
+
+    /**
+     * Sets the {@link Scheduler} on which the prefetches are performed, like the background lane
+     * of the {@link PrioritizedLongTaskScheduler} shared by the application.
+     */
+    public Prefetcher<K, V> setScheduler(final Scheduler scheduler) {
+        mScheduler = scheduler;
+        return this;
+    }
+
+    /**
+     * Starts prefetching the values of the given keys, in their order.
+     *
+     * @return the subscription of the prefetch, to cancel it.
+     */
+    public Subscription prefetch(final Collection<K> keys) {
+        final int batchSize = mBatchSize;
+        final int maxRequests = mMaxRequests;
+        final ByteBudget<V> byteBudget = mByteBudget;
+        final List<K> missing = filterMissing(new LinkedHashSet<>(keys));
+        mSkippedCount.addAndGet(keys.size() - missing.size());
+        if (missing.isEmpty() || maxRequests <= 0) {
+            return Subscriptions.empty();
+        }
+        final List<List<K>> batches = new ArrayList<>();
+        for (int from = 0, len = missing.size(); from < len; from += batchSize) {
+            batches.add(missing.subList(from, Math.min(len, from + batchSize)));
+        }
+        Log.d("prefetch", missing.size(), batches.size());
+        final long maxBytes = byteBudget.maxBytes;
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final Subscription[] holder = new Subscription[1];
+        final Subscription subscription =
+              Observable.from(batches)
+                        .concatMap(batch -> Observable.defer(() -> {
+                            final List<K> pending = filterMissing(batch);
+                            if (pending.isEmpty() || requests.get() >= maxRequests
+                                  || (maxBytes != NO_BYTE_BUDGET && bytes.get() >= maxBytes)) {
+                                mSkippedCount.addAndGet(batch.size());
+                                return Observable.<List<V>>empty();
+                            }
+                            mSkippedCount.addAndGet(batch.size() - pending.size());
+                            requests.incrementAndGet();
+                            mRequestCount.incrementAndGet();
+                            return mFetchAction.call(pending);
+                        }))
+                        .doOnNext(values -> {
+                            mPrefetchedCount.addAndGet(values.size());
+                            final long weight = byteBudget.weigh(values);
+                            bytes.addAndGet(weight);
+                            mByteCount.addAndGet(weight);
+                        })
+                        .subscribeOn(mScheduler)
+                        .doOnUnsubscribe(() -> mSubscriptions.remove(holder[0]))
+                        .subscribe(values -> {
+                        }, RxUtils.logRxError());
+        holder[0] = subscription;
+        if (!subscription.isUnsubscribed()) {
+            mSubscriptions.add(subscription);
+        }
+        return subscription;
+    }
+
+    /**
+     * Cancels all the prefetches in progress.
+     */
+    public void cancelAll() {
+        mSubscriptions.clear();
+    }
+
+    /**
+     * Returns the number of the requests made by the prefetches.
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Returns the number of the values loaded by the prefetches.
+     */
+    public long getPrefetchedCount() {
+        return mPrefetchedCount.get();
+    }
+
+    /**
+     * Returns the number of the keys skipped because they were available, or because the budget
+     * of their prefetch was used up.
+     */
+    public long getSkippedCount() {
+        return mSkippedCount.get();
+    }
+
+    /**
+     * Returns the number of the bytes loaded by the prefetches, or 0 without a weigher.
+     */
+    public long getByteCount() {
+        return mByteCount.get();
+    }
+
+    private List<K> filterMissing(final Collection<K> keys) {
+        final List<K> missing = new ArrayList<>(keys.size());
+        for (K key : keys) {
+            if (!mAvailableCheck.call(key)) {
+                missing.add(key);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * The byte budget of a prefetch with its weigher, replaced together.
+     */
+    private static final class ByteBudget<V> {
+        final long maxBytes;
+        final Func1<V, Integer> weigher;
+
+        ByteBudget(final long maxBytes, final Func1<V, Integer> weigher) {
+            this.maxBytes = maxBytes;
+            this.weigher = weigher;
+        }
+
+        long weigh(final List<V> values) {
+            if (weigher == null) {
+                return 0;
+            }
+            long weight = 0;
+            for (int i = 0, len = values.size(); i < len; i++) {
+                weight += weigher.call(values.get(i));
+            }
+            return weight;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+
+package com.neatier.repository;
+
+import com.neatier.commons.helpers.KeyValuePairs;
+import com.neatier.commons.helpers.TrimResult;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Normalized cache of query results: for each query, identified by its request parameters, only
+ * the ordered list of the keys of the result is stored, the values themselves are kept once in
+ * the cache data sources. An update of a value is so reflected in every query containing it.
+ * The key lists expire after their time-to-live, and the least recently used ones are evicted
+ * when the cache is full.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class QueryResultCache<K> {
+
+    public static final int DEFAULT_MAX_SIZE = 64;
+    public static final long DEFAULT_TIME_TO_LIVE_MILLIS = 5 * 60 * 1000;
+
+    private final LinkedHashMap<KeyValuePairs<String, Object>, Entry<K>> mQueries =
+          new LinkedHashMap<KeyValuePairs<String, Object>, Entry<K>>(16, 0.75f, true) {
+              @Override protected boolean removeEldestEntry(
+                    final Map.Entry<KeyValuePairs<String, Object>, Entry<K>> eldest) {
+                  return size() > mMaxSize;
+              }
+          };
+
+    private int mMaxSize = DEFAULT_MAX_SIZE;
+    private long mTimeToLiveMillis = DEFAULT_TIME_TO_LIVE_MILLIS;
+
+    /**
+     * Returns true if the given request parameters identify a query, so the result should be
+     * cached by this cache, false if they are null or empty meaning all the values.
+     */
+    public static boolean isQuery(final KeyValuePairs<String, Object> requestParams) {
+        return requestParams != null && requestParams.size() > 0;
+    }
+
+    public synchronized QueryResultCache<K> setMaxSize(final int maxSize) {
+        mMaxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Sets the time-to-live of the stored key lists.
+     */
+    public synchronized QueryResultCache<K> setTimeToLive(final long timeToLive,
+          final TimeUnit unit) {
+        mTimeToLiveMillis = unit.toMillis(timeToLive);
+        return this;
+    }
+
+    /**
+     * Stores the ordered keys of the result of the query identified by the given request
+     * parameters.
+     */
+    public synchronized void put(final KeyValuePairs<String, Object> requestParams,
+          final List<K> keys) {
+        KeyValuePairs<String, Object> query =
+              new KeyValuePairs<String, Object>(new HashMap<>(requestParams.size()));
+        query.copy(requestParams);
+        mQueries.put(query, new Entry<>(new ArrayList<>(keys), now() + mTimeToLiveMillis));
+    }
+
+    /**
+     * Returns the ordered keys of the result of the query, or null if it is not cached or
+     * expired.
+     */
+    public synchronized List<K> get(final KeyValuePairs<String, Object> requestParams) {
+        Entry<K> entry = mQueries.get(requestParams);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= now()) {
+            mQueries.remove(requestParams);
+            return null;
+        }
+        return entry.keys;
+    }
+
+    /**
+     * Forgets the result of the query identified by the given request parameters.
+     */
+    public synchronized void invalidate(final KeyValuePairs<String, Object> requestParams) {
+        mQueries.remove(requestParams);
+    }
+
+    /**
+     * Forgets all the query results.
+     */
+    public synchronized void clear() {
+        mQueries.clear();
+    }
+
+    /**
+     * Forgets the given fraction of the query results, the least recently used ones first.
+     *
+     * @return the number of the forgotten query results.
+     */
+    public synchronized int trim(final float fraction) {
+        final int count = TrimResult.entriesToDrop(mQueries.size(), fraction);
+        final Iterator<KeyValuePairs<String, Object>> queries = mQueries.keySet().iterator();
+        for (int i = 0; i < count; i++) {
+            queries.next();
+            queries.remove();
+        }
+        return count;
+    }
+
+    public synchronized int size() {
+        return mQueries.size();
+    }
+
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    private static final class Entry<K> {
+        final List<K> keys;
+        final long expiresAt;
+
+        Entry(final List<K> keys, final long expiresAt) {
+            this.keys = keys;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -35,13 +35,20 @@ public enum ReadPolicy {
     /**
      * Lookup any data sources.
      */
-    READ_ALL;
+    READ_ALL,
+
+    /**
+     * Emit the cached entry immediately, then refresh it from the {@link
+     * AsyncDataSources.ReadableAsyncDataSource}s, update the caches, and emit the fresh entry
+     * only if it differs from the cached one.
+     */
+    STALE_WHILE_REVALIDATE;
 
     public boolean useCache() {
-        return this == CACHE_ONLY || this == READ_ALL;
+        return this == CACHE_ONLY || this == READ_ALL || this == STALE_WHILE_REVALIDATE;
     }
 
     public boolean useReadable() {
-        return this == READABLE_ONLY || this == READ_ALL;
+        return this == READABLE_ONLY || this == READ_ALL || this == STALE_WHILE_REVALIDATE;
     }
 }
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+package com.neatier.repository;
+
+import com.neatier.repository.datasource.AsyncDataSources;
+
+/**
+ * Enum class for defining how the key lookups are distributed among the multiple {@link
+ * AsyncDataSources.ReadableAsyncDataSource}s of a repository.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public enum ReadableMode {
+    /**
+     * Lookup all the readables at once and merge their values.
+     */
+    MERGE,
+
+    /**
+     * Lookup the first readable, and ask the next one only if the previous one has not answered
+     * within its tracked 95th percentile latency, or failed. The first value wins, and the
+     * lookups still running are cancelled.
+     */
+    HEDGED
+}
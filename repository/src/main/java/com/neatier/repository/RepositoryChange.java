@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+
+package com.neatier.repository;
+
+/**
+ * Immutable event describing a change of the data of an {@link AsyncRepository}.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public final class RepositoryChange<K, V> {
+
+    /**
+     * The type of the change.
+     */
+    public enum Type {
+        /**
+         * The value of the key was added or updated.
+         */
+        UPDATED,
+
+        /**
+         * The value of the key was deleted.
+         */
+        DELETED,
+
+        /**
+         * All the values were deleted.
+         */
+        CLEARED
+    }
+
+    private final Type type;
+    private final K key;
+    private final V value;
+
+    private RepositoryChange(final Type type, final K key, final V value) {
+        this.type = type;
+        this.key = key;
+        this.value = value;
+    }
+
+    public static <K, V> RepositoryChange<K, V> updated(final K key, final V value) {
+        return new RepositoryChange<>(Type.UPDATED, key, value);
+    }
+
+    public static <K, V> RepositoryChange<K, V> deleted(final K key) {
+        return new RepositoryChange<>(Type.DELETED, key, null);
+    }
+
+    public static <K, V> RepositoryChange<K, V> cleared() {
+        return new RepositoryChange<>(Type.CLEARED, null, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the key of the changed value, or null if the type is {@link Type#CLEARED}.
+     */
+    public K getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the new value if the type is {@link Type#UPDATED}, otherwise null.
+     */
+    public V getValue() {
+        return value;
+    }
+
+    @Override public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        RepositoryChange<?, ?> that = (RepositoryChange<?, ?>) o;
+        return type == that.type
+              && (key != null ? key.equals(that.key) : that.key == null)
+              && (value != null ? value.equals(that.value) : that.value == null);
+    }
+
+    @Override public int hashCode() {
+        int result = type.hashCode();
+        result = 31 * result + (key != null ? key.hashCode() : 0);
+        return 31 * result + (value != null ? value.hashCode() : 0);
+    }
+
+    @Override public String toString() {
+        return "RepositoryChange{" + type + ", key=" + key + ", value=" + value + "}";
+    }
+}
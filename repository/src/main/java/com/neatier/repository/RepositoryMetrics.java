@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+
+package com.neatier.repository;
+
+import com.neatier.repository.datasource.AsyncCacheDataSource;
+import com.neatier.repository.datasource.AsyncDataSources.ReadableAsyncDataSource;
+import com.neatier.repository.datasource.AsyncDataSources.WriteableAsyncDataSource;
+
+/**
+ * Listener of the data source calls made by an {@link AsyncRepository}, to measure the hit
+ * ratio of the cache tiers, the latency of the data sources and the errors. The data sources
+ * are identified by their {@link Source} type and their index in the order of registration.
+ * The methods are called on the threads performing the calls, so implementations must be
+ * thread safe and fast.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public interface RepositoryMetrics {
+
+    /**
+     * The type of the data source called.
+     */
+    enum Source {
+        /**
+         * An {@link AsyncCacheDataSource} tier.
+         */
+        CACHE,
+
+        /**
+         * A {@link ReadableAsyncDataSource}.
+         */
+        READABLE,
+
+        /**
+         * A {@link WriteableAsyncDataSource}.
+         */
+        WRITEABLE
+    }
+
+    /**
+     * Metrics ignoring all the calls.
+     */
+    RepositoryMetrics NONE = new RepositoryMetrics() {
+        @Override public void onLookup(final Source source, final int index, final boolean hit,
+              final long elapsedNanos) {
+        }
+
+        @Override public void onWrite(final int index, final long elapsedNanos) {
+        }
+
+        @Override public void onWritesSkipped(final int tier, final int count) {
+        }
+
+        @Override public void onError(final Source source, final int index,
+              final Throwable throwable) {
+        }
+    };
+
+    /**
+     * Called when a lookup of a cache tier or a readable completed.
+     *
+     * @param source the type of the data source
+     * @param index the index of the data source
+     * @param hit true if the lookup found any value
+     * @param elapsedNanos the duration of the lookup.
+     */
+    void onLookup(Source source, int index, boolean hit, long elapsedNanos);
+
+    /**
+     * Called when a write or delete of a writeable completed.
+     *
+     * @param index the index of the writeable
+     * @param elapsedNanos the duration of the write.
+     */
+    void onWrite(int index, long elapsedNanos);
+
+    /**
+     * Called when unchanged values were not rewritten into a cache tier.
+     *
+     * @param tier the index of the cache tier
+     * @param count the number of the skipped writes.
+     */
+    void onWritesSkipped(int tier, int count);
+
+    /**
+     * Called when a call of a data source failed.
+     *
+     * @param source the type of the data source
+     * @param index the index of the data source
+     * @param throwable the error
+     */
+    void onError(Source source, int index, Throwable throwable);
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+
+package com.neatier.repository;
+
+/**
+ * Immutable progress report of a cache warm-up of an {@link AsyncRepository}.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public final class WarmUpProgress {
+
+    private final int processed;
+    private final int loaded;
+    private final int total;
+    private final long elapsedMillis;
+
+    public WarmUpProgress(final int processed, final int loaded, final int total,
+          final long elapsedMillis) {
+        this.processed = processed;
+        this.loaded = loaded;
+        this.total = total;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * Returns the number of the keys processed so far.
+     */
+    public int getProcessed() {
+        return processed;
+    }
+
+    /**
+     * Returns the number of the values found and loaded so far.
+     */
+    public int getLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Returns the number of all the keys to be processed.
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Returns the time elapsed since the start of the warm-up in milliseconds.
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public boolean isCompleted() {
+        return processed >= total;
+    }
+
+    @Override public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        WarmUpProgress that = (WarmUpProgress) o;
+        return processed == that.processed && loaded == that.loaded && total == that.total
+              && elapsedMillis == that.elapsedMillis;
+    }
+
+    @Override public int hashCode() {
+        int result = processed;
+        result = 31 * result + loaded;
+        result = 31 * result + total;
+        return 31 * result + (int) (elapsedMillis ^ (elapsedMillis >>> 32));
+    }
+
+    @Override public String toString() {
+        return "WarmUpProgress{" + processed + "/" + total + ", loaded=" + loaded
+              + ", elapsed=" + elapsedMillis + "ms}";
+    }
+}
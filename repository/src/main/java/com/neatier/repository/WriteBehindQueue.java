@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+
+package com.neatier.repository;
+
+import com.neatier.commons.helpers.RxUtils;
+import com.neatier.data.entity.Identifiable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscription;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+import rx.subjects.AsyncSubject;
+import trikita.log.Log;
+
+/**
+ * Queue of the pending writes of the {@link WritePolicy#WRITE_BEHIND} policy. Repeated writes
+ * of the same key are coalesced, only the latest value is kept. The pending values are flushed
+ * in one batch when their number reaches the maximum pending size, or when the flush delay
+ * elapses after the first value was queued. At most one flush is in flight at a time: a flush
+ * requested meanwhile waits for it, and the values queued meanwhile are flushed after it. The
+ * values of a failed flush are queued again, unless a newer value of the same key was queued,
+ * or the key was discarded since, and the next flush is delayed by an exponential backoff. A value
+ * failing more times than the retry limit, or dropped as the oldest one from a queue at its
+ * capacity, is given up on and reported to the {@link OnWritesDroppedListener}.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class WriteBehindQueue<K, V extends Identifiable<K>> {
+
+    public static final int DEFAULT_MAX_PENDING_SIZE = 50;
+    public static final int DEFAULT_CAPACITY = 1000;
+    public static final int DEFAULT_MAX_RETRIES = 5;
+    public static final long DEFAULT_FLUSH_DELAY_MILLIS = 2000;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Listener notified when the values of a flush could not be written.
+     */
+    public interface OnFlushFailedListener<V> {
+        /**
+         * Called with the values of the failed flush and the cause. The values are queued again
+         * unless {@link #setRequeueOnFailure(boolean) disabled}, in which case the listener can
+         * decide to {@link #enqueue(Identifiable)} them again.
+         */
+        void onFlushFailed(List<V> values, Throwable throwable);
+    }
+
+    /**
+     * Listener notified of the values given up on, which are not queued again.
+     */
+    public interface OnWritesDroppedListener<V> {
+        /**
+         * Called with the values failed more times than the retry limit and the cause of their
+         * last failure, or with the values dropped from the full queue and an {@link
+         * IllegalStateException}.
+         */
+        void onWritesDropped(List<V> values, Throwable throwable);
+    }
+
+    private final Func1<List<V>, Observable<List<V>>> mFlushAction;
+    private LinkedHashMap<K, V> mPending = new LinkedHashMap<>();
+    private final Set<K> mDiscardedInFlight = new HashSet<>();
+    private final Map<K, Integer> mFailedAttempts = new HashMap<>();
+
+    private int mMaxPendingSize = DEFAULT_MAX_PENDING_SIZE;
+    private int mCapacity = DEFAULT_CAPACITY;
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+    private long mFlushDelayMillis = DEFAULT_FLUSH_DELAY_MILLIS;
+    private long mMaxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+    private int mConsecutiveFailures;
+    private Scheduler mScheduler = Schedulers.io();
+    private OnFlushFailedListener<V> mOnFlushFailedListener;
+    private OnWritesDroppedListener<V> mOnWritesDroppedListener;
+    private Subscription mScheduledFlush;
+    private boolean mRequeueOnFailure = true;
+    private AsyncSubject<Void> mFlushInFlight;
+    private boolean mFlushRequested;
+    private boolean mDiscardedAllInFlight;
+
+    /**
+     * @param flushAction function writing a batch of values, returning an Observable emitting
+     * the written values.
+     */
+    public WriteBehindQueue(final Func1<List<V>, Observable<List<V>>> flushAction) {
+        mFlushAction = flushAction;
+    }
+
+    public WriteBehindQueue<K, V> setMaxPendingSize(final int maxPendingSize) {
+        mMaxPendingSize = maxPendingSize;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of the pending writes. Queuing a new key into a full queue drops
+     * the oldest pending write.
+     */
+    public synchronized WriteBehindQueue<K, V> setCapacity(final int capacity) {
+        mCapacity = capacity;
+        return this;
+    }
+
+    /**
+     * Sets how many times the write of a value is retried after a failed flush before it is
+     * given up on.
+     */
+    public synchronized WriteBehindQueue<K, V> setMaxRetries(final int maxRetries) {
+        mMaxRetries = maxRetries;
+        return this;
+    }
+
+    public WriteBehindQueue<K, V> setFlushDelay(final long flushDelay, final TimeUnit unit) {
+        mFlushDelayMillis = unit.toMillis(flushDelay);
+        return this;
+    }
+
+    /**
+     * Sets the maximum delay of the flush after consecutive failed flushes. The flush delay is
+     * doubled after each failure up to this.
+     */
+    public synchronized WriteBehindQueue<K, V> setMaxBackoff(final long maxBackoff,
+          final TimeUnit unit) {
+        mMaxBackoffMillis = unit.toMillis(maxBackoff);
+        return this;
+    }
+    /**
+     * Sets the {@link Scheduler} on which the flushes are performed.
+     */
+    public WriteBehindQueue<K, V> setScheduler(final Scheduler scheduler) {
+        mScheduler = scheduler;
+        return this;
+    }
+
+    public WriteBehindQueue<K, V> setOnFlushFailedListener(
+          final OnFlushFailedListener<V> onFlushFailedListener) {
+        mOnFlushFailedListener = onFlushFailedListener;
+        return this;
+    }
+
+    public WriteBehindQueue<K, V> setOnWritesDroppedListener(
+          final OnWritesDroppedListener<V> onWritesDroppedListener) {
+        mOnWritesDroppedListener = onWritesDroppedListener;
+        return this;
+    }
+
+    /**
+     * Sets whether the values of a failed flush are queued again, true by default.
+     */
+    public synchronized WriteBehindQueue<K, V> setRequeueOnFailure(
+          final boolean requeueOnFailure) {
+        mRequeueOnFailure = requeueOnFailure;
+        return this;
+    }
+
+    /**
+     * Queues the given value, replacing the pending value of the same key if there is any, and
+     * triggers or schedules a flush.
+     */
+    public void enqueue(final V value) {
+        final boolean flushNow;
+        final List<V> dropped;
+        synchronized (this) {
+            mPending.put(value.getKey(), value);
+            mFailedAttempts.remove(value.getKey());
+            dropped = dropOverCapacity();
+            //a failed flush is retried after its backoff only.
+            flushNow = mPending.size() >= mMaxPendingSize && mConsecutiveFailures == 0;
+            if (!flushNow) {
+                scheduleFlush();
+            }
+        }
+        notifyDropped(dropped, new IllegalStateException("The write-behind queue is full."));
+        if (flushNow) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * Drops the pending write of the given key. The value of the key in the flush in flight is
+     * not queued again if the flush fails.
+     *
+     * @return true if there was a pending write of the key.
+     */
+    public synchronized boolean discard(final K key) {
+        if (mFlushInFlight != null) {
+            mDiscardedInFlight.add(key);
+        }
+        mFailedAttempts.remove(key);
+        return mPending.remove(key) != null;
+    }
+
+    /**
+     * Drops all the pending writes. The values of the flush in flight are not queued again if
+     * the flush fails.
+     */
+    public synchronized void discardAll() {
+        if (mFlushInFlight != null) {
+            mDiscardedAllInFlight = true;
+        }
+        mPending.clear();
+        mFailedAttempts.clear();
+    }
+
+    /**
+     * Returns the pending value of the given key, or null if there is none.
+     */
+    public synchronized V getPending(final K key) {
+        return mPending.get(key);
+    }
+
+    /**
+     * Returns the number of the pending writes.
+     */
+    public synchronized int size() {
+        return mPending.size();
+    }
+
+    /**
+     * Returns an Observable which writes all the pending values in one batch, and emits the
+     * written values. It emits an empty list if there was nothing pending. If a flush is in
+     * flight, the pending values are written after it terminated.
+     */
+    public Observable<List<V>> flush() {
+        return Observable.defer(() -> {
+            final List<V> batch;
+            final Map<K, Integer> failedAttempts;
+            final AsyncSubject<Void> flushInFlight;
+            synchronized (this) {
+                if (mFlushInFlight != null) {
+                    return mFlushInFlight.lastOrDefault(null).concatMap(done -> flush());
+                }
+                if (mScheduledFlush != null) {
+                    mScheduledFlush.unsubscribe();
+                    mScheduledFlush = null;
+                }
+                if (mPending.isEmpty()) {
+                    return Observable.just(new ArrayList<>());
+                }
+                batch = new ArrayList<>(mPending.values());
+                failedAttempts = new HashMap<>(mFailedAttempts);
+                mPending.clear();
+                mFailedAttempts.clear();
+                flushInFlight = AsyncSubject.create();
+                mFlushInFlight = flushInFlight;
+            }
+            Log.d("flush", batch.size());
+            final AtomicBoolean failed = new AtomicBoolean();
+            final AtomicBoolean finished = new AtomicBoolean();
+            return mFlushAction.call(batch).doOnError(throwable -> {
+                Log.w("flush", "failed", batch.size(), throwable);
+                failed.set(true);
+                final List<V> givenUp = requeue(batch, failedAttempts);
+                if (mOnFlushFailedListener != null) {
+                    mOnFlushFailedListener.onFlushFailed(batch, throwable);
+                }
+                notifyDropped(givenUp, throwable);
+            }).doOnTerminate(() -> {
+                if (finished.compareAndSet(false, true)) {
+                    finishFlush(flushInFlight, failed.get());
+                }
+            }).doOnUnsubscribe(() -> {
+                if (finished.compareAndSet(false, true)) {
+                    finishFlush(flushInFlight, failed.get());
+                }
+            });
+        });
+    }
+
+    /**
+     * Starts a flush on the scheduler, or marks it to be started after the flush in flight.
+     */
+    private void requestFlush() {
+        synchronized (this) {
+            if (mFlushInFlight != null) {
+                mFlushRequested = true;
+                return;
+            }
+        }
+        flush().subscribeOn(mScheduler).subscribe(values -> {
+        }, RxUtils.logRxError());
+    }
+
+    /**
+     * Schedules a flush after the flush delay, unless one is scheduled already.
+     */
+    private void scheduleFlush() {
+        if (mScheduledFlush != null) {
+            return;
+        }
+        final long delayMillis = Math.max(mFlushDelayMillis, Math.min(
+              mFlushDelayMillis << Math.min(mConsecutiveFailures, 20), mMaxBackoffMillis));
+        Subscription scheduledFlush =
+              Observable.timer(delayMillis, TimeUnit.MILLISECONDS, mScheduler)
+                        .subscribe(tick -> {
+                            synchronized (this) {
+                                mScheduledFlush = null;
+                            }
+                            requestFlush();
+                        }, RxUtils.logRxError());
+        mScheduledFlush = scheduledFlush.isUnsubscribed() ? null : scheduledFlush;
+    }
+
+    /**
+     * Queues the values of the given failed batch again ahead of the pending ones, leaving out
+     * the ones superseded by a pending value or discarded during the flush.
+     *
+     * @param failedAttempts the number of the earlier failed flushes of the batch values.
+     * @return the values given up on, as they failed more times than the retry limit, or they
+     * did not fit into the queue.
+     */
+    private synchronized List<V> requeue(final List<V> batch,
+          final Map<K, Integer> failedAttempts) {
+        final List<V> givenUp = new ArrayList<>();
+        if (!mRequeueOnFailure || mDiscardedAllInFlight) {
+            return givenUp;
+        }
+        final LinkedHashMap<K, V> pending = new LinkedHashMap<>();
+        for (int i = 0, len = batch.size(); i < len; i++) {
+            final K key = batch.get(i).getKey();
+            if (!mPending.containsKey(key) && !mDiscardedInFlight.contains(key)) {
+                final Integer previousAttempts = failedAttempts.get(key);
+                final int attempts = previousAttempts == null ? 1 : previousAttempts + 1;
+                if (attempts > mMaxRetries) {
+                    givenUp.add(batch.get(i));
+                } else {
+                    pending.put(key, batch.get(i));
+                    mFailedAttempts.put(key, attempts);
+                }
+            }
+        }
+        pending.putAll(mPending);
+        mPending = pending;
+        givenUp.addAll(dropOverCapacity());
+        return givenUp;
+    }
+
+    /**
+     * Drops the oldest pending values over the capacity, and returns them.
+     */
+    private List<V> dropOverCapacity() {
+        if (mPending.size() <= mCapacity) {
+            return Collections.emptyList();
+        }
+        final List<V> dropped = new ArrayList<>(mPending.size() - mCapacity);
+        final Iterator<V> iterator = mPending.values().iterator();
+        while (mPending.size() > mCapacity) {
+            final V value = iterator.next();
+            iterator.remove();
+            mFailedAttempts.remove(value.getKey());
+            dropped.add(value);
+        }
+        Log.w("dropOverCapacity", dropped.size());
+        return dropped;
+    }
+
+    private void notifyDropped(final List<V> values, final Throwable throwable) {
+        final OnWritesDroppedListener<V> listener = mOnWritesDroppedListener;
+        if (!values.isEmpty() && listener != null) {
+            listener.onWritesDropped(values, throwable);
+        }
+    }
+
+    /**
+     * Ends the flush in flight, and starts the next flush if one was requested meanwhile, or
+     * schedules it if there are values pending.
+     */
+    private void finishFlush(final AsyncSubject<Void> flushInFlight, final boolean failed) {
+        final boolean flushNow;
+        synchronized (this) {
+            mFlushInFlight = null;
+            mDiscardedInFlight.clear();
+            mDiscardedAllInFlight = false;
+            mConsecutiveFailures = failed ? mConsecutiveFailures + 1 : 0;
+            //a failed flush is retried after the backoff only, not to spin while failing.
+            flushNow = !failed && (mFlushRequested || mPending.size() >= mMaxPendingSize);
+            mFlushRequested = false;
+            if (!flushNow && !mPending.isEmpty()) {
+                scheduleFlush();
+            }
+        }
+        flushInFlight.onCompleted();
+        if (flushNow) {
+            requestFlush();
+        }
+    }
+}
@@ -33,5 +33,13 @@ public enum WritePolicy {
     /**
      * Write into all available data source.
      */
-    WRITE_ALL
+    WRITE_ALL,
+
+    /**
+     * Update the caches immediately, and queue the writes into all available data source,
+     * coalescing the repeated writes of the same key into one batched write.
+     *
+     * @see WriteBehindQueue
+     */
+    WRITE_BEHIND
 }
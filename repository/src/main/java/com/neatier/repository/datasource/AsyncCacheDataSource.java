@@ -15,12 +15,32 @@
 package com.neatier.repository.datasource;
 
 import com.fernandocejas.frodo.annotation.RxLogObservable;
+import com.google.gson.TypeAdapter;
+import com.neatier.commons.data.caching.InMemoryKeyedStorage;
 import com.neatier.commons.data.caching.OnDeviceKeyedStorage;
+import com.neatier.commons.helpers.MemoryTrimmable;
+import com.neatier.commons.helpers.TrimResult;
+import com.neatier.commons.helpers.RxUtils;
+import com.neatier.commons.settings.FactorySettings;
+import com.neatier.data.entity.BoundedInMemoryKeyTypedValueStorage;
+import com.neatier.data.entity.CacheEntryMetadata;
 import com.neatier.data.entity.Identifiable;
 import com.neatier.data.entity.OnDeviceKeyTypedValueStorage;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import rx.Observable;
+import rx.Scheduler;
+import rx.Subscription;
+import rx.functions.Func1;
+import trikita.log.Log;
 
 import static rx.Observable.error;
 import static rx.Observable.just;
@@ -36,18 +56,219 @@ public class AsyncCacheDataSource<K, V extends Identifiable<K>> {
 
     protected final OnDeviceKeyTypedValueStorage<K, V> onDeviceKeyedStorage;
 
+    /**
+     * The default time-to-live of the entries written into this data source in milliseconds.
+     */
+    private long mTimeToLiveMillis = CacheEntryMetadata.NO_EXPIRY;
+
+    /**
+     * The registered {@link SecondaryIndex}es by their names.
+     */
+    private final Map<String, SecondaryIndex<K, V, ?>> mIndexes = new ConcurrentHashMap<>();
+
+    private final AtomicLong mWriteCount = new AtomicLong();
+    private final AtomicLong mSkippedWriteCount = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
     public AsyncCacheDataSource(
           final OnDeviceKeyTypedValueStorage<K, V> onDeviceKeyedStorage) {
         this.onDeviceKeyedStorage = onDeviceKeyedStorage;
+        if (onDeviceKeyedStorage instanceof BoundedInMemoryKeyTypedValueStorage) {
+            final BoundedInMemoryKeyTypedValueStorage<K, V> boundedStorage =
+                  (BoundedInMemoryKeyTypedValueStorage<K, V>) onDeviceKeyedStorage;
+            boundedStorage.addEvictionListener((key, value) -> {
+                //The key may be written again since its eviction.
+                if (boundedStorage.peekOneByKey(key) == null) {
+                    removeFromIndexes(key);
+                }
+            });
+        }
     }
 
     /**
-     * Returns true if the given value is stored in the data source
+     * Sets the default time-to-live of the entries written into this data source. Entries older
+     * than this are treated as misses. Pass {@link CacheEntryMetadata#NO_EXPIRY} to keep the
+     * entries forever.
+     */
+    public AsyncCacheDataSource<K, V> setTimeToLive(final long timeToLive, final TimeUnit unit) {
+        mTimeToLiveMillis = unit.toMillis(timeToLive);
+        return this;
+    }
+
+    /**
+     * Registers a {@link SecondaryIndex} with the given name, indexing the values by the
+     * attribute returned by the given extractor. The index is built from the values currently
+     * stored, and maintained on each write and delete through this data source, and on each
+     * eviction of a {@link BoundedInMemoryKeyTypedValueStorage} afterwards.
+     *
+     * @param name the name of the index used for the lookups.
+     * @param extractor function returning the indexed attribute of a value.
+     * @return the registered index.
+     */
+    @SuppressWarnings("unchecked")
+    public <A extends Comparable<A>> SecondaryIndex<K, V, A> addIndex(final String name,
+          final Func1<V, A> extractor) {
+        final SecondaryIndex<K, V, A> index = new SecondaryIndex<>(name, extractor);
+        Observable<Object> keys = onDeviceKeyedStorage.keys();
+        for (Object key : keys.toList().toBlocking().single()) {
+            if (isFresh((K) key)) {
+                index.update((K) key, peekStored((K) key));
+            }
+        }
+        mIndexes.put(name, index);
+        return index;
+    }
+
+    /**
+     * Removes the {@link SecondaryIndex} with the given name.
+     */
+    public void removeIndex(final String name) {
+        mIndexes.remove(name);
+    }
+
+    /**
+     * Returns an Observable emitting the values having the given attribute in the index with
+     * the given name. Only the matching values are read from the storage.
+     *
+     * @throws IllegalArgumentException if there is no index with the given name.
+     */
+    public <A extends Comparable<A>> Observable<V> getByIndexAsync(final String name,
+          final A attribute) {
+        return Observable.defer(() -> getByKeysAsync(this.<A>getIndex(name).getKeys(attribute)));
+    }
+
+    /**
+     * Returns an Observable emitting the values having an attribute in the given range in the
+     * index with the given name, ordered by the attribute. Only the matching values are read
+     * from the storage.
+     *
+     * @param from the lower bound of the range, or null for no lower bound.
+     * @param to the upper bound of the range, or null for no upper bound.
+     * @throws IllegalArgumentException if there is no index with the given name.
+     * @see SecondaryIndex#getKeysInRange(Comparable, boolean, Comparable, boolean)
+     */
+    public <A extends Comparable<A>> Observable<V> getByIndexRangeAsync(final String name,
+          final A from, final boolean fromInclusive, final A to, final boolean toInclusive) {
+        return Observable.defer(() -> getByKeysAsync(
+              this.<A>getIndex(name).getKeysInRange(from, fromInclusive, to, toInclusive)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <A extends Comparable<A>> SecondaryIndex<K, V, A> getIndex(final String name) {
+        SecondaryIndex<K, V, ?> index = mIndexes.get(name);
+        if (index == null) {
+            throw new IllegalArgumentException("No index registered with name: " + name);
+        }
+        return (SecondaryIndex<K, V, A>) index;
+    }
+
+    /**
+     * Returns true if the given value is stored in the data source, and it is not expired.
      *
      * @see OnDeviceKeyedStorage#containsKey(Object)
+     * @see #isExpired(Object)
      */
     public boolean isValid(final V value) {
-        return onDeviceKeyedStorage.containsKey(value.getKey());
+        return isFresh(value.getKey());
+    }
+
+    /**
+     * Returns true if the entry with the given key has a time-to-live, which elapsed.
+     * Entries without {@link CacheEntryMetadata} never expire.
+     */
+    public boolean isExpired(final K key) {
+        CacheEntryMetadata metadata = onDeviceKeyedStorage.readEntryMetadata(key);
+        return metadata != null && metadata.isExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * Checks the state of the entry with the given key compared to the given time.
+     *
+     * @param key the key of the entry
+     * @param sinceMillis the wall clock time to compare the write time of the entry with.
+     * @return {@link FactorySettings#CHECK_CACHED_EXPIRED} if the entry is missing or expired,
+     * {@link FactorySettings#CHECK_CACHED_NEWER} if it was written after the given time, or
+     * {@link FactorySettings#CHECK_CACHED_UPTODATE} otherwise.
+     */
+    public int checkCached(final K key, final long sinceMillis) {
+        if (!isFresh(key)) {
+            return FactorySettings.CHECK_CACHED_EXPIRED;
+        }
+        CacheEntryMetadata metadata = onDeviceKeyedStorage.readEntryMetadata(key);
+        if (metadata != null && metadata.getWrittenAtMillis() > sinceMillis) {
+            return FactorySettings.CHECK_CACHED_NEWER;
+        }
+        return FactorySettings.CHECK_CACHED_UPTODATE;
+    }
+
+    /**
+     * Returns the stored value of the given key, or null if it is missing, without counting the
+     * read in the hit and miss statistics of a {@link BoundedInMemoryKeyTypedValueStorage}.
+     */
+    @SuppressWarnings("unchecked")
+    private V peekStored(final K key) {
+        if (onDeviceKeyedStorage instanceof BoundedInMemoryKeyTypedValueStorage) {
+            return ((BoundedInMemoryKeyTypedValueStorage<K, V>) onDeviceKeyedStorage)
+                  .peekOneByKey(key);
+        }
+        return onDeviceKeyedStorage.containsKey(key) ? onDeviceKeyedStorage.readOneByKey(key)
+                                                     : null;
+    }
+
+    private boolean isFresh(final K key) {
+        return onDeviceKeyedStorage.containsKey(key) && !isExpired(key);
+    }
+
+    /**
+     * Returns true if the storage of this data source keeps its contents in memory, so it can be
+     * read synchronously without I/O.
+     *
+     * @see InMemoryKeyedStorage
+     */
+    public final boolean isInMemory() {
+        return onDeviceKeyedStorage instanceof InMemoryKeyedStorage;
+    }
+
+    /**
+     * Drops the given fraction of the entries if the storage is a {@link MemoryTrimmable}, like
+     * the in-memory ones. The dropped keys are removed from the indexes through the eviction
+     * listener of the storage.
+     */
+    public TrimResult trim(final float fraction) {
+        return onDeviceKeyedStorage instanceof MemoryTrimmable
+               ? ((MemoryTrimmable) onDeviceKeyedStorage).trim(fraction)
+               : TrimResult.NONE;
+    }
+
+    /**
+     * Returns the stored value of the given key synchronously, or null if it is missing or
+     * expired. Unlike {@link #getByKeyAsync(Object)} it allocates nothing on its own, so it
+     * suits the hot paths reading {@link #isInMemory() in-memory} data sources.
+     */
+    public V getIfPresent(final K key) {
+        return isFresh(key) ? onDeviceKeyedStorage.readOneByKey(key) : null;
+    }
+
+    /**
+     * Returns all the stored values synchronously, leaving out the expired ones.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> peekAll() {
+        final List<K> keys;
+        if (isInMemory()) {
+            keys = ((InMemoryKeyedStorage<K>) onDeviceKeyedStorage).keySnapshot();
+        } else {
+            Observable<K> storedKeys = onDeviceKeyedStorage.keys();
+            keys = storedKeys.toList().toBlocking().single();
+        }
+        final List<V> values = new ArrayList<>(keys.size());
+        for (int i = 0, len = keys.size(); i < len; i++) {
+            V value = getIfPresent(keys.get(i));
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        return values;
     }
 
     /**
@@ -58,6 +279,9 @@ public class AsyncCacheDataSource<K, V extends Identifiable<K>> {
     public Observable<V> getAllAsync() {
         return onDeviceKeyedStorage.keys().flatMap(key -> {
             try {
+                if (isExpired((K) key)) {
+                    return Observable.empty();
+                }
                 V value = onDeviceKeyedStorage.readOneByKey((K) key);
                 if (value != null && isValid(value)) {
                     return Observable.just(value);
@@ -79,6 +303,9 @@ public class AsyncCacheDataSource<K, V extends Identifiable<K>> {
     public Observable<V> getByKeyAsync(final K key) {
         return just(key).flatMap(k -> {
             try {
+                if (isExpired(k)) {
+                    return Observable.empty();
+                }
                 V value = onDeviceKeyedStorage.readOneByKey(k);
                 if (value != null && isValid(value)) {
                     return Observable.just(value);
@@ -91,6 +318,31 @@ public class AsyncCacheDataSource<K, V extends Identifiable<K>> {
         });
     }
 
+    /**
+     * Returns an Observable emitting the values stored by the given keys in one sequential pass.
+     * Keys not found are left out, or {@link Observable#error(Throwable)} is returned if any
+     * Exception occurred.
+     */
+    public Observable<V> getByKeysAsync(final Collection<K> keys) {
+        return Observable.defer(() -> {
+            List<V> values = new ArrayList<>(keys.size());
+            try {
+                for (K key : keys) {
+                    if (!isFresh(key)) {
+                        continue;
+                    }
+                    V value = onDeviceKeyedStorage.readOneByKey(key);
+                    if (value != null && onDeviceKeyedStorage.containsKey(value.getKey())) {
+                        values.add(value);
+                    }
+                }
+            } catch (Exception e) {
+                return Observable.error(e);
+            }
+            return Observable.from(values);
+        });
+    }
+
     /**
      * Adds or update the provided value into this data source.
      *
@@ -99,11 +351,29 @@ public class AsyncCacheDataSource<K, V extends Identifiable<K>> {
      */
     @RxLogObservable
     public Observable<V> addOrUpdateAsync(final V value) {
+        return addOrUpdateAsync(value, mTimeToLiveMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds or update the provided value into this data source, with the given time-to-live
+     * overriding the default one of the data source.
+     *
+     * @param value The value to be persisted.
+     * @param timeToLive the time-to-live of the entry, or {@link CacheEntryMetadata#NO_EXPIRY}.
+     * @param unit the time unit of the time-to-live.
+     * @return an Observable emitting the value after its addition or update.
+     */
+    @RxLogObservable
+    public Observable<V> addOrUpdateAsync(final V value, final long timeToLive,
+          final TimeUnit unit) {
         return just(value).flatMap(v -> {
             try {
                 K key = v.getKey();
-                onDeviceKeyedStorage.writeKeyedContent(key, v);
-                return getByKeyAsync(key);
+                if (!write(key, v, unit.toMillis(timeToLive))) {
+                    return just(v);
+                }
+                V stored = peekStored(key);
+                return stored != null && !isExpired(key) ? just(stored) : Observable.empty();
             } catch (Exception e) {
                 return error(e);
             }
@@ -120,7 +390,7 @@ public class AsyncCacheDataSource<K, V extends Identifiable<K>> {
     public Observable<List<V>> addOrUpdateAllAsync(final Collection<V> values) {
         return Observable.from(values).flatMap(v -> {
             try {
-                onDeviceKeyedStorage.writeKeyedContent(v.getKey(), v);
+                write(v.getKey(), v, mTimeToLiveMillis);
                 return Observable.just(v);
             } catch (Exception e) {
                 return Observable.error(e);
@@ -128,6 +398,181 @@ public class AsyncCacheDataSource<K, V extends Identifiable<K>> {
         }).toList();
     }
 
+    /**
+     * Returns an Observable emitting one page of the values stored in this data source, reading
+     * only the values of the page. The keys are paged in the order of their string form, and the
+     * cursor is the string form of the last key of the previous page, so the keys written or
+     * removed between the pages do not shift the following pages. Expired entries are left out,
+     * so a page can contain less values than the page size.
+     *
+     * @param pageSize the maximum number of the values in the page.
+     * @param cursor the cursor returned by {@link Page#getNextCursor()} of the previous page, or
+     * null for the first page.
+     */
+    @SuppressWarnings("unchecked")
+    public Observable<Page<V>> getPageAsync(final int pageSize, final String cursor) {
+        return Observable.defer(() -> {
+            //the first pageSize + 1 keys after the cursor, the greatest on the top.
+            final PriorityQueue<PagedKey<K>> pageKeys =
+                  new PriorityQueue<>(pageSize + 1, Collections.reverseOrder());
+            Observable<Object> keys = onDeviceKeyedStorage.keys();
+            return keys.toList().map(snapshot -> {
+                for (int i = 0, len = snapshot.size(); i < len; i++) {
+                    final PagedKey<K> pagedKey = new PagedKey<>((K) snapshot.get(i));
+                    if (cursor != null && pagedKey.name.compareTo(cursor) <= 0) {
+                        continue;
+                    }
+                    pageKeys.add(pagedKey);
+                    if (pageKeys.size() > pageSize + 1) {
+                        pageKeys.poll();
+                    }
+                }
+                final boolean hasNext = pageKeys.size() > pageSize;
+                if (hasNext) {
+                    pageKeys.poll();
+                }
+                final PagedKey<K>[] ordered = pageKeys.toArray(new PagedKey[pageKeys.size()]);
+                Arrays.sort(ordered);
+                final List<V> items = new ArrayList<>(ordered.length);
+                for (PagedKey<K> pagedKey : ordered) {
+                    if (isFresh(pagedKey.key)) {
+                        items.add(onDeviceKeyedStorage.readOneByKey(pagedKey.key));
+                    }
+                }
+                return new Page<>(items, hasNext ? ordered[ordered.length - 1].name : null);
+            });
+        });
+    }
+
+    /**
+     * Returns the keys of the given number of the most recently written entries, in the order
+     * of the write time, the latest first. Only the {@link CacheEntryMetadata} of the entries is
+     * read, the values are not. Entries without metadata are treated as the oldest ones, the
+     * expired entries are left out.
+     *
+     * @param count the maximum number of the keys to return.
+     */
+    @SuppressWarnings("unchecked")
+    public List<K> getMostRecentKeys(final int count) {
+        final PriorityQueue<WrittenKey<K>> latest = new PriorityQueue<>(Math.max(1, count));
+        final long now = System.currentTimeMillis();
+        Observable<Object> keys = onDeviceKeyedStorage.keys();
+        for (Object key : keys.toList().toBlocking().single()) {
+            CacheEntryMetadata metadata = onDeviceKeyedStorage.readEntryMetadata((K) key);
+            if (metadata != null && metadata.isExpired(now)) {
+                continue;
+            }
+            latest.add(new WrittenKey<>((K) key,
+                                        metadata == null ? 0L : metadata.getWrittenAtMillis()));
+            if (latest.size() > count) {
+                latest.poll();
+            }
+        }
+        final List<K> result = new ArrayList<>(latest.size());
+        while (!latest.isEmpty()) {
+            result.add(0, latest.poll().key);
+        }
+        return result;
+    }
+
+    /**
+     * Removes the expired entries of this data source, checking the stored keys in batches of the
+     * given size.
+     *
+     * @param batchSize the number of keys checked in one batch.
+     * @return an Observable emitting the number of the removed entries, or {@link
+     * Observable#error(Throwable)} if any Exception occurred.
+     */
+    @SuppressWarnings("unchecked")
+    public Observable<Integer> sweepExpiredAsync(final int batchSize) {
+        Observable<Object> keys = onDeviceKeyedStorage.keys();
+        return keys.buffer(batchSize).map(batch -> {
+            int removed = 0;
+            for (Object key : batch) {
+                if (isExpired((K) key)) {
+                    remove((K) key);
+                    removed++;
+                }
+            }
+            return removed;
+        }).reduce(0, (total, removed) -> total + removed);
+    }
+
+    /**
+     * Starts sweeping the expired entries periodically on the given scheduler.
+     *
+     * @param period the period of the sweeps
+     * @param unit the time unit of the period
+     * @param batchSize the number of keys checked in one batch.
+     * @param scheduler the scheduler to perform the sweeps on.
+     * @return the {@link Subscription} to stop the sweeper with.
+     * @see #sweepExpiredAsync(int)
+     */
+    public Subscription startExpirySweeper(final long period, final TimeUnit unit,
+          final int batchSize, final Scheduler scheduler) {
+        return Observable.interval(period, unit, scheduler)
+                         .onBackpressureDrop()
+                         .concatMap(tick -> sweepExpiredAsync(batchSize))
+                         .subscribe(removed -> Log.d("sweepExpired", removed),
+                                    RxUtils.logRxError());
+    }
+
+    /**
+     * Writes the value and its {@link CacheEntryMetadata} with the given time-to-live, unless
+     * the stored value is unchanged. A value is unchanged if the {@link
+     * CacheEntryMetadata#hashContent(String) hash of its serialized form} matches the one in the
+     * metadata, so the stored value is not read back, and neither {@link Object#equals(Object)}
+     * nor {@link Object#hashCode()} of the values is used. If the storage has no {@link
+     * OnDeviceKeyTypedValueStorage#getTypeAdapter() type adapter} to serialize with, the values
+     * must implement value equality, the ones with a matching hash code are compared with the
+     * stored value. Rewriting an unchanged value refreshes its metadata only if the time-to-live
+     * changed, or more than half of it elapsed, so the repeated rewrites do not write the
+     * storage at each call.
+     *
+     * @return true if the value was written, false if it was unchanged.
+     */
+    protected boolean write(final K key, final V value, final long ttlMillis) {
+        final TypeAdapter<V> typeAdapter = onDeviceKeyedStorage.getTypeAdapter();
+        final long contentHash = typeAdapter != null
+                                 ? CacheEntryMetadata.hashContent(typeAdapter.toJson(value))
+                                 : value.hashCode();
+        final long now = System.currentTimeMillis();
+        final CacheEntryMetadata previous = onDeviceKeyedStorage.readEntryMetadata(key);
+        if (previous != null && previous.hasContentHash(contentHash) && !previous.isExpired(now)
+            && (typeAdapter != null || value.equals(peekStored(key)))) {
+            if (previous.getTtlMillis() != ttlMillis
+                || (ttlMillis != CacheEntryMetadata.NO_EXPIRY
+                    && now - previous.getWrittenAtMillis() > ttlMillis / 2)) {
+                onDeviceKeyedStorage.writeEntryMetadata(
+                      key, new CacheEntryMetadata(now, ttlMillis, contentHash));
+            }
+            mSkippedWriteCount.incrementAndGet();
+            return false;
+        }
+        onDeviceKeyedStorage.writeEntry(key, value,
+                                        new CacheEntryMetadata(now, ttlMillis, contentHash));
+        for (SecondaryIndex<K, V, ?> index : mIndexes.values()) {
+            index.update(key, value);
+        }
+        mWriteCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns the number of the values written since the creation of this data source.
+     */
+    public long getWriteCount() {
+        return mWriteCount.get();
+    }
+
+    /**
+     * Returns the number of the writes skipped since the creation of this data source, because
+     * the value was unchanged.
+     */
+    public long getSkippedWriteCount() {
+        return mSkippedWriteCount.get();
+    }
+
     /**
      * Deletes a value given its associated key.
      *
@@ -139,7 +584,7 @@ public class AsyncCacheDataSource<K, V extends Identifiable<K>> {
     public rx.Observable<Boolean> deleteByKeyAsync(K key) {
         return just(key).flatMap(k -> {
             try {
-                onDeviceKeyedStorage.removeOneByKey(k);
+                remove(k);
                 return just(Boolean.TRUE);
             } catch (Exception e) {
                 return error(e);
@@ -158,7 +603,101 @@ public class AsyncCacheDataSource<K, V extends Identifiable<K>> {
         return just(Boolean.TRUE)
                 .flatMap(r -> {
                     onDeviceKeyedStorage.clear();
+                    for (SecondaryIndex<K, V, ?> index : mIndexes.values()) {
+                        index.clear();
+                    }
                     return just(r);
                 });
     }
+
+    /**
+     * Deletes the values of the given keys.
+     *
+     * @return an {@link Observable} emitting Boolean.TRUE or {@link Observable#error(Throwable)}
+     * if any Exception occurred.
+     */
+    @RxLogObservable
+    public Observable<Boolean> deleteByKeysAsync(final Collection<K> keys) {
+        return Observable.defer(() -> {
+            for (K key : keys) {
+                remove(key);
+            }
+            return just(Boolean.TRUE);
+        });
+    }
+
+    /**
+     * Applies the given {@link Delta} in one batch, writing its upserts and removing its
+     * tombstones. The unchanged upserts are skipped.
+     *
+     * @return an {@link Observable} emitting the applied delta, containing only the upserts
+     * which changed the stored values, or {@link Observable#error(Throwable)} if any Exception
+     * occurred.
+     */
+    @RxLogObservable
+    public Observable<Delta<K, V>> applyDeltaAsync(final Delta<K, V> delta) {
+        return Observable.defer(() -> {
+            final List<V> upserts = delta.getUpserts();
+            final List<V> written = new ArrayList<>(upserts.size());
+            for (int i = 0, len = upserts.size(); i < len; i++) {
+                V value = upserts.get(i);
+                if (write(value.getKey(), value, mTimeToLiveMillis)) {
+                    written.add(value);
+                }
+            }
+            for (K key : delta.getTombstones()) {
+                remove(key);
+            }
+            return just(written.size() == upserts.size()
+                        ? delta
+                        : new Delta<>(written, delta.getTombstones(), delta.getToken()));
+        });
+    }
+
+    /**
+     * Removes the value and the metadata of the given key, and its entries of the indexes.
+     */
+    protected void remove(final K key) {
+        onDeviceKeyedStorage.removeOneByKey(key);
+        removeFromIndexes(key);
+    }
+
+    private void removeFromIndexes(final K key) {
+        for (SecondaryIndex<K, V, ?> index : mIndexes.values()) {
+            index.remove(key);
+        }
+    }
+
+    /**
+     * A key ordered by its string form, the order of the pages.
+     */
+    private static final class PagedKey<K> implements Comparable<PagedKey<K>> {
+        final K key;
+        final String name;
+
+        PagedKey(final K key) {
+            this.key = key;
+            this.name = String.valueOf(key);
+        }
+
+        @Override public int compareTo(final PagedKey<K> other) {
+            return name.compareTo(other.name);
+        }
+    }
+
+    private static final class WrittenKey<K> implements Comparable<WrittenKey<K>> {
+        final K key;
+        final long writtenAtMillis;
+
+        WrittenKey(final K key, final long writtenAtMillis) {
+            this.key = key;
+            this.writtenAtMillis = writtenAtMillis;
+        }
+
+        @Override public int compareTo(final WrittenKey<K> other) {
+            return writtenAtMillis < other.writtenAtMillis
+                   ? -1
+                   : (writtenAtMillis == other.writtenAtMillis ? 0 : 1);
+        }
+    }
 }
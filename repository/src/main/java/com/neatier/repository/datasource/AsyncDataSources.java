@@ -92,4 +92,69 @@ public interface AsyncDataSources {
          */
         Observable<List<V>> getAll(final KeyValuePairs<String, Object> requestParams);
     }
+
+    /**
+     * A {@link ReadableAsyncDataSource} which can lookup multiple keys in one batched call.
+     *
+     * @param <K> the type of the keys.
+     * @param <V> the type of the value
+     */
+    interface BatchReadableAsyncDataSource<K, V extends Identifiable<K>>
+          extends ReadableAsyncDataSource<K, V> {
+
+        /**
+         * Returns the values found by the given keys in one batched call. Keys which are not
+         * available in the data source are simply left out from the result list.
+         *
+         * @param keys the keys to lookup.
+         * @return An Observable emitting the list of the values found.
+         * @throws Exception any exception on the data source.
+         */
+        Observable<List<V>> getByKeys(Collection<K> keys,
+              final KeyValuePairs<String, Object> requestParams);
+    }
+
+    /**
+     * A {@link ReadableAsyncDataSource} which can read its values page by page.
+     *
+     * @param <K> the type of the keys.
+     * @param <V> the type of the value
+     */
+    interface PagedReadableAsyncDataSource<K, V extends Identifiable<K>>
+          extends ReadableAsyncDataSource<K, V> {
+
+        /**
+         * Returns one page of the values available in the data source.
+         *
+         * @param pageSize the maximum number of the values in the page.
+         * @param cursor the cursor of the page returned by {@link Page#getNextCursor()} of the
+         * previous page, or null for the first page.
+         * @return An Observable emitting the page.
+         * @throws Exception any exception on the data source.
+         */
+        Observable<Page<V>> getPage(int pageSize, String cursor,
+              final KeyValuePairs<String, Object> requestParams);
+    }
+
+    /**
+     * A {@link ReadableAsyncDataSource} which can return the changes of its values since a sync
+     * token, so a refresh costs proportionally to what changed.
+     *
+     * @param <K> the type of the keys.
+     * @param <V> the type of the value
+     */
+    interface DeltaReadableAsyncDataSource<K, V extends Identifiable<K>>
+          extends ReadableAsyncDataSource<K, V> {
+
+        /**
+         * Returns the changes of the values since the given sync token.
+         *
+         * @param token the token returned by {@link Delta#getToken()} of the previous delta, or
+         * null to get all the values as upserts.
+         * @return An Observable emitting the delta.
+         * @throws Exception any exception on the data source.
+         */
+        Observable<Delta<K, V>> getChangedSince(String token,
+              final KeyValuePairs<String, Object> requestParams);
+    }
 }
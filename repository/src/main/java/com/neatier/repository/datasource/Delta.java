@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+
+package com.neatier.repository.datasource;
+
+import java.util.List;
+
+/**
+ * The changes of a collection of values since a sync token, as returned by a {@link
+ * AsyncDataSources.DeltaReadableAsyncDataSource}: the added or updated values, the keys of the
+ * deleted ones, and the opaque token to pass to get the next changes.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the values.
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public final class Delta<K, V> {
+
+    private final List<V> upserts;
+    private final List<K> tombstones;
+    private final String token;
+
+    /**
+     * @param upserts the values added or updated since the previous token.
+     * @param tombstones the keys of the values deleted since the previous token.
+     * @param token the token of this state of the collection.
+     */
+    public Delta(final List<V> upserts, final List<K> tombstones, final String token) {
+        this.upserts = upserts;
+        this.tombstones = tombstones;
+        this.token = token;
+    }
+
+    public List<V> getUpserts() {
+        return upserts;
+    }
+
+    public List<K> getTombstones() {
+        return tombstones;
+    }
+
+    /**
+     * Returns the token to pass to get the changes made after this delta.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    public boolean isEmpty() {
+        return upserts.isEmpty() && tombstones.isEmpty();
+    }
+
+    @Override public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        Delta<?, ?> delta = (Delta<?, ?>) o;
+        return upserts.equals(delta.upserts) && tombstones.equals(delta.tombstones)
+              && (token != null ? token.equals(delta.token) : delta.token == null);
+    }
+
+    @Override public int hashCode() {
+        int result = upserts.hashCode();
+        result = 31 * result + tombstones.hashCode();
+        return 31 * result + (token != null ? token.hashCode() : 0);
+    }
+
+    @Override public String toString() {
+        return "Delta{upserts=" + upserts.size() + ", tombstones=" + tombstones.size()
+              + ", token=" + token + "}";
+    }
+}
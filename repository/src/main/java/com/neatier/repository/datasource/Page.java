@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+
+package com.neatier.repository.datasource;
+
+import java.util.List;
+
+/**
+ * One page of values read from a data source, with the opaque cursor of the next page.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public final class Page<V> {
+
+    private final List<V> items;
+    private final String nextCursor;
+
+    /**
+     * @param items the values of this page.
+     * @param nextCursor the cursor of the next page, or null if this is the last one.
+     */
+    public Page(final List<V> items, final String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<V> getItems() {
+        return items;
+    }
+
+    /**
+     * Returns the cursor to pass to get the next page, or null if this is the last one.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+
+    @Override public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        Page<?> page = (Page<?>) o;
+        return items.equals(page.items)
+              && (nextCursor != null ? nextCursor.equals(page.nextCursor)
+                                     : page.nextCursor == null);
+    }
+
+    @Override public int hashCode() {
+        return 31 * items.hashCode() + (nextCursor != null ? nextCursor.hashCode() : 0);
+    }
+
+    @Override public String toString() {
+        return "Page{items=" + items.size() + ", nextCursor=" + nextCursor + "}";
+    }
+}
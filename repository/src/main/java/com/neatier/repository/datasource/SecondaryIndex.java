@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+
+package com.neatier.repository.datasource;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import rx.functions.Func1;
+
+/**
+ * In-memory secondary index of the keys of an {@link AsyncCacheDataSource} by an attribute of
+ * the values, extracted by a function. It supports constant time equality lookups through a
+ * hash map, and sorted range lookups through a tree map sharing the same key sets. Values with
+ * a null attribute are not indexed.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the values.
+ * @param <A> the type of the indexed attribute.
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class SecondaryIndex<K, V, A extends Comparable<A>> {
+
+    private final String name;
+    private final Func1<V, A> extractor;
+    private final HashMap<A, Set<K>> byAttribute = new HashMap<>();
+    private final TreeMap<A, Set<K>> sortedByAttribute = new TreeMap<>();
+    private final HashMap<K, A> attributeOfKey = new HashMap<>();
+
+    public SecondaryIndex(final String name, final Func1<V, A> extractor) {
+        this.name = name;
+        this.extractor = extractor;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Indexes the given value stored with the given key, replacing its previous entry.
+     */
+    public synchronized void update(final K key, final V value) {
+        final A attribute = extractor.call(value);
+        final A previous = attributeOfKey.get(key);
+        if (previous != null && previous.equals(attribute)) {
+            return;
+        }
+        remove(key);
+        if (attribute == null) {
+            return;
+        }
+        Set<K> keys = byAttribute.get(attribute);
+        if (keys == null) {
+            keys = new LinkedHashSet<>();
+            byAttribute.put(attribute, keys);
+            sortedByAttribute.put(attribute, keys);
+        }
+        keys.add(key);
+        attributeOfKey.put(key, attribute);
+    }
+
+    /**
+     * Removes the entry of the given key from the index.
+     */
+    public synchronized void remove(final K key) {
+        final A attribute = attributeOfKey.remove(key);
+        if (attribute == null) {
+            return;
+        }
+        final Set<K> keys = byAttribute.get(attribute);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            byAttribute.remove(attribute);
+            sortedByAttribute.remove(attribute);
+        }
+    }
+
+    public synchronized void clear() {
+        byAttribute.clear();
+        sortedByAttribute.clear();
+        attributeOfKey.clear();
+    }
+
+    /**
+     * Returns the keys of the values having the given attribute.
+     */
+    public synchronized List<K> getKeys(final A attribute) {
+        final Set<K> keys = byAttribute.get(attribute);
+        return keys == null ? new ArrayList<>(0) : new ArrayList<>(keys);
+    }
+
+    /**
+     * Returns the keys of the values having an attribute in the given range, ordered by the
+     * attribute.
+     *
+     * @param from the lower bound of the range, or null for no lower bound.
+     * @param fromInclusive true if the lower bound is included in the range.
+     * @param to the upper bound of the range, or null for no upper bound.
+     * @param toInclusive true if the upper bound is included in the range.
+     */
+    public synchronized List<K> getKeysInRange(final A from, final boolean fromInclusive,
+          final A to, final boolean toInclusive) {
+        Collection<Set<K>> ranges;
+        if (from != null && to != null) {
+            ranges = sortedByAttribute.subMap(from, fromInclusive, to, toInclusive).values();
+        } else if (from != null) {
+            ranges = sortedByAttribute.tailMap(from, fromInclusive).values();
+        } else if (to != null) {
+            ranges = sortedByAttribute.headMap(to, toInclusive).values();
+        } else {
+            ranges = sortedByAttribute.values();
+        }
+        final List<K> result = new ArrayList<>();
+        for (Set<K> keys : ranges) {
+            result.addAll(keys);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of the indexed keys.
+     */
+    public synchronized int size() {
+        return attributeOfKey.size();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+package com.neatier.repository.interactor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the items passing the backpressure strategies of the {@link
+ * RepositoryInteractor} executions, to size the buffers from production data.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class BackpressureStats {
+
+    private final AtomicLong mReceived = new AtomicLong();
+    private final AtomicLong mDelivered = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mHighWaterMark = new AtomicLong();
+
+    /**
+     * Returns the number of the items emitted by the executed Observables.
+     */
+    public long getReceivedCount() {
+        return mReceived.get();
+    }
+
+    /**
+     * Returns the number of the items delivered to the subscribers. The items of a batch are
+     * counted one by one.
+     */
+    public long getDeliveredCount() {
+        return mDelivered.get();
+    }
+
+    /**
+     * Returns the number of the items dropped by a strategy, counted as they are dropped. The
+     * items pending when an execution fails or is unsubscribed are neither delivered nor
+     * dropped.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Returns the highest number of the items waiting for delivery in one execution.
+     */
+    public long getHighWaterMark() {
+        return mHighWaterMark.get();
+    }
+
+    public void reset() {
+        mReceived.set(0);
+        mDelivered.set(0);
+        mDropped.set(0);
+        mHighWaterMark.set(0);
+    }
+
+    void onReceived(final long pending) {
+        mReceived.incrementAndGet();
+        long max = mHighWaterMark.get();
+        while (pending > max && !mHighWaterMark.compareAndSet(max, pending)) {
+            max = mHighWaterMark.get();
+        }
+    }
+
+    void onDelivered(final long count) {
+        mDelivered.addAndGet(count);
+    }
+
+    void onDropped(final long count) {
+        mDropped.addAndGet(count);
+    }
+
+    @Override public String toString() {
+        return "BackpressureStats{received=" + mReceived.get() + ", delivered=" + mDelivered.get()
+              + ", dropped=" + mDropped.get() + ", highWaterMark=" + mHighWaterMark.get() + "}";
+    }
+}
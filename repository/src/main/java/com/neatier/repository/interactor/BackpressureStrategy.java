@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+package com.neatier.repository.interactor;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import rx.BackpressureOverflow;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Action1;
+import rx.functions.Func1;
+
+/**
+ * Immutable description of how a {@link RepositoryInteractor} execution handles a producer
+ * faster than its subscriber.
+ *
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public final class BackpressureStrategy {
+
+    /**
+     * The type of the strategy.
+     */
+    public enum Type {
+        /**
+         * Buffer the items up to the capacity, and fail when it overflows.
+         */
+        BUFFER,
+
+        /**
+         * Buffer the items up to the capacity, dropping the oldest one when it overflows.
+         */
+        BUFFER_DROP_OLDEST,
+
+        /**
+         * Keep only the latest item not yet requested.
+         */
+        LATEST,
+
+        /**
+         * Emit the latest item in each period.
+         */
+        SAMPLE,
+
+        /**
+         * Emit the items in lists, collected in each period up to the capacity. At most as many
+         * lists as the capacity wait for the subscriber, the oldest one is dropped beyond.
+         */
+        BATCH
+    }
+
+    public static final int DEFAULT_BUFFER_CAPACITY = 10000;
+
+    /**
+     * The default strategy, buffering up to {@link #DEFAULT_BUFFER_CAPACITY} items.
+     */
+    public static final BackpressureStrategy DEFAULT = buffer(DEFAULT_BUFFER_CAPACITY);
+
+    private final Type type;
+    private final int capacity;
+    private final long periodMillis;
+
+    private BackpressureStrategy(final Type type, final int capacity, final long periodMillis) {
+        this.type = type;
+        this.capacity = capacity;
+        this.periodMillis = periodMillis;
+    }
+
+    /**
+     * Returns a strategy buffering up to the given number of items, failing with a {@link
+     * rx.exceptions.MissingBackpressureException} when the buffer overflows.
+     */
+    public static BackpressureStrategy buffer(final int capacity) {
+        return new BackpressureStrategy(Type.BUFFER, capacity, 0);
+    }
+
+    /**
+     * Returns a strategy buffering up to the given number of items, dropping the oldest one
+     * when the buffer overflows.
+     */
+    public static BackpressureStrategy dropOldest(final int capacity) {
+        return new BackpressureStrategy(Type.BUFFER_DROP_OLDEST, capacity, 0);
+    }
+
+    /**
+     * Returns a strategy keeping only the latest item not yet requested.
+     */
+    public static BackpressureStrategy latest() {
+        return new BackpressureStrategy(Type.LATEST, 1, 0);
+    }
+
+    /**
+     * Returns a strategy emitting the latest item in each given period.
+     */
+    public static BackpressureStrategy sample(final long period, final TimeUnit unit) {
+        return new BackpressureStrategy(Type.SAMPLE, 1, unit.toMillis(period));
+    }
+
+    /**
+     * Returns a strategy emitting the items in lists, collected in each given period up to the
+     * given number of items. At most the given number of lists wait for the subscriber, the
+     * oldest one is dropped beyond.
+     */
+    public static BackpressureStrategy batch(final long period, final TimeUnit unit,
+          final int maxSize) {
+        return new BackpressureStrategy(Type.BATCH, maxSize, unit.toMillis(period));
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getPeriodMillis() {
+        return periodMillis;
+    }
+
+    /**
+     * Returns the given Observable performed on the given scheduler and observed on the other,
+     * with this strategy applied in between, counting its items into the given stats. The items
+     * are counted as dropped when the strategy drops them, the items still pending when the
+     * execution is unsubscribed are not.
+     */
+    @SuppressWarnings("unchecked")
+    Observable<?> apply(final Observable<?> source, final Scheduler performOn,
+          final Scheduler notifyOn, final BackpressureStats stats) {
+        return Observable.defer(() -> {
+            final AtomicLong pending = new AtomicLong();
+            final Action1<Long> drop = count -> {
+                pending.addAndGet(-count);
+                stats.onDropped(count);
+            };
+            final Observable<Object> counted = ((Observable<Object>) source).doOnNext(
+                  item -> stats.onReceived(pending.incrementAndGet()));
+            final Observable<?> limited;
+            switch (type) {
+                case BUFFER_DROP_OLDEST:
+                    limited = counted.onBackpressureBuffer(capacity, () -> drop.call(1L),
+                                                           BackpressureOverflow
+                                                                 .ON_OVERFLOW_DROP_OLDEST);
+                    break;
+                case LATEST:
+                    limited = replacing(counted, Observable::onBackpressureLatest, drop);
+                    break;
+                case SAMPLE:
+                    limited = replacing(counted, items -> items.sample(
+                          periodMillis, TimeUnit.MILLISECONDS, performOn), drop);
+                    break;
+                case BATCH:
+                    limited = batch(counted, performOn, drop);
+                    break;
+                default:
+                    limited = counted.onBackpressureBuffer(capacity);
+                    break;
+            }
+            return limited.subscribeOn(performOn)
+                          .observeOn(notifyOn)
+                          .doOnNext(item -> {
+                              final int count = type == Type.BATCH ? ((List<?>) item).size() : 1;
+                              pending.addAndGet(-count);
+                              stats.onDelivered(count);
+                          });
+        });
+    }
+
+    /**
+     * Returns the given items passed through the given operator, which replaces the items not
+     * yet emitted with the newer ones. The replaced items are passed to the given drop action as
+     * they are detected, by the gaps in the sequence numbers of the emitted items, and the items
+     * left when the operator completes.
+     */
+    private static Observable<Object> replacing(final Observable<Object> items,
+          final Func1<Observable<Sequenced>, Observable<Sequenced>> operator,
+          final Action1<Long> drop) {
+        return Observable.defer(() -> {
+            final AtomicLong received = new AtomicLong();
+            final AtomicLong emitted = new AtomicLong();
+            return operator.call(items.map(item -> new Sequenced(received.incrementAndGet(),
+                                                                   item)))
+                           .doOnNext(sequenced -> {
+                               final long replaced =
+                                     sequenced.sequence - emitted.getAndSet(sequenced.sequence)
+                                     - 1;
+                               if (replaced > 0) {
+                                   drop.call(replaced);
+                               }
+                           })
+                           .doOnCompleted(() -> {
+                               final long left = received.get() - emitted.get();
+                               if (left > 0) {
+                                   drop.call(left);
+                               }
+                           })
+                           .map(sequenced -> sequenced.item);
+        });
+    }
+
+    /**
+     * Returns the given items collected into lists in each period, keeping at most as many lists
+     * as the capacity for the subscriber. The items of a dropped list are passed to the given
+     * drop action.
+     */
+    private Observable<List<Object>> batch(final Observable<Object> items,
+          final Scheduler performOn, final Action1<Long> drop) {
+        return Observable.defer(() -> {
+            // the sizes of the lists in the buffer, the oldest first, as the dropped one.
+            final ConcurrentLinkedQueue<Integer> bufferedSizes = new ConcurrentLinkedQueue<>();
+            return items.buffer(periodMillis, TimeUnit.MILLISECONDS, capacity, performOn)
+                        .filter(batch -> !batch.isEmpty())
+                        .doOnNext(batch -> bufferedSizes.add(batch.size()))
+                        .onBackpressureBuffer(capacity, () -> {
+                            final Integer size = bufferedSizes.poll();
+                            if (size != null) {
+                                drop.call((long) size);
+                            }
+                        }, BackpressureOverflow.ON_OVERFLOW_DROP_OLDEST)
+                        .doOnNext(batch -> bufferedSizes.poll());
+        });
+    }
+
+    @Override public String toString() {
+        return "BackpressureStrategy{" + type + ", capacity=" + capacity + ", period="
+              + periodMillis + "ms}";
+    }
+
+    /**
+     * An item with its sequence number in the execution.
+     */
+    private static final class Sequenced {
+        final long sequence;
+        final Object item;
+
+        Sequenced(final long sequence, final Object item) {
+            this.sequence = sequence;
+            this.item = item;
+        }
+    }
+}
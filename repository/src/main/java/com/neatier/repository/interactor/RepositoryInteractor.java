@@ -29,9 +29,12 @@ package com.neatier.repository.interactor;
 
 import com.neatier.commons.helpers.Leakable;
 import com.neatier.commons.helpers.LongTaskScheduler;
+import com.neatier.commons.helpers.PrioritizedLongTaskScheduler;
 import com.neatier.commons.helpers.RxUtils;
+import com.neatier.commons.helpers.TaskPriority;
 import com.neatier.repository.AsyncRepository;
 import rx.Observable;
+import rx.Scheduler;
 import rx.Subscription;
 import rx.subscriptions.CompositeSubscription;
 
@@ -45,6 +48,8 @@ public class RepositoryInteractor implements Leakable {
 
     private CompositeSubscription subscriptions = new CompositeSubscription();
     private final LongTaskScheduler longTaskScheduler;
+    private final BackpressureStats backpressureStats = new BackpressureStats();
+    private BackpressureStrategy backpressureStrategy = BackpressureStrategy.DEFAULT;
 
     protected RepositoryInteractor(final LongTaskScheduler longTaskScheduler) {
         this.longTaskScheduler = longTaskScheduler;
@@ -59,12 +64,54 @@ public class RepositoryInteractor implements Leakable {
     }
 
     public void execute(Observable resultObservable, RxUtils.SubscriberAdapter subscriber) {
+        execute(resultObservable, subscriber, TaskPriority.NORMAL);
+    }
+
+    /**
+     * Executes the given Observable on the lane of the given priority, if the {@link
+     * LongTaskScheduler} is a {@link PrioritizedLongTaskScheduler}, otherwise on its {@link
+     * LongTaskScheduler#performMeOn()} scheduler.
+     */
+    public void execute(Observable resultObservable, RxUtils.SubscriberAdapter subscriber,
+          TaskPriority priority) {
+        execute(resultObservable, subscriber, priority, backpressureStrategy);
+    }
+
+    /**
+     * Executes the given Observable on the lane of the given priority, handling a producer
+     * faster than the subscriber with the given {@link BackpressureStrategy}. The items passing
+     * the strategy are counted in the {@link #getBackpressureStats()}.
+     */
+    public void execute(Observable resultObservable, RxUtils.SubscriberAdapter subscriber,
+          TaskPriority priority, BackpressureStrategy strategy) {
         ensureSubs().add(subscriber);
-        resultObservable
-              .onBackpressureBuffer(10000)
-              .subscribeOn(longTaskScheduler.performMeOn())
-              .observeOn(longTaskScheduler.notifyMeOn())
-              .subscribe(subscriber);
+        strategy.apply(resultObservable, getPerformScheduler(priority),
+                       longTaskScheduler.notifyMeOn(), backpressureStats)
+                .subscribe(subscriber);
+    }
+
+    /**
+     * Sets the {@link BackpressureStrategy} of the executions not specifying one.
+     */
+    public void setBackpressureStrategy(final BackpressureStrategy strategy) {
+        this.backpressureStrategy = strategy;
+    }
+
+    /**
+     * Returns the counters of the items of all the executions of this interactor.
+     */
+    public BackpressureStats getBackpressureStats() {
+        return backpressureStats;
+    }
+
+    /**
+     * Returns the {@link Scheduler} to perform the tasks of the given priority on.
+     */
+    protected Scheduler getPerformScheduler(final TaskPriority priority) {
+        if (longTaskScheduler instanceof PrioritizedLongTaskScheduler) {
+            return ((PrioritizedLongTaskScheduler) longTaskScheduler).performMeOn(priority);
+        }
+        return longTaskScheduler.performMeOn();
     }
 
     /**
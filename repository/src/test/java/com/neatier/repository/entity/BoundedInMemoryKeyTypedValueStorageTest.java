@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+package com.neatier.repository.entity;
+
+import com.fernandocejas.arrow.collections.Lists;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.neatier.commons.helpers.TrimResult;
+import com.neatier.data.entity.BoundedInMemoryKeyTypedValueStorage;
+import com.neatier.data.entity.TestEntity;
+import com.neatier.repository.DataTestCase;
+import com.neatier.repository.datasource.AsyncCacheDataSource;
+import com.neatier.repository.datasource.SecondaryIndex;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class BoundedInMemoryKeyTypedValueStorageTest extends DataTestCase {
+
+    private BoundedInMemoryKeyTypedValueStorage<Integer, TestEntity> mStorage;
+    private final List<Integer> mEvictedKeys = new ArrayList<>();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        Gson gson = new GsonBuilder()
+              .registerTypeAdapterFactory(new TestAutoValueAdapterFactory())
+              .create();
+        mStorage = new BoundedInMemoryKeyTypedValueStorage<>(Integer.class,
+                                                             gson.getAdapter(TestEntity.class));
+        mStorage.setEvictionListener((key, value) -> mEvictedKeys.add(key));
+    }
+
+    @Test
+    public void write_ShouldEvictLeastRecentlyUsed_WhenMaxEntriesExceeded() throws Exception {
+        mStorage.setMaxEntries(2);
+        write(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        write(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_NAME_2);
+        //Reading the first entry makes the second one the least recently used.
+        mStorage.readOneByKey(FAKE_CHANNEL_ID_1);
+        write(FAKE_CHANNEL_ID_3, FAKE_CHANNEL_NAME_3);
+
+        assertThat(mStorage.keySnapshot(),
+                   is(Lists.newArrayList(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_ID_3)));
+        assertThat(mEvictedKeys, is(Lists.newArrayList(FAKE_CHANNEL_ID_2)));
+        assertThat(mStorage.readOneByKey(FAKE_CHANNEL_ID_2), is((TestEntity) null));
+        assertThat(mStorage.getHitCount(), is(1L));
+        assertThat(mStorage.getMissCount(), is(1L));
+        assertThat(mStorage.getEvictionCount(), is(1L));
+    }
+
+    @Test
+    public void write_ShouldEvictUntilWithinMaxWeight() throws Exception {
+        mStorage.setMaxWeight(10, (key, value) -> value.Name().length());
+        write(1, "abcd");
+        write(2, "abcd");
+        write(3, "abcdefg");
+
+        assertThat(mStorage.keySnapshot(), is(Lists.newArrayList(3)));
+        assertThat(mStorage.getWeight(), is(7L));
+        assertThat(mEvictedKeys, is(Lists.newArrayList(1, 2)));
+
+        //An entry heavier than the maximum is not kept.
+        write(4, "abcdefghijk");
+        assertThat(mStorage.size(), is(0));
+    }
+
+    @Test
+    public void trim_ShouldEvictFractionOfLeastRecentlyUsed() throws Exception {
+        mStorage.setMaxWeight(100, (key, value) -> value.Name().length());
+        write(FAKE_CHANNEL_ID_1, "abcd");
+        write(FAKE_CHANNEL_ID_2, "abcdef");
+        write(FAKE_CHANNEL_ID_3, "ab");
+        mStorage.readOneByKey(FAKE_CHANNEL_ID_1);
+
+        assertThat(mStorage.trim(0.5f), is(new TrimResult(2, 8)));
+        assertThat(mStorage.keySnapshot(), is(Lists.newArrayList(FAKE_CHANNEL_ID_1)));
+        assertThat(mEvictedKeys, is(Lists.newArrayList(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_ID_3)));
+    }
+
+    @Test
+    public void asyncCacheDataSource_ShouldDropMetadataOfEvictedEntries() throws Exception {
+        mStorage.setMaxEntries(1);
+        AsyncCacheDataSource<Integer, TestEntity> cacheDataSource =
+              new AsyncCacheDataSource<>(mStorage);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity entityTwo = TestEntity.with(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_NAME_2);
+
+        assertObservableHappyCase(cacheDataSource.addOrUpdateAsync(entityOne), null, null,
+                                  entityOne);
+        assertObservableHappyCase(cacheDataSource.addOrUpdateAsync(entityTwo), null, null,
+                                  entityTwo);
+
+        assertThat(cacheDataSource.isInMemory(), is(true));
+        assertThat(cacheDataSource.getIfPresent(FAKE_CHANNEL_ID_1), is((TestEntity) null));
+        assertThat(cacheDataSource.getIfPresent(FAKE_CHANNEL_ID_2), is(entityTwo));
+        assertThat(mStorage.readEntryMetadata(FAKE_CHANNEL_ID_1), is((Object) null));
+    }
+
+    @Test
+    public void asyncCacheDataSource_ShouldCountOnlyReads_AsHitsAndMisses() throws Exception {
+        AsyncCacheDataSource<Integer, TestEntity> cacheDataSource =
+              new AsyncCacheDataSource<>(mStorage);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+
+        //writing a new value and rewriting it unchanged reads the storage uncounted.
+        assertObservableHappyCase(cacheDataSource.addOrUpdateAsync(entityOne), null, null,
+                                  entityOne);
+        assertObservableHappyCase(cacheDataSource.addOrUpdateAsync(entityOne), null, null,
+                                  entityOne);
+        assertThat(cacheDataSource.getSkippedWriteCount(), is(1L));
+        assertThat(mStorage.getHitCount(), is(0L));
+        assertThat(mStorage.getMissCount(), is(0L));
+
+        assertThat(cacheDataSource.getIfPresent(FAKE_CHANNEL_ID_1), is(entityOne));
+        assertThat(cacheDataSource.getIfPresent(FAKE_CHANNEL_ID_2), is((TestEntity) null));
+        assertThat(mStorage.getHitCount(), is(1L));
+        assertThat(mStorage.getMissCount(), is(1L));
+    }
+
+    @Test
+    public void asyncCacheDataSource_ShouldRemoveEvictedAndTrimmedKeysFromIndexes()
+          throws Exception {
+        mStorage.setMaxEntries(2);
+        AsyncCacheDataSource<Integer, TestEntity> cacheDataSource =
+              new AsyncCacheDataSource<>(mStorage);
+        SecondaryIndex<Integer, TestEntity, String> index =
+              cacheDataSource.addIndex("name", TestEntity::Name);
+        for (int id : new int[] { FAKE_CHANNEL_ID_1, FAKE_CHANNEL_ID_2, FAKE_CHANNEL_ID_3 }) {
+            TestEntity entity = TestEntity.with(id, FAKE_CHANNEL_NAME_1);
+            assertObservableHappyCase(cacheDataSource.addOrUpdateAsync(entity), null, null,
+                                      entity);
+        }
+
+        assertThat(index.getKeys(FAKE_CHANNEL_NAME_1),
+                   is(Lists.newArrayList(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_ID_3)));
+        assertThat(cacheDataSource.trim(0.5f).getEntries(), is(1));
+        assertThat(index.getKeys(FAKE_CHANNEL_NAME_1),
+                   is(Lists.newArrayList(FAKE_CHANNEL_ID_3)));
+        assertThat(index.size(), is(1));
+        //The listener set on the storage is still notified.
+        assertThat(mEvictedKeys, is(Lists.newArrayList(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_ID_2)));
+    }
+
+    private void write(final int id, final String name) {
+        mStorage.writeKeyedContent(id, TestEntity.with(id, name));
+    }
+}
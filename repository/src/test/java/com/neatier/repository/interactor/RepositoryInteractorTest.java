@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2017 Extremenet Ltd., All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited.
+ *  Proprietary and confidential.
+ *  All information contained herein is, and remains the property of Extremenet Ltd.
+ *  The intellectual and technical concepts contained herein are proprietary to Extremenet Ltd.
+ *   and may be covered by U.S. and Foreign Patents, pending patents, and are protected
+ *  by trade secret or copyright law. Dissemination of this information or reproduction of
+ *  this material is strictly forbidden unless prior written permission is obtained from
+ *   Extremenet Ltd.
+ *
+ */
+
+package com.neatier.repository.interactor;
+
+import com.neatier.commons.helpers.LongTaskScheduler;
+import com.neatier.commons.helpers.RxUtils;
+import com.neatier.commons.helpers.TaskPriority;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Scheduler;
+import rx.exceptions.MissingBackpressureException;
+import rx.schedulers.Schedulers;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author László Gálosi
+ * @since 17/10/26
+ */
+public class RepositoryInteractorTest {
+
+    private TestScheduler performOnScheduler;
+    private RepositoryInteractor interactor;
+    private PublishSubject<Integer> source;
+    private RequestingSubscriber subscriber;
+
+    @Before
+    public void setUp() {
+        performOnScheduler = new TestScheduler();
+        interactor = new RepositoryInteractor(new LongTaskScheduler() {
+            @Override public Scheduler performMeOn() {
+                return performOnScheduler;
+            }
+
+            @Override public Scheduler notifyMeOn() {
+                return Schedulers.immediate();
+            }
+        }) {
+        };
+        source = PublishSubject.create();
+        subscriber = new RequestingSubscriber();
+    }
+
+    @Test
+    public void execute_ShouldFail_WhenBufferOverflows() {
+        execute(BackpressureStrategy.buffer(2));
+
+        emit(1, 2, 3);
+
+        assertThat(subscriber.error).isInstanceOf(MissingBackpressureException.class);
+        assertThat(interactor.getBackpressureStats().getReceivedCount()).isEqualTo(3);
+        assertThat(interactor.getBackpressureStats().getDroppedCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void execute_ShouldDropOldestItems_WhenBufferOverflows() {
+        execute(BackpressureStrategy.dropOldest(2));
+
+        emit(1, 2, 3, 4, 5);
+        assertThat(interactor.getBackpressureStats().getDroppedCount()).isEqualTo(3);
+        subscriber.requestMore(Long.MAX_VALUE);
+
+        assertThat(subscriber.values).containsExactly(4, 5);
+        assertStats(5, 2, 3);
+    }
+
+    @Test
+    public void execute_ShouldCountReplacedItemsOnDelivery_WhenLatest() {
+        execute(BackpressureStrategy.latest());
+
+        emit(1, 2, 3);
+        subscriber.requestMore(1);
+        assertThat(subscriber.values).containsExactly(3);
+        assertStats(3, 1, 2);
+
+        //the item pending when unsubscribed is not dropped by the strategy.
+        emit(4);
+        subscriber.unsubscribe();
+        assertStats(4, 1, 2);
+    }
+
+    @Test
+    public void execute_ShouldCountSkippedItemsOnEachSample_WhenSample() {
+        execute(BackpressureStrategy.sample(100, TimeUnit.MILLISECONDS));
+        subscriber.requestMore(Long.MAX_VALUE);
+
+        emit(1, 2, 3);
+        performOnScheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+        assertThat(subscriber.values).containsExactly(3);
+        assertStats(3, 1, 2);
+
+        emit(4);
+        performOnScheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+        assertThat(subscriber.values).containsExactly(3, 4);
+        assertStats(4, 2, 2);
+    }
+
+    @Test
+    public void execute_ShouldDropOldestBatch_WhenBatchesOverflow() {
+        execute(BackpressureStrategy.batch(100, TimeUnit.MILLISECONDS, 2));
+
+        //each 2 items fill a batch, the third batch overflows the capacity of 2 batches.
+        emit(1, 2, 3, 4, 5, 6);
+        assertThat(interactor.getBackpressureStats().getDroppedCount()).isEqualTo(2);
+        subscriber.requestMore(Long.MAX_VALUE);
+
+        assertThat(subscriber.values).containsExactly(Arrays.asList(3, 4), Arrays.asList(5, 6));
+        assertStats(6, 4, 2);
+    }
+
+    private void execute(final BackpressureStrategy strategy) {
+        interactor.execute(source, subscriber, TaskPriority.NORMAL, strategy);
+        performOnScheduler.triggerActions();
+    }
+
+    private void emit(final Integer... items) {
+        for (Integer item : items) {
+            source.onNext(item);
+        }
+    }
+
+    private void assertStats(final long received, final long delivered, final long dropped) {
+        BackpressureStats stats = interactor.getBackpressureStats();
+        assertThat(stats.getReceivedCount()).isEqualTo(received);
+        assertThat(stats.getDeliveredCount()).isEqualTo(delivered);
+        assertThat(stats.getDroppedCount()).isEqualTo(dropped);
+    }
+
+    /**
+     * Subscriber requesting nothing until {@link #requestMore(long)} is called.
+     */
+    private static final class RequestingSubscriber extends RxUtils.SubscriberAdapter<Object> {
+        final List<Object> values = new ArrayList<>();
+        Throwable error;
+
+        @Override public void onStart() {
+            request(0);
+        }
+
+        @Override public void onNext(final Object value) {
+            values.add(value);
+        }
+
+        @Override public void onError(final Throwable e) {
+            error = e;
+        }
+
+        void requestMore(final long count) {
+            request(count);
+        }
+    }
+}
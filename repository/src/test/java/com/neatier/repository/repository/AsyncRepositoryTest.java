@@ -1,27 +1,60 @@
 package com.neatier.repository.repository;
 
 import com.fernandocejas.arrow.collections.Lists;
+import com.neatier.commons.data.caching.InMemoryKeyedStorage;
+import com.neatier.commons.exception.CircuitOpenException;
+import com.neatier.commons.exception.NetworkConnectionException;
 import com.neatier.commons.helpers.KeyValuePairs;
+import com.neatier.data.entity.OnDeviceKeyTypedValueStorage;
 import com.neatier.data.entity.TestEntity;
 import com.neatier.repository.AsyncRepository;
 import com.neatier.repository.CachePolicy;
+import com.neatier.repository.CircuitBreaker;
+import com.neatier.repository.CounterRepositoryMetrics;
 import com.neatier.repository.DataTestCase;
+import com.neatier.repository.MutationLog;
 import com.neatier.repository.ReadPolicy;
+import com.neatier.repository.ReadableMode;
+import com.neatier.repository.RepositoryChange;
+import com.neatier.repository.RepositoryMetrics;
+import com.neatier.repository.WarmUpProgress;
 import com.neatier.repository.WritePolicy;
 import com.neatier.repository.datasource.AsyncCacheDataSource;
 import com.neatier.repository.datasource.AsyncDataSources;
+import com.neatier.repository.datasource.Delta;
+import com.neatier.repository.datasource.Page;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import rx.Observable;
-
+import rx.Subscription;
+import rx.observers.TestSubscriber;
+import rx.schedulers.Schedulers;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.withSettings;
 
 /**
  * @author László Gálosi
@@ -34,6 +67,12 @@ public class AsyncRepositoryTest extends DataTestCase {
     @Mock AsyncDataSources.ReadableAsyncDataSource<Integer, TestEntity> mockReadableDataSource;
     @Mock AsyncDataSources.WriteableAsyncDataSource<Integer, TestEntity> mockWritableDataSource;
     @Mock AsyncDataSources.WriteableAsyncDataSource<Integer, TestEntity> mockWritableDataSourceTwo;
+    @Mock AsyncDataSources.BatchReadableAsyncDataSource<Integer, TestEntity>
+          mockBatchReadableDataSource;
+    @Mock AsyncDataSources.PagedReadableAsyncDataSource<Integer, TestEntity>
+          mockPagedReadableDataSource;
+    @Mock AsyncDataSources.DeltaReadableAsyncDataSource<Integer, TestEntity>
+          mockDeltaReadableDataSource;
     @Mock KeyValuePairs<String, Object> mockApiParams;
 
     AsyncRepository<Integer, TestEntity> asyncRepository;
@@ -76,7 +115,7 @@ public class AsyncRepositoryTest extends DataTestCase {
                                   entityOne);
 
         verify(mockCacheDataSource).getByKeyAsync(FAKE_CHANNEL_ID_1);
-        verify(mockCacheDataSource).addOrUpdateAsync(entityOne);
+        verify(mockCacheDataSource, timeout(1000)).addOrUpdateAsync(entityOne);
         verify(mockRestApiDataSource).getByKey(FAKE_CHANNEL_ID_1, mockApiParams);
         assertObservableHappyCase(asyncRepository.isCached(entityOne), null, null, Boolean.TRUE);
     }
@@ -119,13 +158,15 @@ public class AsyncRepositoryTest extends DataTestCase {
               Observable.just(entityOne));
         //Previously not cached
         given(mockCacheDataSource.getByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(Observable.empty());
+        given(mockCacheDataSourceTwo.getByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(
+              Observable.empty());
         given(mockCacheDataSource.isValid(entityOne)).willReturn(Boolean.TRUE);
 
         //Calling getByKey.
         assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams), null,
                                   null, entityOne);
 
-        verify(mockCacheDataSource).addOrUpdateAsync(entityOne);
+        verify(mockCacheDataSource, timeout(1000)).addOrUpdateAsync(entityOne);
         verify(mockCacheDataSourceTwo, times(0)).addOrUpdateAsync(any(TestEntity.class));
         verify(mockCacheDataSourceTwo).getByKeyAsync(FAKE_CHANNEL_ID_1);
         verify(mockRestApiDataSource).getByKey(FAKE_CHANNEL_ID_1, mockApiParams);
@@ -147,6 +188,8 @@ public class AsyncRepositoryTest extends DataTestCase {
               Observable.just(entityOne));
         //Previously not cached
         given(mockCacheDataSource.getByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(Observable.empty());
+        given(mockCacheDataSourceTwo.getByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(
+              Observable.empty());
 
         //Calling getByKey.
         assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams), null,
@@ -154,9 +197,9 @@ public class AsyncRepositoryTest extends DataTestCase {
                                   entityOne);
 
         verify(mockCacheDataSource).getByKeyAsync(FAKE_CHANNEL_ID_1);
-        verify(mockCacheDataSource).addOrUpdateAsync(entityOne);
+        verify(mockCacheDataSource, timeout(1000)).addOrUpdateAsync(entityOne);
         verify(mockCacheDataSourceTwo).getByKeyAsync(FAKE_CHANNEL_ID_1);
-        verify(mockCacheDataSourceTwo).addOrUpdateAsync(entityOne);
+        verify(mockCacheDataSourceTwo, timeout(1000)).addOrUpdateAsync(entityOne);
         verify(mockRestApiDataSource).getByKey(FAKE_CHANNEL_ID_1, mockApiParams);
     }
 
@@ -180,8 +223,823 @@ public class AsyncRepositoryTest extends DataTestCase {
                                   entityOne);
 
         verify(mockCacheDataSource, times(0)).getByKeyAsync(FAKE_CHANNEL_ID_1);
+        verify(mockCacheDataSource, timeout(1000)).addOrUpdateAsync(entityOne);
+        verify(mockRestApiDataSource).getByKey(FAKE_CHANNEL_ID_1, mockApiParams);
+    }
+
+    @Test
+    public void getByKey_ShouldShareOneReadableLookup_WhenCalledConcurrently() throws Exception {
+        asyncRepository.addCacheDataSources(mockCacheDataSource);
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        TestEntity entityOne =
+              (TestEntity) mJsonSerializer.deserialize(JSON_ENTITY_1, TestEntity.class);
+        PublishSubject<TestEntity> restApiResponse = PublishSubject.create();
+        given(mockRestApiDataSource.getByKey(FAKE_CHANNEL_ID_1, mockApiParams)).willReturn(
+              restApiResponse);
+        given(mockCacheDataSource.getByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(Observable.empty());
+        given(mockCacheDataSource.addOrUpdateAsync(entityOne)).willReturn(
+              Observable.just(entityOne));
+
+        TestSubscriber<TestEntity> firstSubscriber = new TestSubscriber<>();
+        TestSubscriber<TestEntity> secondSubscriber = new TestSubscriber<>();
+        asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams).subscribe(firstSubscriber);
+        asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams).subscribe(secondSubscriber);
+        restApiResponse.onNext(entityOne);
+        restApiResponse.onCompleted();
+
+        firstSubscriber.assertValue(entityOne);
+        firstSubscriber.assertCompleted();
+        secondSubscriber.assertValue(entityOne);
+        secondSubscriber.assertCompleted();
+        verify(mockRestApiDataSource).getByKey(FAKE_CHANNEL_ID_1, mockApiParams);
+        verify(mockCacheDataSource, timeout(1000)).addOrUpdateAsync(entityOne);
+    }
+
+    @Test
+    public void getByKey_ShouldCancelSharedLookup_WhenAllSubscribersUnsubscribed()
+          throws Exception {
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        given(mockRestApiDataSource.getByKey(FAKE_CHANNEL_ID_1, mockApiParams)).willReturn(
+              Observable.<TestEntity>never().doOnUnsubscribe(() -> cancelled.set(true)));
+        asyncRepository.setReadPolicy(ReadPolicy.READABLE_ONLY);
+
+        Subscription first =
+              asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams).subscribe();
+        Subscription second =
+              asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams).subscribe();
+        first.unsubscribe();
+        assertThat(cancelled.get(), is(false));
+        second.unsubscribe();
+
+        assertThat(cancelled.get(), is(true));
+        verify(mockRestApiDataSource).getByKey(FAKE_CHANNEL_ID_1, mockApiParams);
+    }
+
+    @Test
+    public void getByKey_ShouldAnswerRepeatedMissLocally_UntilKeyIsAdded() throws Exception {
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        asyncRepository.addWriteableDataSources(mockWritableDataSource);
+        asyncRepository.setReadPolicy(ReadPolicy.READABLE_ONLY);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        //RestApi does not know the entity.
+        given(mockRestApiDataSource.getByKey(FAKE_CHANNEL_ID_1, mockApiParams)).willReturn(
+              Observable.empty());
+        given(mockWritableDataSource.addOrUpdate(entityOne)).willReturn(Observable.just(entityOne));
+
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams), null,
+                                  null);
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams), null,
+                                  null);
+        verify(mockRestApiDataSource, times(1)).getByKey(FAKE_CHANNEL_ID_1, mockApiParams);
+
+        //adding the entity invalidates the miss.
+        assertObservableHappyCase(asyncRepository.addOrUpdate(entityOne), null, null, entityOne);
+        given(mockRestApiDataSource.getByKey(FAKE_CHANNEL_ID_1, mockApiParams)).willReturn(
+              Observable.just(entityOne));
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams), null,
+                                  null, entityOne);
+        verify(mockRestApiDataSource, times(2)).getByKey(FAKE_CHANNEL_ID_1, mockApiParams);
+    }
+
+    @Test
+    public void getByKey_ShouldRecordMissPerRequestParams_OnlyWhenReadableAsked()
+          throws Exception {
+        asyncRepository.setReadPolicy(ReadPolicy.READABLE_ONLY);
+        KeyValuePairs<String, Object> otherParams = new KeyValuePairs<>();
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+
+        //without readables nothing is asked, so nothing is missing.
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams), null,
+                                  null);
+        assertThat(asyncRepository.getNegativeResultCache().size(), is(0));
+
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        given(mockRestApiDataSource.getByKey(FAKE_CHANNEL_ID_1, mockApiParams)).willReturn(
+              Observable.empty());
+        given(mockRestApiDataSource.getByKey(FAKE_CHANNEL_ID_1, otherParams)).willReturn(
+              Observable.just(entityOne));
+
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams), null,
+                                  null);
+        //the miss of the key with some parameters does not answer the lookup with others.
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, otherParams), null,
+                                  null, entityOne);
+        verify(mockRestApiDataSource).getByKey(FAKE_CHANNEL_ID_1, otherParams);
+    }
+
+    @Test
+    public void getByKey_ShouldReportTierMissAndReadableHitToMetrics() throws Exception {
+        CounterRepositoryMetrics metrics = new CounterRepositoryMetrics();
+        asyncRepository.setMetrics(metrics);
+        //keeps the cache population from reading the mock while it is stubbed again.
+        asyncRepository.setCacheScheduler(mPerformOnScheduler);
+        asyncRepository.addCacheDataSources(mockCacheDataSource);
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        given(mockCacheDataSource.getByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(Observable.empty());
+        given(mockRestApiDataSource.getByKey(FAKE_CHANNEL_ID_1, mockApiParams)).willReturn(
+              Observable.just(entityOne));
+
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams), null,
+                                  null, entityOne);
+
+        assertThat(metrics.getMissCount(RepositoryMetrics.Source.CACHE, 0), is(1L));
+        assertThat(metrics.getHitCount(RepositoryMetrics.Source.CACHE, 0), is(0L));
+        assertThat(metrics.getHitCount(RepositoryMetrics.Source.READABLE, 0), is(1L));
+        assertThat(metrics.getCacheHitRatio(), is(0.0));
+
+        given(mockCacheDataSource.getByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(
+              Observable.just(entityOne));
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams), null,
+                                  null, entityOne);
+        assertThat(metrics.getHitCount(RepositoryMetrics.Source.CACHE, 0), is(1L));
+        assertThat(metrics.getCacheHitRatio(), is(0.5));
+    }
+
+    @Test
+    public void getByKeys_ShouldFetchOnlyCacheMissesInOneBatch() throws Exception {
+        asyncRepository.addCacheDataSources(mockCacheDataSource);
+        asyncRepository.addReadableDataSources(mockBatchReadableDataSource);
+        TestEntity entityOne = TestEntity.typeAdapter(mGson).fromJson(JSON_ENTITY_1);
+        TestEntity entityTwo = TestEntity.typeAdapter(mGson).fromJson(JSON_ENTITY_2);
+        ArrayList<Integer> keys = Lists.newArrayList(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_ID_2);
+        //Only the first entity is cached.
+        given(mockCacheDataSource.getByKeysAsync(keys)).willReturn(Observable.just(entityOne));
+        given(mockBatchReadableDataSource.getByKeys(Lists.newArrayList(FAKE_CHANNEL_ID_2),
+                                                    mockApiParams))
+              .willReturn(Observable.just(Lists.newArrayList(entityTwo)));
+        given(mockCacheDataSource.addOrUpdateAllAsync(Lists.newArrayList(entityTwo))).willReturn(
+              Observable.just(Lists.newArrayList(entityTwo)));
+
+        assertListObservableHappyCase(
+              asyncRepository.getByKeys(keys, ReadPolicy.READ_ALL, mockApiParams), null, null,
+              entityOne, entityTwo);
+
+        verify(mockCacheDataSource).getByKeysAsync(keys);
+        verify(mockBatchReadableDataSource).getByKeys(Lists.newArrayList(FAKE_CHANNEL_ID_2),
+                                                      mockApiParams);
+        verify(mockBatchReadableDataSource, times(0)).getByKey(any(Integer.class),
+                                                               any(KeyValuePairs.class));
+        verify(mockCacheDataSource, timeout(1000))
+              .addOrUpdateAllAsync(Lists.newArrayList(entityTwo));
+    }
+
+    @Test
+    public void getAllPaged_ShouldReadNextPageOnlyWhenRequested() throws Exception {
+        asyncRepository.addCacheDataSources(mockCacheDataSource);
+        asyncRepository.addReadableDataSources(mockPagedReadableDataSource);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity entityTwo = TestEntity.with(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_NAME_2);
+        //Nothing is cached.
+        given(mockCacheDataSource.getPageAsync(1, null)).willReturn(
+              Observable.just(new Page<>(new ArrayList<>(), null)));
+        given(mockPagedReadableDataSource.getPage(1, null, mockApiParams)).willReturn(
+              Observable.just(new Page<>(Lists.newArrayList(entityOne), "2")));
+        given(mockPagedReadableDataSource.getPage(1, "2", mockApiParams)).willReturn(
+              Observable.just(new Page<>(Lists.newArrayList(entityTwo), null)));
+
+        TestSubscriber<Page<TestEntity>> testSubscriber = new TestSubscriber<>(1);
+        asyncRepository.getAllPagedAsync(1, null, ReadPolicy.READ_ALL, mockApiParams)
+                       .subscribe(testSubscriber);
+
+        testSubscriber.assertValue(new Page<>(Lists.newArrayList(entityOne), "r0:2"));
+        verify(mockPagedReadableDataSource, times(0)).getPage(1, "2", mockApiParams);
+        verify(mockCacheDataSource, timeout(1000))
+              .addOrUpdateAllAsync(Lists.newArrayList(entityOne));
+
+        testSubscriber.requestMore(1);
+        testSubscriber.assertValueCount(2);
+        testSubscriber.assertCompleted();
+        verify(mockPagedReadableDataSource).getPage(1, "2", mockApiParams);
+        verify(mockPagedReadableDataSource, times(0)).getAll(any(KeyValuePairs.class));
+    }
+
+    @Test
+    public void getAllPaged_ShouldEmitPageWithoutBlocking_WhenReadableAnswersLater()
+          throws Exception {
+        asyncRepository.addReadableDataSources(mockPagedReadableDataSource);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        PublishSubject<Page<TestEntity>> pageLookup = PublishSubject.create();
+        given(mockPagedReadableDataSource.getPage(1, null, mockApiParams)).willReturn(
+              pageLookup);
+
+        TestSubscriber<Page<TestEntity>> testSubscriber = new TestSubscriber<>();
+        asyncRepository.getAllPagedAsync(1, null, ReadPolicy.READABLE_ONLY, mockApiParams)
+                       .subscribe(testSubscriber);
+        testSubscriber.assertNoValues();
+
+        pageLookup.onNext(new Page<>(Lists.newArrayList(entityOne), null));
+        pageLookup.onCompleted();
+        testSubscriber.assertValue(new Page<>(Lists.newArrayList(entityOne), null));
+        testSubscriber.assertCompleted();
+    }
+
+    @Test
+    public void getByKey_ShouldNotTouchLowerTiers_WhenFirstTierHits() throws Exception {
+        asyncRepository.addCacheDataSources(mockCacheDataSource, mockCacheDataSourceTwo);
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        TestEntity entityOne = TestEntity.typeAdapter(mGson).fromJson(JSON_ENTITY_1);
+        given(mockCacheDataSource.getByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(
+              Observable.just(entityOne));
+
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams), null,
+                                  null, entityOne);
+
+        verify(mockCacheDataSource).getByKeyAsync(FAKE_CHANNEL_ID_1);
+        verifyNoMoreInteractions(mockCacheDataSource);
+        verifyZeroInteractions(mockCacheDataSourceTwo);
+        verifyZeroInteractions(mockRestApiDataSource);
+    }
+
+    @Test
+    public void getByKey_ShouldPromoteToUpperTiers_WhenLowerTierHits() throws Exception {
+        asyncRepository.setCacheScheduler(mPerformOnScheduler);
+        asyncRepository.addCacheDataSources(mockCacheDataSource, mockCacheDataSourceTwo);
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        TestEntity entityOne = TestEntity.typeAdapter(mGson).fromJson(JSON_ENTITY_1);
+        given(mockCacheDataSource.getByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(Observable.empty());
+        given(mockCacheDataSourceTwo.getByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(
+              Observable.just(entityOne));
+        given(mockCacheDataSource.addOrUpdateAsync(entityOne)).willReturn(
+              Observable.just(entityOne));
+
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams), null,
+                                  null, entityOne);
+        verify(mockCacheDataSource, times(0)).addOrUpdateAsync(any(TestEntity.class));
+        mPerformOnScheduler.triggerActions();
+
         verify(mockCacheDataSource).addOrUpdateAsync(entityOne);
+        verify(mockCacheDataSourceTwo, times(0)).addOrUpdateAsync(any(TestEntity.class));
+        verifyZeroInteractions(mockRestApiDataSource);
+    }
+
+    @Test
+    public void getByKey_ShouldDiscardPromotion_WhenKeyIsDeletedMeanwhile() throws Exception {
+        asyncRepository.setCacheScheduler(mPerformOnScheduler);
+        asyncRepository.addCacheDataSources(mockCacheDataSource, mockCacheDataSourceTwo);
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        asyncRepository.addWriteableDataSources(mockWritableDataSource);
+        TestEntity entityOne = TestEntity.typeAdapter(mGson).fromJson(JSON_ENTITY_1);
+        given(mockCacheDataSource.getByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(Observable.empty());
+        given(mockCacheDataSourceTwo.getByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(
+              Observable.just(entityOne));
+        given(mockWritableDataSource.deleteByKey(FAKE_CHANNEL_ID_1, null)).willReturn(
+              Observable.just(true));
+        given(mockCacheDataSource.deleteByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(
+              Observable.just(true));
+        given(mockCacheDataSourceTwo.deleteByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(
+              Observable.just(true));
+
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams), null,
+                                  null, entityOne);
+        assertThat(asyncRepository.getCachePopulator().getQueueDepth(), is(1));
+        assertObservableHappyCase(asyncRepository.deleteByKey(FAKE_CHANNEL_ID_1, null), null,
+                                  null, true);
+        assertThat(asyncRepository.getCachePopulator().getQueueDepth(), is(0));
+        mPerformOnScheduler.triggerActions();
+
+        verify(mockCacheDataSource, times(0)).addOrUpdateAsync(any(TestEntity.class));
+    }
+
+    @Test
+    public void warmUp_ShouldLoadLowerTierIntoUpperTier_AndReportProgress() throws Exception {
+        asyncRepository.setCacheScheduler(mPerformOnScheduler);
+        asyncRepository.addCacheDataSources(mockCacheDataSource, mockCacheDataSourceTwo);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        List<Integer> keys = Lists.newArrayList(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_ID_2);
+        given(mockCacheDataSourceTwo.getByKeysAsync(keys)).willReturn(Observable.just(entityOne));
+        given(mockCacheDataSource.addOrUpdateAllAsync(Lists.newArrayList(entityOne))).willReturn(
+              Observable.just(Lists.newArrayList(entityOne)));
+
+        List<WarmUpProgress> progress = getObservableEvents(
+              asyncRepository.warmUp(mockCacheDataSourceTwo, mockCacheDataSource, keys),
+              mPerformOnScheduler, mNotifyOnScheduler, 1);
+
+        assertThat(progress.get(0).getProcessed(), is(2));
+        assertThat(progress.get(0).getLoaded(), is(1));
+        assertThat(progress.get(0).isCompleted(), is(true));
+        verify(mockCacheDataSource).addOrUpdateAllAsync(Lists.newArrayList(entityOne));
+        verify(mockCacheDataSourceTwo, times(0)).addOrUpdateAllAsync(any(Collection.class));
+    }
+
+    @Test
+    public void getAllSince_ShouldApplyDeltaToCaches_AndPassStoredToken() throws Exception {
+        asyncRepository.addCacheDataSources(mockCacheDataSource, mockCacheDataSourceTwo);
+        asyncRepository.addReadableDataSources(mockRestApiDataSource, mockDeltaReadableDataSource);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        Delta<Integer, TestEntity> firstDelta =
+              new Delta<>(Lists.newArrayList(entityOne), new ArrayList<>(), "t1");
+        Delta<Integer, TestEntity> secondDelta =
+              new Delta<>(new ArrayList<>(), Lists.newArrayList(FAKE_CHANNEL_ID_1), "t2");
+        given(mockDeltaReadableDataSource.getChangedSince(null, mockApiParams)).willReturn(
+              Observable.just(firstDelta));
+        given(mockDeltaReadableDataSource.getChangedSince("t1", mockApiParams)).willReturn(
+              Observable.just(secondDelta));
+        given(mockCacheDataSource.applyDeltaAsync(any(Delta.class))).willAnswer(
+              invocation -> Observable.just(invocation.getArguments()[0]));
+        given(mockCacheDataSourceTwo.applyDeltaAsync(any(Delta.class))).willAnswer(
+              invocation -> Observable.just(invocation.getArguments()[0]));
+
+        assertObservableHappyCase(asyncRepository.getAllSince(mockApiParams), null, null,
+                                  firstDelta);
+        assertObservableHappyCase(asyncRepository.getAllSince(mockApiParams), null, null,
+                                  secondDelta);
+
+        verify(mockCacheDataSource).applyDeltaAsync(firstDelta);
+        verify(mockCacheDataSourceTwo).applyDeltaAsync(secondDelta);
+        verify(mockCacheDataSource, times(0)).getAllAsync();
+        verifyZeroInteractions(mockRestApiDataSource);
+    }
+
+    @Test
+    public void getAllSince_ShouldDiscardQueuedWritesOfDelta_AndFollowCachePolicy()
+          throws Exception {
+        asyncRepository.addCacheDataSources(mockCacheDataSource, mockCacheDataSourceTwo);
+        asyncRepository.addReadableDataSources(mockDeltaReadableDataSource);
+        asyncRepository.setCachePolicy(CachePolicy.CACHE_ONCE)
+                       .setReadPolicy(ReadPolicy.READABLE_ONLY);
+        asyncRepository.setCacheScheduler(mPerformOnScheduler);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        Delta<Integer, TestEntity> delta =
+              new Delta<>(new ArrayList<>(), Lists.newArrayList(FAKE_CHANNEL_ID_1), "t1");
+        given(mockDeltaReadableDataSource.getByKey(FAKE_CHANNEL_ID_1, null)).willReturn(
+              Observable.just(entityOne));
+        given(mockDeltaReadableDataSource.getChangedSince(null, null)).willReturn(
+              Observable.just(delta));
+        given(mockCacheDataSource.applyDeltaAsync(delta)).willReturn(Observable.just(delta));
+
+        //the value read before the server deleted it is still queued.
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, null), null, null,
+                                  entityOne);
+        assertThat(asyncRepository.getCachePopulator().getQueueDepth(), is(1));
+        assertObservableHappyCase(asyncRepository.getAllSince(null), null, null, delta);
+        assertThat(asyncRepository.getCachePopulator().getQueueDepth(), is(0));
+        mPerformOnScheduler.triggerActions();
+
+        verify(mockCacheDataSource).applyDeltaAsync(delta);
+        verifyNoMoreInteractions(mockCacheDataSource);
+        verifyZeroInteractions(mockCacheDataSourceTwo);
+    }
+
+    @Test
+    public void getByKey_ShouldFailFastToCache_WhenCircuitOpen() throws Exception {
+        asyncRepository.addCacheDataSources(mockCacheDataSource);
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        asyncRepository.getCircuitBreaker(mockRestApiDataSource)
+                       .setWindowSize(2)
+                       .setFailureRateThreshold(0.5f);
+        TestEntity cachedEntity = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        AtomicInteger readableCalls = new AtomicInteger();
+        given(mockRestApiDataSource.getByKey(FAKE_CHANNEL_ID_1, mockApiParams)).willReturn(
+              Observable.defer(() -> {
+                  readableCalls.incrementAndGet();
+                  return Observable.error(new NetworkConnectionException("backend down"));
+              }));
+        given(mockCacheDataSource.getByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(
+              Observable.just(cachedEntity));
+
+        for (int i = 0; i < 2; i++) {
+            TestSubscriber<TestEntity> testSubscriber = new TestSubscriber<>();
+            asyncRepository.getByKeyAsync(FAKE_CHANNEL_ID_1, ReadPolicy.READABLE_ONLY,
+                                          mockApiParams).subscribe(testSubscriber);
+            testSubscriber.assertError(NetworkConnectionException.class);
+        }
+        assertThat(asyncRepository.getCircuitBreaker(mockRestApiDataSource).getState(),
+                   is(CircuitBreaker.State.OPEN));
+
+        assertObservableHappyCase(
+              asyncRepository.getByKeyAsync(FAKE_CHANNEL_ID_1, ReadPolicy.READABLE_ONLY,
+                                            mockApiParams), null, null, cachedEntity);
+        assertThat(readableCalls.get(), is(2));
+    }
+
+    @Test
+    public void protect_ShouldCountOnlyTransportErrorsAndTimeouts() throws Exception {
+        TestScheduler timeoutScheduler = new TestScheduler();
+        CircuitBreaker circuitBreaker = new CircuitBreaker("test").setWindowSize(4)
+                                                                  .setScheduler(timeoutScheduler);
+
+        for (int i = 0; i < 2; i++) {
+            TestSubscriber<Object> clientError = new TestSubscriber<>();
+            circuitBreaker.protect(Observable.error(new IllegalArgumentException("bad request")))
+                          .subscribe(clientError);
+            clientError.assertError(IllegalArgumentException.class);
+        }
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+
+        TestSubscriber<Object> networkError = new TestSubscriber<>();
+        circuitBreaker.protect(Observable.error(new NetworkConnectionException("no route")))
+                      .subscribe(networkError);
+        TestSubscriber<Object> hangingCall = new TestSubscriber<>();
+        circuitBreaker.protect(Observable.never()).subscribe(hangingCall);
+        timeoutScheduler.advanceTimeBy(CircuitBreaker.DEFAULT_TIMEOUT_MILLIS,
+                                       TimeUnit.MILLISECONDS);
+        hangingCall.assertError(TimeoutException.class);
+        //the client errors counted as successes, the network error and the timeout as failures.
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    public void protect_ShouldKeepProbe_WhenEarlierCallIsUnsubscribedInHalfOpen()
+          throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("test")
+              .setWindowSize(1)
+              .setOpenDuration(0, TimeUnit.MILLISECONDS)
+              .setScheduler(new TestScheduler());
+        Subscription earlierCall = circuitBreaker.protect(Observable.never()).subscribe();
+        circuitBreaker.protect(Observable.error(new NetworkConnectionException("no route")))
+                      .subscribe(new TestSubscriber<>());
+        Subscription probe = circuitBreaker.protect(Observable.never()).subscribe();
+
+        earlierCall.unsubscribe();
+        TestSubscriber<Object> rejected = new TestSubscriber<>();
+        circuitBreaker.protect(Observable.just(1)).subscribe(rejected);
+        rejected.assertError(CircuitOpenException.class);
+
+        //the unsubscribed probe keeps the half-open state until its timeout elapses.
+        probe.unsubscribe();
+        TestSubscriber<Object> stillRejected = new TestSubscriber<>();
+        circuitBreaker.protect(Observable.just(1)).subscribe(stillRejected);
+        stillRejected.assertError(CircuitOpenException.class);
+    }
+
+    @Test
+    public void getByKey_ShouldHedgeToNextReadable_WhenFirstIsSlow() throws Exception {
+        TestScheduler hedgeScheduler = new TestScheduler();
+        asyncRepository.addReadableDataSources(mockRestApiDataSource, mockReadableDataSource);
+        asyncRepository.setReadableMode(ReadableMode.HEDGED)
+                       .setHedgeDelay(100, TimeUnit.MILLISECONDS, hedgeScheduler);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        PublishSubject<TestEntity> slowLookup = PublishSubject.create();
+        given(mockRestApiDataSource.getByKey(FAKE_CHANNEL_ID_1, mockApiParams)).willReturn(
+              slowLookup);
+        given(mockReadableDataSource.getByKey(FAKE_CHANNEL_ID_1, mockApiParams)).willReturn(
+              Observable.just(entityOne));
+
+        TestSubscriber<TestEntity> testSubscriber = new TestSubscriber<>();
+        asyncRepository.getByKeyAsync(FAKE_CHANNEL_ID_1, ReadPolicy.READABLE_ONLY, mockApiParams)
+                       .subscribe(testSubscriber);
+        testSubscriber.assertNoValues();
+        verifyZeroInteractions(mockReadableDataSource);
+
+        hedgeScheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+        testSubscriber.assertValue(entityOne);
+        testSubscriber.assertCompleted();
+        assertThat(slowLookup.hasObservers(), is(false));
+    }
+
+    @Test
+    public void getByKey_ShouldCloseCircuit_WhenHedgedProbeEmitsWithoutCompleting()
+          throws Exception {
+        TestScheduler hedgeScheduler = new TestScheduler();
+        asyncRepository.addReadableDataSources(mockRestApiDataSource, mockReadableDataSource);
+        asyncRepository.setReadableMode(ReadableMode.HEDGED)
+                       .setHedgeDelay(100, TimeUnit.MILLISECONDS, hedgeScheduler);
+        CircuitBreaker circuitBreaker = asyncRepository.getCircuitBreaker(mockRestApiDataSource)
+                                                       .setWindowSize(1)
+                                                       .setOpenDuration(0, TimeUnit.MILLISECONDS);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        given(mockRestApiDataSource.getByKey(FAKE_CHANNEL_ID_1, mockApiParams)).willReturn(
+              Observable.just(entityOne).concatWith(Observable.never()));
+
+        TestSubscriber<Object> failedCall = new TestSubscriber<>();
+        circuitBreaker.protect(Observable.error(new NetworkConnectionException("backend down")))
+                      .subscribe(failedCall);
+        failedCall.assertError(NetworkConnectionException.class);
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+
+        //the probe is unsubscribed by the hedged read after its first value.
+        assertObservableHappyCase(
+              asyncRepository.getByKeyAsync(FAKE_CHANNEL_ID_1, ReadPolicy.READABLE_ONLY,
+                                            mockApiParams), null, null, entityOne);
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+        verifyZeroInteractions(mockReadableDataSource);
+    }
+
+    @Test
+    public void getByKey_ShouldNotHedge_WhenFirstReadableAnswers() throws Exception {
+        TestScheduler hedgeScheduler = new TestScheduler();
+        asyncRepository.addReadableDataSources(mockRestApiDataSource, mockReadableDataSource);
+        asyncRepository.setReadableMode(ReadableMode.HEDGED)
+                       .setHedgeDelay(100, TimeUnit.MILLISECONDS, hedgeScheduler);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        AtomicInteger firstCalls = new AtomicInteger();
+        given(mockRestApiDataSource.getByKey(FAKE_CHANNEL_ID_1, mockApiParams)).willReturn(
+              Observable.defer(() -> {
+                  firstCalls.incrementAndGet();
+                  return Observable.just(entityOne);
+              }));
+
+        assertObservableHappyCase(
+              asyncRepository.getByKeyAsync(FAKE_CHANNEL_ID_1, ReadPolicy.READABLE_ONLY,
+                                            mockApiParams), null, null, entityOne);
+        hedgeScheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+
+        assertThat(firstCalls.get(), is(1));
+        assertThat(asyncRepository.getLatencyTracker(mockRestApiDataSource).getSampleCount(),
+                   is(1));
+        verifyZeroInteractions(mockReadableDataSource);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void getIfPresent_ShouldReadOnlyInMemoryTiers() throws Exception {
+        OnDeviceKeyTypedValueStorage<Integer, TestEntity> inMemoryStorage =
+              mock(OnDeviceKeyTypedValueStorage.class,
+                   withSettings().extraInterfaces(InMemoryKeyedStorage.class));
+        AsyncCacheDataSource<Integer, TestEntity> inMemoryCacheDataSource =
+              new AsyncCacheDataSource<>(inMemoryStorage);
+        asyncRepository.addCacheDataSources(inMemoryCacheDataSource, mockCacheDataSourceTwo);
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        given(inMemoryStorage.containsKey(FAKE_CHANNEL_ID_1)).willReturn(true);
+        given(inMemoryStorage.readOneByKey(FAKE_CHANNEL_ID_1)).willReturn(entityOne);
+        given(((InMemoryKeyedStorage<Integer>) inMemoryStorage).keySnapshot()).willReturn(
+              Lists.newArrayList(FAKE_CHANNEL_ID_1));
+
+        assertThat(asyncRepository.getIfPresent(FAKE_CHANNEL_ID_1), is(entityOne));
+        assertThat(asyncRepository.getIfPresent(FAKE_CHANNEL_ID_2), is((TestEntity) null));
+        assertThat(asyncRepository.peekAll(), is(Lists.newArrayList(entityOne)));
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams), null,
+                                  null, entityOne);
+
+        verify(inMemoryStorage, times(0)).keys();
+        verifyZeroInteractions(mockCacheDataSourceTwo);
+        verifyZeroInteractions(mockRestApiDataSource);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void getByKey_ShouldNotLookupInMemoryTierAgain_WhenFastPathMisses() throws Exception {
+        OnDeviceKeyTypedValueStorage<Integer, TestEntity> inMemoryStorage =
+              mock(OnDeviceKeyTypedValueStorage.class,
+                   withSettings().extraInterfaces(InMemoryKeyedStorage.class));
+        CounterRepositoryMetrics metrics = new CounterRepositoryMetrics();
+        asyncRepository.setMetrics(metrics);
+        asyncRepository.setCacheScheduler(mPerformOnScheduler);
+        asyncRepository.addCacheDataSources(new AsyncCacheDataSource<>(inMemoryStorage),
+                                            mockCacheDataSourceTwo);
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        given(mockCacheDataSourceTwo.getByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(
+              Observable.just(entityOne));
+
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams), null,
+                                  null, entityOne);
+
+        assertThat(metrics.getMissCount(RepositoryMetrics.Source.CACHE, 0), is(1L));
+        assertThat(metrics.getHitCount(RepositoryMetrics.Source.CACHE, 1), is(1L));
+        verify(inMemoryStorage, times(0)).readOneByKey(FAKE_CHANNEL_ID_1);
+        verifyZeroInteractions(mockRestApiDataSource);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void getByKey_ShouldReadInMemoryTierOnSubscription() throws Exception {
+        OnDeviceKeyTypedValueStorage<Integer, TestEntity> inMemoryStorage =
+              mock(OnDeviceKeyTypedValueStorage.class,
+                   withSettings().extraInterfaces(InMemoryKeyedStorage.class));
+        asyncRepository.addCacheDataSources(new AsyncCacheDataSource<>(inMemoryStorage));
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+
+        Observable<TestEntity> read = asyncRepository.getByKey(FAKE_CHANNEL_ID_1, mockApiParams);
+        verifyZeroInteractions(inMemoryStorage);
+        //the value cached after the assembly is found on subscription.
+        given(inMemoryStorage.containsKey(FAKE_CHANNEL_ID_1)).willReturn(true);
+        given(inMemoryStorage.readOneByKey(FAKE_CHANNEL_ID_1)).willReturn(entityOne);
+
+        assertObservableHappyCase(read, null, null, entityOne);
+        verifyZeroInteractions(mockRestApiDataSource);
+    }
+
+    @Test
+    public void prefetch_ShouldFetchOnlyMissingKeysWithinRequestBudget() throws Exception {
+        OnDeviceKeyTypedValueStorage<Integer, TestEntity> inMemoryStorage =
+              mock(OnDeviceKeyTypedValueStorage.class,
+                   withSettings().extraInterfaces(InMemoryKeyedStorage.class));
+        asyncRepository.addCacheDataSources(new AsyncCacheDataSource<>(inMemoryStorage));
+        asyncRepository.addReadableDataSources(mockBatchReadableDataSource);
+        asyncRepository.getPrefetcher()
+                       .setBatchSize(2)
+                       .setMaxRequests(1)
+                       .setScheduler(Schedulers.immediate());
+        TestEntity entityTwo = TestEntity.with(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_NAME_2);
+        //Only the first entity is cached in memory.
+        given(inMemoryStorage.containsKey(FAKE_CHANNEL_ID_1)).willReturn(true);
+        given(inMemoryStorage.readOneByKey(FAKE_CHANNEL_ID_1)).willReturn(
+              TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1));
+        given(mockBatchReadableDataSource.getByKeys(Lists.newArrayList(FAKE_CHANNEL_ID_2, 3),
+                                                    null))
+              .willReturn(Observable.just(Lists.newArrayList(entityTwo)));
+
+        asyncRepository.prefetch(Lists.newArrayList(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_ID_2, 3, 4));
+
+        verify(mockBatchReadableDataSource).getByKeys(Lists.newArrayList(FAKE_CHANNEL_ID_2, 3),
+                                                      null);
+        verify(mockBatchReadableDataSource, times(0)).getByKeys(Lists.newArrayList(4), null);
+        assertThat(asyncRepository.getPrefetcher().getRequestCount(), is(1L));
+        assertThat(asyncRepository.getPrefetcher().getPrefetchedCount(), is(1L));
+        assertThat(asyncRepository.getPrefetcher().getSkippedCount(), is(2L));
+    }
+
+    @Test
+    public void getByKey_ShouldJoinPrefetchInFlight() throws Exception {
+        asyncRepository.addReadableDataSources(mockBatchReadableDataSource);
+        TestEntity entityTwo = TestEntity.with(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_NAME_2);
+        PublishSubject<List<TestEntity>> batchLookup = PublishSubject.create();
+        given(mockBatchReadableDataSource.getByKeys(Lists.newArrayList(FAKE_CHANNEL_ID_2), null))
+              .willReturn(batchLookup);
+        asyncRepository.getPrefetcher().setScheduler(Schedulers.immediate());
+
+        asyncRepository.prefetch(Lists.newArrayList(FAKE_CHANNEL_ID_2));
+        TestSubscriber<TestEntity> testSubscriber = new TestSubscriber<>();
+        asyncRepository.getByKeyAsync(FAKE_CHANNEL_ID_2, ReadPolicy.READ_ALL, null)
+                       .subscribe(testSubscriber);
+        batchLookup.onNext(Lists.newArrayList(entityTwo));
+        batchLookup.onCompleted();
+
+        testSubscriber.assertValue(entityTwo);
+        testSubscriber.assertCompleted();
+        verify(mockBatchReadableDataSource).getByKeys(Lists.newArrayList(FAKE_CHANNEL_ID_2),
+                                                      null);
+        verifyNoMoreInteractions(mockBatchReadableDataSource);
+    }
+
+    @Test
+    public void addOrUpdate_ShouldLogAndReplayWrite_WhenNetworkIsUnavailable() throws Exception {
+        File logFile = new File(System.getProperty("java.io.tmpdir"), "mutations.log");
+        logFile.delete();
+        asyncRepository.setMutationLog(
+              new MutationLog<>(logFile, mGson.getAdapter(Integer.class),
+                                TestEntity.typeAdapter(mGson)));
+        asyncRepository.addCacheDataSources(mockCacheDataSource);
+        asyncRepository.addWriteableDataSources(mockWritableDataSource);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        given(mockWritableDataSource.addOrUpdate(entityOne)).willReturn(
+              Observable.error(new NetworkConnectionException()));
+        given(mockCacheDataSource.addOrUpdateAsync(entityOne)).willReturn(
+              Observable.just(entityOne));
+
+        //The write is logged and applied to the cache optimistically.
+        assertObservableHappyCase(asyncRepository.addOrUpdate(entityOne), null, null, entityOne);
+        verify(mockCacheDataSource).addOrUpdateAsync(entityOne);
+
+        //The log is read back from its file.
+        MutationLog<Integer, TestEntity> reopened =
+              new MutationLog<>(logFile, mGson.getAdapter(Integer.class),
+                                TestEntity.typeAdapter(mGson));
+        asyncRepository.setMutationLog(reopened);
+        assertThat(reopened.size(), is(1));
+        given(mockWritableDataSource.addOrUpdateAll(Lists.newArrayList(entityOne), null))
+              .willReturn(Observable.just(Lists.newArrayList(entityOne)));
+
+        assertObservableHappyCase(asyncRepository.replayMutations(), null, null, 1);
+        verify(mockWritableDataSource).addOrUpdateAll(Lists.newArrayList(entityOne), null);
+        assertThat(reopened.size(), is(0));
+        assertThat(logFile.exists(), is(false));
+    }
+
+    @Test
+    public void mutationLog_ShouldAppendDrops_AndCompactWhenDeadLinesDominate() throws Exception {
+        File logFile = new File(System.getProperty("java.io.tmpdir"), "mutations-drop.log");
+        logFile.delete();
+        MutationLog<Integer, TestEntity> mutationLog =
+              new MutationLog<>(logFile, mGson.getAdapter(Integer.class),
+                                TestEntity.typeAdapter(mGson));
+        List<MutationLog.Mutation<Integer, TestEntity>> mutations = new ArrayList<>();
+        for (int id = 0; id < 100; id++) {
+            mutations.add(MutationLog.Mutation.put(TestEntity.with(id, FAKE_CHANNEL_NAME_1)));
+        }
+        assertThat(mutationLog.appendAll(mutations), is(true));
+
+        //A discard appends a drop line, which is honored when the log is read back.
+        assertThat(mutationLog.discard(0), is(true));
+        assertThat(Files.readAllLines(logFile.toPath()).size(), is(101));
+        assertThat(new MutationLog<>(logFile, mGson.getAdapter(Integer.class),
+                                     TestEntity.typeAdapter(mGson)).size(), is(99));
+
+        //The file is rewritten only when the dead lines outnumber the pending mutations.
+        for (int id = 1; id < 70; id++) {
+            mutationLog.discard(id);
+        }
+        assertThat(Files.readAllLines(logFile.toPath()).size(), is(38));
+        MutationLog<Integer, TestEntity> reopened =
+              new MutationLog<>(logFile, mGson.getAdapter(Integer.class),
+                                TestEntity.typeAdapter(mGson));
+        assertThat(reopened.size(), is(30));
+        assertThat(reopened.getPending().get(0).getKey(), is(70));
+
+        List<Integer> rest = new ArrayList<>();
+        for (int id = 70; id < 100; id++) {
+            rest.add(id);
+        }
+        assertThat(reopened.discardAll(rest), is(30));
+        assertThat(logFile.exists(), is(false));
+    }
+
+    @Test
+    public void mutationLog_ShouldRepairPartialLastLine_WhenReopened() throws Exception {
+        File logFile = new File(System.getProperty("java.io.tmpdir"), "mutations-partial.log");
+        logFile.delete();
+        MutationLog<Integer, TestEntity> mutationLog =
+              new MutationLog<>(logFile, mGson.getAdapter(Integer.class),
+                                TestEntity.typeAdapter(mGson));
+        mutationLog.appendAll(Lists.newArrayList(
+              MutationLog.Mutation.put(TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1))));
+        //A crash interrupted the append of a line.
+        Files.write(logFile.toPath(), "{\"op\":\"PUT\",\"ke".getBytes("UTF-8"),
+                    StandardOpenOption.APPEND);
+
+        MutationLog<Integer, TestEntity> reopened =
+              new MutationLog<>(logFile, mGson.getAdapter(Integer.class),
+                                TestEntity.typeAdapter(mGson));
+        assertThat(reopened.size(), is(1));
+        reopened.appendAll(Lists.newArrayList(
+              MutationLog.Mutation.put(TestEntity.with(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_NAME_2))));
+
+        assertThat(Files.readAllLines(logFile.toPath()).size(), is(2));
+        assertThat(new MutationLog<>(logFile, mGson.getAdapter(Integer.class),
+                                     TestEntity.typeAdapter(mGson)).size(), is(2));
+
+        //A whole last mutation without its line break is kept and completed.
+        byte[] content = Files.readAllBytes(logFile.toPath());
+        Files.write(logFile.toPath(), Arrays.copyOf(content, content.length - 1));
+        reopened = new MutationLog<>(logFile, mGson.getAdapter(Integer.class),
+                                     TestEntity.typeAdapter(mGson));
+        assertThat(reopened.size(), is(2));
+        reopened.discard(FAKE_CHANNEL_ID_1);
+        assertThat(Files.readAllLines(logFile.toPath()).size(), is(3));
+        assertThat(new MutationLog<>(logFile, mGson.getAdapter(Integer.class),
+                                     TestEntity.typeAdapter(mGson)).size(), is(1));
+        logFile.delete();
+    }
+
+    @Test
+    public void getByKey_ShouldEmitCachedThenFreshItem_WhenStaleWhileRevalidate()
+          throws Exception {
+        asyncRepository.addCacheDataSources(mockCacheDataSource);
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        TestEntity cachedEntity = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity freshEntity = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_2);
+        given(mockCacheDataSource.getByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(
+              Observable.just(cachedEntity));
+        given(mockRestApiDataSource.getByKey(FAKE_CHANNEL_ID_1, mockApiParams)).willReturn(
+              Observable.just(freshEntity));
+        given(mockCacheDataSource.addOrUpdateAsync(freshEntity)).willReturn(
+              Observable.just(freshEntity));
+
+        assertObservableHappyCase(
+              asyncRepository.getByKeyAsync(FAKE_CHANNEL_ID_1, ReadPolicy.STALE_WHILE_REVALIDATE,
+                                            mockApiParams), null, null, cachedEntity,
+              freshEntity);
+
         verify(mockRestApiDataSource).getByKey(FAKE_CHANNEL_ID_1, mockApiParams);
+        verify(mockCacheDataSource, timeout(1000)).addOrUpdateAsync(freshEntity);
+    }
+
+    @Test
+    public void getByKey_ShouldEmitCachedItemOnly_WhenRevalidatedItemIsUnchanged()
+          throws Exception {
+        asyncRepository.addCacheDataSources(mockCacheDataSource);
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        TestEntity cachedEntity = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity freshEntity = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        given(mockCacheDataSource.getByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(
+              Observable.just(cachedEntity));
+        given(mockRestApiDataSource.getByKey(FAKE_CHANNEL_ID_1, mockApiParams)).willReturn(
+              Observable.just(freshEntity));
+        given(mockCacheDataSource.addOrUpdateAsync(freshEntity)).willReturn(
+              Observable.just(freshEntity));
+
+        assertObservableHappyCase(
+              asyncRepository.getByKeyAsync(FAKE_CHANNEL_ID_1, ReadPolicy.STALE_WHILE_REVALIDATE,
+                                            mockApiParams), null, null, cachedEntity);
+
+        verify(mockRestApiDataSource).getByKey(FAKE_CHANNEL_ID_1, mockApiParams);
+    }
+
+    @Test
+    public void getAll_ShouldEmitCachedItemsOnly_WhenRevalidatedItemsAreUnchanged()
+          throws Exception {
+        asyncRepository.addCacheDataSources(mockCacheDataSource, mockCacheDataSourceTwo);
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        asyncRepository.setCacheScheduler(mPerformOnScheduler);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity staleEntityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_2);
+        TestEntity entityTwo = TestEntity.with(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_NAME_2);
+        given(mockCacheDataSource.getAllAsync()).willReturn(Observable.just(entityOne));
+        given(mockCacheDataSourceTwo.getAllAsync()).willReturn(
+              Observable.just(staleEntityOne, entityTwo));
+        given(mockRestApiDataSource.getAll(mockApiParams)).willReturn(
+              Observable.just(Lists.newArrayList(entityTwo, entityOne)));
+
+        assertObservableHappyCase(
+              asyncRepository.getAllAsync(ReadPolicy.STALE_WHILE_REVALIDATE, mockApiParams), null,
+              null, Lists.newArrayList(entityOne, entityTwo));
+
+        verify(mockRestApiDataSource).getAll(mockApiParams);
     }
 
     @Test
@@ -206,10 +1064,40 @@ public class AsyncRepositoryTest extends DataTestCase {
 
         assertObservableHappyCase(asyncRepository.areCached(values), null, null, Boolean.TRUE);
         verify(mockCacheDataSource).getAllAsync();
-        verify(mockCacheDataSource).addOrUpdateAllAsync(values);
+        verify(mockCacheDataSource, timeout(1000)).addOrUpdateAllAsync(values);
         verify(mockRestApiDataSource).getAll(mockApiParams);
     }
 
+    @Test
+    public void getAll_ShouldResolveCachedQueryFromCache_WhenRequestParamsGiven()
+          throws Exception {
+        asyncRepository.addCacheDataSources(mockCacheDataSource);
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        KeyValuePairs<String, Object> query = new KeyValuePairs<>();
+        query.put("name", FAKE_CHANNEL_NAME_1);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity entityTwo = TestEntity.with(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_NAME_1);
+        TestEntity entityOneUpdated = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_2);
+        given(mockRestApiDataSource.getAll(query)).willReturn(
+              Observable.just(Lists.newArrayList(entityOne, entityTwo)));
+        //the cache contains the values of other queries too.
+        given(mockCacheDataSource.getAllAsync()).willReturn(
+              Observable.just(entityOne, entityTwo,
+                              TestEntity.with(FAKE_CHANNEL_ID_3, FAKE_CHANNEL_NAME_3)));
+        given(mockCacheDataSource.getByKeysAsync(
+              Lists.newArrayList(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_ID_2))).willReturn(
+              Observable.just(entityTwo, entityOneUpdated));
+
+        assertListObservableHappyCase(asyncRepository.getAll(query), null, null, entityOne,
+                                      entityTwo);
+        //the second query is resolved from the cache, reflecting the update of the entity.
+        assertListObservableHappyCase(asyncRepository.getAll(query), null, null,
+                                      entityOneUpdated, entityTwo);
+
+        verify(mockRestApiDataSource, times(1)).getAll(query);
+        verify(mockCacheDataSource, times(0)).getAllAsync();
+    }
+
     @Test
     public void getAll_ShouldNotCacheAndReturnItemsFromRestApi_WhenCacheNever() throws Exception {
         asyncRepository.addCacheDataSources(mockCacheDataSource);
@@ -428,6 +1316,378 @@ public class AsyncRepositoryTest extends DataTestCase {
         verifyZeroInteractions(mockWritableDataSourceTwo);
     }
 
+    @Test
+    public void addOrUpdate_ShouldCoalesceAndFlushOnce_WhenWriteBehindPolicy() throws Exception {
+        asyncRepository.addCacheDataSources(mockCacheDataSource);
+        asyncRepository.addWriteableDataSources(mockWritableDataSource);
+        asyncRepository.setWritePolicy(WritePolicy.WRITE_BEHIND);
+        asyncRepository.getWriteBehindQueue()
+                       .setFlushDelay(1, TimeUnit.SECONDS)
+                       .setScheduler(mPerformOnScheduler);
+
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity entityUpdated = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_2);
+        given(mockCacheDataSource.addOrUpdateAsync(any(TestEntity.class))).willReturn(
+              Observable.empty());
+        given(mockWritableDataSource.addOrUpdateAll(Lists.newArrayList(entityUpdated), null))
+              .willReturn(Observable.just(Lists.newArrayList(entityUpdated)));
+
+        assertObservableHappyCase(asyncRepository.addOrUpdate(entityOne), null, null, entityOne);
+        assertObservableHappyCase(asyncRepository.addOrUpdate(entityUpdated), null, null,
+                                  entityUpdated);
+        //caches are updated immediately, the writeable only after the flush delay.
+        verify(mockCacheDataSource).addOrUpdateAsync(entityOne);
+        verify(mockCacheDataSource).addOrUpdateAsync(entityUpdated);
+        verifyZeroInteractions(mockWritableDataSource);
+        assertThat(asyncRepository.getWriteBehindQueue().size(), is(1));
+
+        mPerformOnScheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        verify(mockWritableDataSource).addOrUpdateAll(Lists.newArrayList(entityUpdated), null);
+        verifyNoMoreInteractions(mockWritableDataSource);
+        assertThat(asyncRepository.getWriteBehindQueue().size(), is(0));
+    }
+
+    @Test
+    public void addOrUpdate_ShouldNotifyFlushFailure_WhenWriteBehindBatchFails() throws Exception {
+        asyncRepository.addWriteableDataSources(mockWritableDataSource);
+        asyncRepository.setWritePolicy(WritePolicy.WRITE_BEHIND);
+        final List<TestEntity> failed = new ArrayList<>();
+        asyncRepository.getWriteBehindQueue()
+                       .setMaxPendingSize(2)
+                       .setScheduler(mPerformOnScheduler)
+                       .setOnFlushFailedListener((values, throwable) -> failed.addAll(values));
+
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity entityTwo = TestEntity.with(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_NAME_2);
+        given(mockWritableDataSource.addOrUpdateAll(Lists.newArrayList(entityOne, entityTwo),
+                                                    null))
+              .willReturn(Observable.error(new IllegalStateException("offline")));
+
+        //reaching the max pending size triggers the flush.
+        assertListObservableHappyCase(
+              asyncRepository.addOrUpdateAll(Lists.newArrayList(entityOne, entityTwo),
+                                             mockApiParams), null, null, entityOne, entityTwo);
+        mPerformOnScheduler.triggerActions();
+
+        verify(mockWritableDataSource).addOrUpdateAll(Lists.newArrayList(entityOne, entityTwo),
+                                                      null);
+        assertThat(failed, is(Lists.newArrayList(entityOne, entityTwo)));
+    }
+
+    @Test
+    public void addOrUpdate_ShouldBackOffAndGiveUp_WhenWriteBehindRetriesExhausted()
+          throws Exception {
+        asyncRepository.addWriteableDataSources(mockWritableDataSource);
+        asyncRepository.setWritePolicy(WritePolicy.WRITE_BEHIND);
+        final List<TestEntity> dropped = new ArrayList<>();
+        asyncRepository.getWriteBehindQueue()
+                       .setFlushDelay(1, TimeUnit.SECONDS)
+                       .setMaxRetries(1)
+                       .setScheduler(mPerformOnScheduler)
+                       .setOnWritesDroppedListener((values, throwable) -> dropped.addAll(values));
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        given(mockWritableDataSource.addOrUpdateAll(Lists.newArrayList(entityOne), null))
+              .willReturn(Observable.error(new IllegalStateException("offline")));
+
+        assertObservableHappyCase(asyncRepository.addOrUpdate(entityOne), null, null, entityOne);
+        mPerformOnScheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        verify(mockWritableDataSource).addOrUpdateAll(Lists.newArrayList(entityOne), null);
+        assertThat(asyncRepository.getWriteBehindQueue().size(), is(1));
+
+        //the retry waits for the doubled delay.
+        mPerformOnScheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        verify(mockWritableDataSource).addOrUpdateAll(Lists.newArrayList(entityOne), null);
+        mPerformOnScheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        verify(mockWritableDataSource, times(2)).addOrUpdateAll(Lists.newArrayList(entityOne),
+                                                                null);
+        assertThat(asyncRepository.getWriteBehindQueue().size(), is(0));
+        assertThat(dropped, is(Lists.newArrayList(entityOne)));
+    }
+
+    @Test
+    public void addOrUpdate_ShouldDropOldestWriteBehind_WhenQueueIsAtCapacity() throws Exception {
+        asyncRepository.addWriteableDataSources(mockWritableDataSource);
+        asyncRepository.setWritePolicy(WritePolicy.WRITE_BEHIND);
+        final List<TestEntity> dropped = new ArrayList<>();
+        asyncRepository.getWriteBehindQueue()
+                       .setCapacity(2)
+                       .setScheduler(mPerformOnScheduler)
+                       .setOnWritesDroppedListener((values, throwable) -> dropped.addAll(values));
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity entityTwo = TestEntity.with(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_NAME_2);
+        TestEntity entityThree = TestEntity.with(FAKE_CHANNEL_ID_3, FAKE_CHANNEL_NAME_3);
+
+        assertListObservableHappyCase(
+              asyncRepository.addOrUpdateAll(Lists.newArrayList(entityOne, entityTwo, entityThree),
+                                             null), null, null, entityOne, entityTwo, entityThree);
+
+        assertThat(asyncRepository.getWriteBehindQueue().size(), is(2));
+        assertThat(asyncRepository.getWriteBehindQueue().getPending(FAKE_CHANNEL_ID_1),
+                   is((TestEntity) null));
+        assertThat(dropped, is(Lists.newArrayList(entityOne)));
+    }
+
+    @Test
+    public void flushWriteBehind_ShouldWaitForFlushInFlight_AndRequeueFailedValues()
+          throws Exception {
+        asyncRepository.addWriteableDataSources(mockWritableDataSource);
+        asyncRepository.setWritePolicy(WritePolicy.WRITE_BEHIND);
+        asyncRepository.getWriteBehindQueue()
+                       .setFlushDelay(1, TimeUnit.SECONDS)
+                       .setScheduler(mPerformOnScheduler);
+
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity entityTwo = TestEntity.with(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_NAME_2);
+        TestEntity entityThree = TestEntity.with(FAKE_CHANNEL_ID_3, FAKE_CHANNEL_NAME_3);
+        TestEntity entityTwoUpdated = TestEntity.with(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_NAME_3);
+        PublishSubject<List<TestEntity>> firstWrite = PublishSubject.create();
+        given(mockWritableDataSource.addOrUpdateAll(Lists.newArrayList(entityOne, entityTwo),
+                                                    null)).willReturn(firstWrite);
+        given(mockWritableDataSource.addOrUpdateAll(
+              Lists.newArrayList(entityOne, entityTwoUpdated, entityThree), null)).willReturn(
+              Observable.just(Lists.newArrayList(entityOne, entityTwoUpdated, entityThree)));
+
+        asyncRepository.addOrUpdateAll(Lists.newArrayList(entityOne, entityTwo), null)
+                       .subscribe();
+        TestSubscriber<List<TestEntity>> firstFlush = new TestSubscriber<>();
+        asyncRepository.flushWriteBehind().subscribe(firstFlush);
+
+        asyncRepository.addOrUpdateAll(Lists.newArrayList(entityTwoUpdated, entityThree), null)
+                       .subscribe();
+        TestSubscriber<List<TestEntity>> secondFlush = new TestSubscriber<>();
+        asyncRepository.flushWriteBehind().subscribe(secondFlush);
+        //the second flush waits for the first one.
+        verify(mockWritableDataSource).addOrUpdateAll(Lists.newArrayList(entityOne, entityTwo),
+                                                      null);
+        verifyNoMoreInteractions(mockWritableDataSource);
+        secondFlush.assertNoValues();
+
+        //the failed value superseded meanwhile is not queued again.
+        firstWrite.onError(new IllegalStateException("offline"));
+        firstFlush.assertError(IllegalStateException.class);
+        secondFlush.assertValue(Lists.newArrayList(entityOne, entityTwoUpdated, entityThree));
+        assertThat(asyncRepository.getWriteBehindQueue().size(), is(0));
+    }
+
+    @Test
+    public void deleteByKey_ShouldDiscardPendingWriteBehind_OnlyWhenSubscribed() throws Exception {
+        asyncRepository.addCacheDataSources(mockCacheDataSource);
+        asyncRepository.addWriteableDataSources(mockWritableDataSource);
+        asyncRepository.setCacheScheduler(mPerformOnScheduler);
+        asyncRepository.setWritePolicy(WritePolicy.WRITE_BEHIND);
+        asyncRepository.getWriteBehindQueue().setScheduler(mPerformOnScheduler);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        given(mockWritableDataSource.deleteByKey(FAKE_CHANNEL_ID_1, null)).willReturn(
+              Observable.just(true));
+        given(mockCacheDataSource.deleteByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(
+              Observable.just(true));
+
+        assertObservableHappyCase(asyncRepository.addOrUpdate(entityOne), null, null, entityOne);
+        Observable<Boolean> deletion = asyncRepository.deleteByKey(FAKE_CHANNEL_ID_1, null);
+        assertThat(asyncRepository.getWriteBehindQueue().size(), is(1));
+
+        assertObservableHappyCase(deletion, null, null, true);
+        assertThat(asyncRepository.getWriteBehindQueue().size(), is(0));
+    }
+
+    @Test
+    public void getByKey_ShouldDropOldestCacheWrite_AndInvalidateItsKey_WhenQueueIsFull()
+          throws Exception {
+        asyncRepository.addCacheDataSources(mockCacheDataSource);
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        asyncRepository.setReadPolicy(ReadPolicy.READABLE_ONLY);
+        asyncRepository.setCacheScheduler(mPerformOnScheduler);
+        asyncRepository.getCachePopulator().setCapacity(1);
+
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity entityTwo = TestEntity.with(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_NAME_2);
+        given(mockRestApiDataSource.getByKey(FAKE_CHANNEL_ID_1, null)).willReturn(
+              Observable.just(entityOne));
+        given(mockRestApiDataSource.getByKey(FAKE_CHANNEL_ID_2, null)).willReturn(
+              Observable.just(entityTwo));
+        given(mockCacheDataSource.addOrUpdateAsync(entityTwo)).willReturn(
+              Observable.just(entityTwo));
+        given(mockCacheDataSource.deleteByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(
+              Observable.just(true));
+
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, null), null, null,
+                                  entityOne);
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_2, null), null, null,
+                                  entityTwo);
+        //nothing read through is written into the cache on the calling thread.
+        verifyZeroInteractions(mockCacheDataSource);
+        assertThat(asyncRepository.getCachePopulator().getQueueDepth(), is(1));
+        assertThat(asyncRepository.getCachePopulator().getDroppedCount(), is(1L));
+
+        //the key of the dropped write is invalidated instead of being left stale.
+        mPerformOnScheduler.triggerActions();
+        verify(mockCacheDataSource).deleteByKeyAsync(FAKE_CHANNEL_ID_1);
+        verify(mockCacheDataSource).addOrUpdateAsync(entityTwo);
+        verifyNoMoreInteractions(mockCacheDataSource);
+        assertThat(asyncRepository.getCachePopulator().getQueueDepth(), is(0));
+    }
+
+    @Test
+    public void addOrUpdate_ShouldWriteCachesBeforeCompleting_AndDiscardQueuedRead()
+          throws Exception {
+        asyncRepository.addCacheDataSources(mockCacheDataSource);
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        asyncRepository.addWriteableDataSources(mockWritableDataSource);
+        asyncRepository.setReadPolicy(ReadPolicy.READABLE_ONLY);
+        asyncRepository.setCacheScheduler(mPerformOnScheduler);
+
+        TestEntity entity = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity updated = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_2);
+        given(mockRestApiDataSource.getByKey(FAKE_CHANNEL_ID_1, null)).willReturn(
+              Observable.just(entity));
+        given(mockWritableDataSource.addOrUpdate(updated)).willReturn(Observable.just(updated));
+        given(mockCacheDataSource.addOrUpdateAsync(updated)).willReturn(Observable.just(updated));
+
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, null), null, null,
+                                  entity);
+        assertThat(asyncRepository.getCachePopulator().getQueueDepth(), is(1));
+        assertObservableHappyCase(asyncRepository.addOrUpdate(updated), null, null, updated);
+        verify(mockCacheDataSource).addOrUpdateAsync(updated);
+        assertThat(asyncRepository.getCachePopulator().getQueueDepth(), is(0));
+
+        //the older value read before the update does not overwrite it.
+        mPerformOnScheduler.triggerActions();
+        verifyNoMoreInteractions(mockCacheDataSource);
+    }
+
+    @Test
+    public void deleteByKey_ShouldDiscardQueuedCacheWrite() throws Exception {
+        asyncRepository.addCacheDataSources(mockCacheDataSource);
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        asyncRepository.addWriteableDataSources(mockWritableDataSource);
+        asyncRepository.setReadPolicy(ReadPolicy.READABLE_ONLY);
+        asyncRepository.setCacheScheduler(mPerformOnScheduler);
+
+        TestEntity entity = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        given(mockRestApiDataSource.getByKey(FAKE_CHANNEL_ID_1, null)).willReturn(
+              Observable.just(entity));
+        given(mockWritableDataSource.deleteByKey(FAKE_CHANNEL_ID_1, null)).willReturn(
+              Observable.just(true));
+        given(mockCacheDataSource.deleteByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(
+              Observable.just(true));
+
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, null), null, null,
+                                  entity);
+        assertThat(asyncRepository.getCachePopulator().getQueueDepth(), is(1));
+        assertObservableHappyCase(asyncRepository.deleteByKey(FAKE_CHANNEL_ID_1, null), null,
+                                  null, true);
+        assertThat(asyncRepository.getCachePopulator().getQueueDepth(), is(0));
+
+        mPerformOnScheduler.triggerActions();
+        verify(mockCacheDataSource).deleteByKeyAsync(FAKE_CHANNEL_ID_1);
+        verifyNoMoreInteractions(mockCacheDataSource);
+    }
+
+    @Test
+    public void deleteByKey_ShouldUndoCacheWrite_WhenDeletedWhileItIsWritten() throws Exception {
+        asyncRepository.addCacheDataSources(mockCacheDataSource);
+        asyncRepository.addReadableDataSources(mockRestApiDataSource);
+        asyncRepository.addWriteableDataSources(mockWritableDataSource);
+        asyncRepository.setReadPolicy(ReadPolicy.READABLE_ONLY);
+        asyncRepository.setCacheScheduler(mPerformOnScheduler);
+
+        TestEntity entity = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        given(mockRestApiDataSource.getByKey(FAKE_CHANNEL_ID_1, null)).willReturn(
+              Observable.just(entity));
+        given(mockWritableDataSource.deleteByKey(FAKE_CHANNEL_ID_1, null)).willReturn(
+              Observable.just(true));
+        given(mockCacheDataSource.deleteByKeyAsync(FAKE_CHANNEL_ID_1)).willReturn(
+              Observable.just(true));
+        //the deletion completes while the queued write is being written into the cache.
+        given(mockCacheDataSource.addOrUpdateAsync(entity)).willReturn(Observable.defer(() -> {
+            asyncRepository.deleteByKey(FAKE_CHANNEL_ID_1, null).subscribe();
+            return Observable.just(entity);
+        }));
+
+        assertObservableHappyCase(asyncRepository.getByKey(FAKE_CHANNEL_ID_1, null), null, null,
+                                  entity);
+        mPerformOnScheduler.triggerActions();
+
+        //deleted by the deletion, then again after the overlapping write.
+        verify(mockCacheDataSource, times(2)).deleteByKeyAsync(FAKE_CHANNEL_ID_1);
+    }
+
+    @Test
+    public void observeByKey_ShouldEmitCoalescedDistinctChanges() throws Exception {
+        asyncRepository.addWriteableDataSources(mockWritableDataSource);
+        asyncRepository.setChangeWindow(50, TimeUnit.MILLISECONDS, mNotifyOnScheduler);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity entityUpdated = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_2);
+        TestEntity entityTwo = TestEntity.with(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_NAME_2);
+        given(mockWritableDataSource.addOrUpdate(any(TestEntity.class))).willAnswer(
+              invocation -> Observable.just(invocation.getArguments()[0]));
+        TestSubscriber<RepositoryChange<Integer, TestEntity>> testSubscriber =
+              new TestSubscriber<>();
+        asyncRepository.observeByKey(FAKE_CHANNEL_ID_1).subscribe(testSubscriber);
+
+        asyncRepository.addOrUpdate(entityOne).subscribe();
+        asyncRepository.addOrUpdate(entityUpdated).subscribe();
+        asyncRepository.addOrUpdate(entityTwo).subscribe();
+        mNotifyOnScheduler.advanceTimeBy(50, TimeUnit.MILLISECONDS);
+        //updating with the same value again.
+        asyncRepository.addOrUpdate(entityUpdated).subscribe();
+        mNotifyOnScheduler.advanceTimeBy(50, TimeUnit.MILLISECONDS);
+
+        testSubscriber.assertValue(RepositoryChange.updated(FAKE_CHANNEL_ID_1, entityUpdated));
+    }
+
+    @Test
+    public void observeByKey_ShouldEmitLastChangeOfEachWindow_WhenChangesKeepComing()
+          throws Exception {
+        asyncRepository.addWriteableDataSources(mockWritableDataSource);
+        asyncRepository.setChangeWindow(50, TimeUnit.MILLISECONDS, mNotifyOnScheduler);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity entityUpdated = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_2);
+        given(mockWritableDataSource.addOrUpdate(any(TestEntity.class))).willAnswer(
+              invocation -> Observable.just(invocation.getArguments()[0]));
+        TestSubscriber<RepositoryChange<Integer, TestEntity>> testSubscriber =
+              new TestSubscriber<>();
+        asyncRepository.observeByKey(FAKE_CHANNEL_ID_1).subscribe(testSubscriber);
+
+        asyncRepository.addOrUpdate(entityOne).subscribe();
+        mNotifyOnScheduler.advanceTimeBy(30, TimeUnit.MILLISECONDS);
+        asyncRepository.addOrUpdate(entityUpdated).subscribe();
+        mNotifyOnScheduler.advanceTimeBy(30, TimeUnit.MILLISECONDS);
+        asyncRepository.addOrUpdate(entityOne).subscribe();
+        mNotifyOnScheduler.advanceTimeBy(40, TimeUnit.MILLISECONDS);
+
+        testSubscriber.assertValues(RepositoryChange.updated(FAKE_CHANNEL_ID_1, entityUpdated),
+                                    RepositoryChange.updated(FAKE_CHANNEL_ID_1, entityOne));
+    }
+
+    @Test
+    public void observeAll_ShouldEmitChangesOfWindowCoalescedPerKey() throws Exception {
+        asyncRepository.addWriteableDataSources(mockWritableDataSource);
+        asyncRepository.setChangeWindow(50, TimeUnit.MILLISECONDS, mNotifyOnScheduler);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity entityTwo = TestEntity.with(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_NAME_2);
+        given(mockWritableDataSource.addOrUpdateAll(any(), any())).willAnswer(
+              invocation -> Observable.just(new ArrayList<>((List) invocation.getArguments()[0])));
+        given(mockWritableDataSource.deleteByKey(FAKE_CHANNEL_ID_2, mockApiParams)).willReturn(
+              Observable.just(Boolean.TRUE));
+        TestSubscriber<List<RepositoryChange<Integer, TestEntity>>> testSubscriber =
+              new TestSubscriber<>();
+        asyncRepository.observeAll(entity -> entity.getKey() != FAKE_CHANNEL_ID_3)
+                       .subscribe(testSubscriber);
+
+        asyncRepository.addOrUpdateAll(Lists.newArrayList(entityOne, entityTwo), mockApiParams)
+                       .subscribe();
+        asyncRepository.deleteByKey(FAKE_CHANNEL_ID_2, mockApiParams).subscribe();
+        asyncRepository.addOrUpdateAll(
+              Lists.newArrayList(TestEntity.with(FAKE_CHANNEL_ID_3, FAKE_CHANNEL_NAME_3)),
+              mockApiParams).subscribe();
+        mNotifyOnScheduler.advanceTimeBy(50, TimeUnit.MILLISECONDS);
+
+        testSubscriber.assertValue(Lists.newArrayList(
+              RepositoryChange.updated(FAKE_CHANNEL_ID_1, entityOne),
+              RepositoryChange.deleted(FAKE_CHANNEL_ID_2)));
+    }
+
     @Test
     public void deleteByKey_ShouldRemoveFromMultipleWritableDataSource() throws Exception {
         asyncRepository.addCacheDataSources(mockCacheDataSource);
@@ -5,15 +5,20 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.JsonParser;
 import com.google.gson.TypeAdapter;
 import com.neatier.commons.helpers.JsonSerializer;
+import com.neatier.commons.settings.FactorySettings;
+import com.neatier.data.entity.CacheEntryMetadata;
 import com.neatier.data.entity.OnDeviceKeyTypedValueStorage;
 import com.neatier.data.entity.PreferencesTypedValueKeyStorage;
 import com.neatier.data.entity.TestEntity;
 import com.neatier.repository.DataTestCase;
 import com.neatier.repository.datasource.AsyncCacheDataSource;
+import com.neatier.repository.datasource.Page;
 import com.neatier.repository.entity.TestAutoValueAdapterFactory;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import org.junit.Test;
+import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -150,4 +155,217 @@ public class AsyncCacheDataSourceTest extends DataTestCase {
         assertThat(asyncCacheDataSource.isValid(entityTwo)).isFalse();
         assertObservableHappyCase(asyncCacheDataSource.getAllAsync(), null, null);
     }
+
+    @Test
+    public void getByKey_ShouldReturnEmpty_WhenEntryExpired() throws Exception {
+        TestEntity entityOne = onDeviceKeyStorage.getTypeAdapter().fromJson(JSON_ENTITY_1);
+        assertObservableHappyCase(
+              asyncCacheDataSource.addOrUpdateAsync(entityOne, 1, TimeUnit.HOURS), null, null,
+              entityOne);
+        assertThat(asyncCacheDataSource.isValid(entityOne)).isTrue();
+
+        //rewriting the metadata as if the entity was written long ago.
+        onDeviceKeyStorage.writeEntryMetadata(
+              FAKE_CHANNEL_ID_1, new CacheEntryMetadata(0, TimeUnit.HOURS.toMillis(1)));
+        assertThat(asyncCacheDataSource.isValid(entityOne)).isFalse();
+        assertThat(asyncCacheDataSource.checkCached(FAKE_CHANNEL_ID_1, 0))
+              .isEqualTo(FactorySettings.CHECK_CACHED_EXPIRED);
+        assertObservableHappyCase(asyncCacheDataSource.getByKeyAsync(FAKE_CHANNEL_ID_1), null,
+                                  null);
+        assertObservableHappyCase(asyncCacheDataSource.getAllAsync(), null, null);
+    }
+
+    @Test
+    public void sweepExpired_ShouldRemoveOnlyExpiredEntries() throws Exception {
+        TestEntity entityOne = onDeviceKeyStorage.getTypeAdapter().fromJson(JSON_ENTITY_1);
+        TestEntity entityTwo = onDeviceKeyStorage.getTypeAdapter().fromJson(JSON_ENTITY_2);
+        asyncCacheDataSource.setTimeToLive(1, TimeUnit.HOURS);
+        assertListObservableHappyCase(asyncCacheDataSource.addOrUpdateAllAsync(
+              Lists.newArrayList(entityOne, entityTwo)), null, null,
+                                      entityOne, entityTwo);
+        onDeviceKeyStorage.writeEntryMetadata(
+              FAKE_CHANNEL_ID_1, new CacheEntryMetadata(0, TimeUnit.HOURS.toMillis(1)));
+
+        assertObservableHappyCase(asyncCacheDataSource.sweepExpiredAsync(1), null, null, 1);
+        assertThat(onDeviceKeyStorage.containsKey(FAKE_CHANNEL_ID_1)).isFalse();
+        assertThat(onDeviceKeyStorage.readEntryMetadata(FAKE_CHANNEL_ID_1)).isNull();
+        assertObservableHappyCase(asyncCacheDataSource.getAllAsync(), null, null, entityTwo);
+    }
+
+    @Test
+    public void getPage_ShouldReturnAllItemsPageByPage() throws Exception {
+        TestEntity entityOne = onDeviceKeyStorage.getTypeAdapter().fromJson(JSON_ENTITY_1);
+        TestEntity entityTwo = onDeviceKeyStorage.getTypeAdapter().fromJson(JSON_ENTITY_2);
+        assertListObservableHappyCase(asyncCacheDataSource.addOrUpdateAllAsync(
+              Lists.newArrayList(entityOne, entityTwo)), null, null,
+                                      entityOne, entityTwo);
+
+        List<Page<TestEntity>> firstPage =
+              getObservableEvents(asyncCacheDataSource.getPageAsync(1, null), null, null, 1);
+        assertThat(firstPage.get(0).getItems()).hasSize(1);
+        assertThat(firstPage.get(0).getNextCursor()).isEqualTo(
+              String.valueOf(firstPage.get(0).getItems().get(0).getKey()));
+
+        List<Page<TestEntity>> lastPage = getObservableEvents(
+              asyncCacheDataSource.getPageAsync(1, firstPage.get(0).getNextCursor()), null, null,
+              1);
+        assertThat(lastPage.get(0).getItems()).hasSize(1);
+        assertThat(lastPage.get(0).hasNext()).isFalse();
+        assertThat(Lists.newArrayList(firstPage.get(0).getItems().get(0),
+                                      lastPage.get(0).getItems().get(0)))
+              .containsOnly(entityOne, entityTwo);
+    }
+
+    @Test
+    public void getPage_ShouldNotSkipItems_WhenItemsAreAddedBetweenPages() throws Exception {
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity entityTwo = TestEntity.with(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_NAME_2);
+        TestEntity entityThree = TestEntity.with(FAKE_CHANNEL_ID_3, FAKE_CHANNEL_NAME_3);
+        assertListObservableHappyCase(asyncCacheDataSource.addOrUpdateAllAsync(
+              Lists.newArrayList(entityTwo, entityThree)), null, null, entityTwo, entityThree);
+
+        List<Page<TestEntity>> firstPage =
+              getObservableEvents(asyncCacheDataSource.getPageAsync(1, null), null, null, 1);
+        assertThat(firstPage.get(0).getItems()).containsExactly(entityTwo);
+        //a key ordered before the cursor does not shift the next page.
+        assertObservableHappyCase(asyncCacheDataSource.addOrUpdateAsync(entityOne), null, null,
+                                  entityOne);
+
+        List<Page<TestEntity>> lastPage = getObservableEvents(
+              asyncCacheDataSource.getPageAsync(1, firstPage.get(0).getNextCursor()), null, null,
+              1);
+        assertThat(lastPage.get(0).getItems()).containsExactly(entityThree);
+        assertThat(lastPage.get(0).hasNext()).isFalse();
+    }
+
+    @Test
+    public void getIfPresent_ShouldReturnStoredItemSynchronously() throws Exception {
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        assertObservableHappyCase(asyncCacheDataSource.addOrUpdateAsync(entityOne), null, null,
+                                  entityOne);
+
+        assertThat(asyncCacheDataSource.getIfPresent(FAKE_CHANNEL_ID_1)).isEqualTo(entityOne);
+        assertThat(asyncCacheDataSource.getIfPresent(FAKE_CHANNEL_ID_2)).isNull();
+        assertThat(asyncCacheDataSource.peekAll()).containsExactly(entityOne);
+        assertThat(asyncCacheDataSource.isInMemory()).isFalse();
+    }
+
+    @Test
+    public void addOrUpdate_ShouldSkipWrite_WhenValueUnchanged() throws Exception {
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity entityOneRenamed = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_2);
+        assertObservableHappyCase(asyncCacheDataSource.addOrUpdateAsync(entityOne), null, null,
+                                  entityOne);
+        assertObservableHappyCase(asyncCacheDataSource.addOrUpdateAsync(entityOne), null, null,
+                                  entityOne);
+        assertThat(asyncCacheDataSource.getWriteCount()).isEqualTo(1);
+        assertThat(asyncCacheDataSource.getSkippedWriteCount()).isEqualTo(1);
+
+        assertObservableHappyCase(asyncCacheDataSource.addOrUpdateAsync(entityOneRenamed), null,
+                                  null, entityOneRenamed);
+        assertThat(asyncCacheDataSource.getWriteCount()).isEqualTo(2);
+        assertObservableHappyCase(asyncCacheDataSource.getByKeyAsync(FAKE_CHANNEL_ID_1), null,
+                                  null, entityOneRenamed);
+    }
+
+    @Test
+    public void addOrUpdate_ShouldWrite_WhenOnlyContentHashMatches() throws Exception {
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity entityOneRenamed = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_2);
+        assertObservableHappyCase(asyncCacheDataSource.addOrUpdateAsync(entityOne), null, null,
+                                  entityOne);
+        //simulates a hash code collision of the stored and the new value.
+        onDeviceKeyStorage.writeEntryMetadata(
+              FAKE_CHANNEL_ID_1, new CacheEntryMetadata(System.currentTimeMillis(),
+                                                        CacheEntryMetadata.NO_EXPIRY,
+                                                        entityOneRenamed.hashCode()));
+
+        assertObservableHappyCase(asyncCacheDataSource.addOrUpdateAsync(entityOneRenamed), null,
+                                  null, entityOneRenamed);
+        assertThat(asyncCacheDataSource.getWriteCount()).isEqualTo(2);
+        assertObservableHappyCase(asyncCacheDataSource.getByKeyAsync(FAKE_CHANNEL_ID_1), null,
+                                  null, entityOneRenamed);
+    }
+
+    @Test
+    public void addOrUpdate_ShouldStoreMetadataNextToValue_OutOfTheKeys() throws Exception {
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        assertObservableHappyCase(
+              asyncCacheDataSource.addOrUpdateAsync(entityOne, 1, TimeUnit.HOURS), null, null,
+              entityOne);
+
+        assertThat(onDeviceKeyStorage.readEntryMetadata(FAKE_CHANNEL_ID_1).getTtlMillis())
+              .isEqualTo(TimeUnit.HOURS.toMillis(1));
+        assertObservableHappyCase(onDeviceKeyStorage.keys(), null, null, FAKE_CHANNEL_ID_1);
+        assertObservableHappyCase(asyncCacheDataSource.getAllAsync(), null, null, entityOne);
+
+        assertObservableHappyCase(asyncCacheDataSource.deleteByKeyAsync(FAKE_CHANNEL_ID_1), null,
+                                  null, true);
+        assertThat(onDeviceKeyStorage.readEntryMetadata(FAKE_CHANNEL_ID_1)).isNull();
+    }
+
+    @Test
+    public void addOrUpdate_ShouldSkipWrite_WithoutReadingStoredValue() throws Exception {
+        OnDeviceKeyTypedValueStorage<Integer, TestEntity> storage =
+              Mockito.spy(onDeviceKeyStorage);
+        AsyncCacheDataSource<Integer, TestEntity> dataSource = new AsyncCacheDataSource<>(storage);
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        assertObservableHappyCase(dataSource.addOrUpdateAsync(entityOne), null, null, entityOne);
+
+        assertObservableHappyCase(dataSource.addOrUpdateAsync(
+              TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1)), null, null, entityOne);
+        assertThat(dataSource.getSkippedWriteCount()).isEqualTo(1);
+        //read back only once, to emit the value of the first write.
+        Mockito.verify(storage, Mockito.times(1)).readOneByKey(FAKE_CHANNEL_ID_1);
+    }
+
+    @Test
+    public void addOrUpdate_ShouldKeepMetadata_WhenUnchangedValueRewrittenWithTimeToLive()
+          throws Exception {
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        assertObservableHappyCase(
+              asyncCacheDataSource.addOrUpdateAsync(entityOne, 1, TimeUnit.HOURS), null, null,
+              entityOne);
+        CacheEntryMetadata metadata = onDeviceKeyStorage.readEntryMetadata(FAKE_CHANNEL_ID_1);
+        Thread.sleep(5);
+
+        assertObservableHappyCase(
+              asyncCacheDataSource.addOrUpdateAsync(entityOne, 1, TimeUnit.HOURS), null, null,
+              entityOne);
+        assertThat(asyncCacheDataSource.getSkippedWriteCount()).isEqualTo(1);
+        assertThat(onDeviceKeyStorage.readEntryMetadata(FAKE_CHANNEL_ID_1)).isEqualTo(metadata);
+    }
+
+    @Test
+    public void getByIndex_ShouldReturnMatchingItems_WhenIndexMaintained() throws Exception {
+        TestEntity entityOne = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_1);
+        TestEntity entityTwo = TestEntity.with(FAKE_CHANNEL_ID_2, FAKE_CHANNEL_NAME_2);
+        TestEntity entityThree = TestEntity.with(FAKE_CHANNEL_ID_3, FAKE_CHANNEL_NAME_3);
+        assertObservableHappyCase(asyncCacheDataSource.addOrUpdateAsync(entityOne), null, null,
+                                  entityOne);
+        //the index is built from the stored values.
+        asyncCacheDataSource.addIndex("name", TestEntity::Name);
+        assertListObservableHappyCase(asyncCacheDataSource.addOrUpdateAllAsync(
+              Lists.newArrayList(entityTwo, entityThree)), null, null, entityTwo, entityThree);
+
+        assertObservableHappyCase(
+              asyncCacheDataSource.getByIndexAsync("name", FAKE_CHANNEL_NAME_2), null, null,
+              entityTwo);
+        //Belföld < Külföld < Sport
+        assertObservableHappyCase(
+              asyncCacheDataSource.getByIndexRangeAsync("name", FAKE_CHANNEL_NAME_2, true,
+                                                        FAKE_CHANNEL_NAME_3, false), null, null,
+              entityTwo, entityOne);
+
+        assertObservableHappyCase(asyncCacheDataSource.deleteByKeyAsync(FAKE_CHANNEL_ID_2), null,
+                                  null, Boolean.TRUE);
+        TestEntity entityOneRenamed = TestEntity.with(FAKE_CHANNEL_ID_1, FAKE_CHANNEL_NAME_3);
+        assertObservableHappyCase(asyncCacheDataSource.addOrUpdateAsync(entityOneRenamed), null,
+                                  null, entityOneRenamed);
+        assertObservableHappyCase(
+              asyncCacheDataSource.getByIndexAsync("name", FAKE_CHANNEL_NAME_2), null, null);
+        assertObservableHappyCase(
+              asyncCacheDataSource.getByIndexAsync("name", FAKE_CHANNEL_NAME_3), null, null,
+              entityThree, entityOneRenamed);
+    }
 }